@@ -0,0 +1,33 @@
+package ch.uzh.csg.mbps.server.auth;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
+
+/**
+ * This handles an authentication attempt after it failed. If the password
+ * could not be checked because the server is overloaded (see
+ * {@link PasswordVerifier}), the client is told to retry later instead of
+ * being told that the credentials are wrong.
+ */
+public class CustomAuthenticationFailureHandler extends SimpleUrlAuthenticationFailureHandler {
+	private static final String RETRY_AFTER_SECONDS = "1";
+	
+	@Override
+	public void onAuthenticationFailure(HttpServletRequest request, HttpServletResponse response, AuthenticationException exception) throws IOException, ServletException {
+		if (exception instanceof AuthenticationServiceException) {
+			response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exception.getMessage());
+			return;
+		}
+		
+		super.onAuthenticationFailure(request, response, exception);
+	}
+	
+}
@@ -11,8 +11,6 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
-import org.springframework.security.crypto.password.PasswordEncoder;
 
 import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
@@ -20,11 +18,11 @@ import ch.uzh.csg.mbps.server.service.UserAccountService;
 /**
  * This is the authentication manager, which decides if the authentication is
  * successful or not. It compares the password, loads the user account from the
- * database, etc.
+ * database, etc. The password is checked by the {@link PasswordVerifier}.
  */
 public class CustomAuthenticationManager implements AuthenticationManager {
 	private UserAccountService userAccountService = UserAccountService.getInstance();
-	private PasswordEncoder pwEncoder = new BCryptPasswordEncoder();
+	private PasswordVerifier passwordVerifier = PasswordVerifier.getInstance();
 	
 	@Override
 	public Authentication authenticate(Authentication authentication) throws AuthenticationException {
@@ -43,7 +41,7 @@ public class CustomAuthenticationManager implements AuthenticationManager {
 			throw new BadCredentialsException(errMsg);
 		}
 		
-		if (!pwEncoder.matches((String) authentication.getCredentials(), userAccount.getPassword())) {
+		if (!passwordVerifier.matches(userAccount.getUsername(), (String) authentication.getCredentials(), userAccount.getPassword())) {
 			String errMsg = "User \""+authentication.getName()+"\" entered wrong password!";
 			throw new BadCredentialsException(errMsg);
 		}
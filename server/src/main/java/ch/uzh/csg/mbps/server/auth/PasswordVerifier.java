@@ -0,0 +1,201 @@
+package ch.uzh.csg.mbps.server.auth;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.ExpiringLruCache;
+import ch.uzh.csg.mbps.server.util.ThreadPools;
+
+/**
+ * Checks login passwords against their BCrypt hashes on a pool of
+ * Config.AUTH_THREADS threads. The pool only bounds how many checks run
+ * concurrently: the servlet thread of a login still blocks until its check
+ * has finished, for at most Config.AUTH_TIMEOUT. If Config.AUTH_QUEUE_SIZE
+ * checks are already waiting, further logins are rejected immediately instead
+ * of queueing up behind them.
+ *
+ * Successful checks are remembered for Config.AUTH_CACHE_TTL, so clients
+ * logging in again after a session timeout skip BCrypt. Only an HMAC of the
+ * username, the password and the stored hash is kept, the key of which is
+ * generated at startup and never leaves the memory. Since the stored hash is
+ * part of the fingerprint, a changed password never matches a cached entry.
+ *
+ */
+public class PasswordVerifier {
+	private static Logger LOGGER = Logger.getLogger(PasswordVerifier.class);
+	private static PasswordVerifier passwordVerifier;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	private final PasswordEncoder pwEncoder = new BCryptPasswordEncoder();
+	private final ThreadPoolExecutor executor;
+	private final SecretKeySpec fingerprintKey;
+
+	/*
+	 * username -> fingerprint of the last successful login
+	 */
+	private final ExpiringLruCache<String, byte[]> verified = new ExpiringLruCache<String, byte[]>(Config.AUTH_CACHE_SIZE, Config.AUTH_CACHE_TTL);
+
+	private final AtomicLong checked = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+
+	private PasswordVerifier() {
+		executor = new ThreadPoolExecutor(Config.AUTH_THREADS, Config.AUTH_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Config.AUTH_QUEUE_SIZE), new VerifierThreadFactory());
+
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		fingerprintKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+	}
+
+	/**
+	 * Returns new or existing instance of {@link PasswordVerifier}.
+	 *
+	 * @return instance of PasswordVerifier
+	 */
+	public static synchronized PasswordVerifier getInstance() {
+		if (passwordVerifier == null)
+			passwordVerifier = new PasswordVerifier();
+
+		return passwordVerifier;
+	}
+
+	/**
+	 * Stops the threads of the {@link PasswordVerifier}, if it has been
+	 * started.
+	 */
+	public static synchronized void shutdown() {
+		if (passwordVerifier != null) {
+			ThreadPools.shutdown(passwordVerifier.executor, "PasswordVerifier");
+			passwordVerifier = null;
+		}
+	}
+
+	/**
+	 * Checks if the given raw password matches the BCrypt hash of the
+	 * UserAccount with the given username.
+	 *
+	 * @param username
+	 * @param rawPassword
+	 * @param hash
+	 *            BCrypt hash stored for the UserAccount
+	 * @return true if the password matches
+	 * @throws AuthenticationServiceException
+	 *             if too many passwords are being checked or the check did not
+	 *             finish within Config.AUTH_TIMEOUT
+	 */
+	public boolean matches(String username, String rawPassword, String hash) throws AuthenticationServiceException {
+		if (rawPassword == null || hash == null)
+			return false;
+
+		byte[] fingerprint = fingerprint(username, rawPassword, hash);
+		byte[] cached = verified.get(username);
+		if (cached != null && MessageDigest.isEqual(cached, fingerprint))
+			return true;
+
+		Future<Boolean> result;
+		try {
+			result = executor.submit(new MatchTask(rawPassword, hash));
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw new AuthenticationServiceException("Too many concurrent logins, please try again.");
+		}
+
+		boolean matches;
+		try {
+			matches = result.get(Config.AUTH_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			result.cancel(true);
+			timedOut.incrementAndGet();
+			throw new AuthenticationServiceException("Password check timed out, please try again.");
+		} catch (InterruptedException e) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new AuthenticationServiceException("Password check interrupted.", e);
+		} catch (ExecutionException e) {
+			LOGGER.error("Problem checking password of user " + username + ". ErrorMessage: " + e.getCause());
+			return false;
+		}
+
+		//a wrong password leaves the entry alone, otherwise anybody could evict the cached login of another user
+		if (matches)
+			verified.put(username, fingerprint);
+
+		return matches;
+	}
+
+	/**
+	 * Returns the number of BCrypt checks, rejected and timed out logins, the
+	 * number of waiting checks and the cache statistics for logging.
+	 */
+	public String getStatistics() {
+		return "checked: " + checked.get() + ", rejected: " + rejected.get() + ", timed out: " + timedOut.get() + ", queued: " + executor.getQueue().size() + ", cache [" + verified + "]";
+	}
+
+	private byte[] fingerprint(String username, String rawPassword, String hash) {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(fingerprintKey);
+			mac.update(username.getBytes(UTF8));
+			mac.update((byte) 0);
+			mac.update(rawPassword.getBytes(UTF8));
+			mac.update((byte) 0);
+			return mac.doFinal(hash.getBytes(UTF8));
+		} catch (GeneralSecurityException e) {
+			//HmacSHA256 is available on every jvm
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private class MatchTask implements Callable<Boolean> {
+		private final String rawPassword;
+		private final String hash;
+
+		private MatchTask(String rawPassword, String hash) {
+			this.rawPassword = rawPassword;
+			this.hash = hash;
+		}
+
+		@Override
+		public Boolean call() {
+			checked.incrementAndGet();
+			return pwEncoder.matches(rawPassword, hash);
+		}
+	}
+
+	private static class VerifierThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PasswordVerifier-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
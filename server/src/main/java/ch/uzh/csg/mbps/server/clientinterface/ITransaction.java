@@ -5,6 +5,8 @@ import java.util.ArrayList;
 
 import ch.uzh.csg.mbps.model.HistoryTransaction;
 import ch.uzh.csg.mbps.model.Transaction;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
 import ch.uzh.csg.mbps.server.util.exceptions.TransactionException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 import ch.uzh.csg.mbps.util.Pair;
@@ -28,6 +30,24 @@ public interface ITransaction {
 	 */
 	public ArrayList<HistoryTransaction> getHistory(String username, int page) throws UserAccountNotFoundException;
 	
+	/**
+	 * Returns the page of Transactions of a given UserAccount which follows
+	 * the given cursor. Other than with the page number, reading a page does
+	 * not get slower the further the client scrolls back in the history. The
+	 * returned lists are ordered by the item's time stamp descending.
+	 * 
+	 * @param username
+	 *            the username of the UserAccount
+	 * @param cursor
+	 *            the cursor returned with the previous page or null for the
+	 *            first page
+	 * @return HistoryPage with the HistoryTransactions and the cursor of the
+	 *         next page
+	 * @throws UserAccountNotFoundException
+	 *             if the username is not found in the database
+	 */
+	public HistoryPage<HistoryTransaction> getHistory(String username, HistoryCursor cursor) throws UserAccountNotFoundException;
+	
 	/**
 	 * Creates a new Transaction on the server/database.
 	 * 
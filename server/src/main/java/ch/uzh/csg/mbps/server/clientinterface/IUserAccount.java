@@ -44,7 +44,8 @@ public interface IUserAccount {
 	public UserAccount getById(long id) throws UserAccountNotFoundException;
 
 	/**
-	 * Updates UserAccount in DB with updated values from updatedAccount. Only email address and password can be updated.
+	 * Updates UserAccount in DB with updated values from updatedAccount. Only email address, password and public key can be updated.
+	 * A changed public key increments the key version of the UserAccount.
 	 * 
 	 * @param username
 	 * @param updatedAccount
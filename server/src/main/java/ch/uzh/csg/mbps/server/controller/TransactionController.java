@@ -2,9 +2,8 @@ package ch.uzh.csg.mbps.server.controller;
 
 import java.io.IOException;
 import java.security.SignedObject;
-import java.util.ArrayList;
 
-import net.minidev.json.parser.ParseException;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Controller;
@@ -14,9 +13,6 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
-import ch.uzh.csg.mbps.model.HistoryPayInTransaction;
-import ch.uzh.csg.mbps.model.HistoryPayOutTransaction;
-import ch.uzh.csg.mbps.model.HistoryTransaction;
 import ch.uzh.csg.mbps.responseobject.CreateTransactionTransferObject;
 import ch.uzh.csg.mbps.responseobject.CustomResponseObject;
 import ch.uzh.csg.mbps.responseobject.CustomResponseObject.Type;
@@ -24,14 +20,18 @@ import ch.uzh.csg.mbps.responseobject.GetHistoryTransferObject;
 import ch.uzh.csg.mbps.responseobject.ReadAccountTransferObject;
 import ch.uzh.csg.mbps.server.domain.PayOutTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.service.HistoryService;
 import ch.uzh.csg.mbps.server.service.PayInTransactionService;
 import ch.uzh.csg.mbps.server.service.PayOutTransactionService;
 import ch.uzh.csg.mbps.server.service.TransactionService;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
+import ch.uzh.csg.mbps.server.util.AccountHistory;
 import ch.uzh.csg.mbps.server.util.AuthenticationInfo;
 import ch.uzh.csg.mbps.server.util.Constants;
 import ch.uzh.csg.mbps.server.util.ExchangeRates;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
 import ch.uzh.csg.mbps.server.util.HistoryEmailHandler;
+import ch.uzh.csg.mbps.server.util.exceptions.ExchangeRateUnavailableException;
 import ch.uzh.csg.mbps.server.util.exceptions.TransactionException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 import ch.uzh.csg.mbps.util.Pair;
@@ -48,6 +48,10 @@ import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
 public class TransactionController {
 	private static Logger LOGGER = Logger.getLogger(TransactionController.class);
 	private static final String SUCCESS = "The transaction has been successfully created.";
+	
+	public static final String TX_CURSOR_HEADER = "X-Tx-Cursor";
+	public static final String PAY_IN_CURSOR_HEADER = "X-PayIn-Cursor";
+	public static final String PAY_OUT_CURSOR_HEADER = "X-PayOut-Cursor";
 
 	/**
 	 * Creates new transaction between two UserAccounts. Verifies/validates
@@ -99,27 +103,69 @@ public class TransactionController {
 		
 		try {
 			String username = AuthenticationInfo.getPrincipalUsername();
-			
-			ArrayList<HistoryTransaction> history = TransactionService.getInstance().getHistory(username, txPage);
-			long nofTx = (txPage < 0) ? 0 : TransactionService.getInstance().getHistoryCount(username);
-			
-			ArrayList<HistoryPayInTransaction> payInHistory = PayInTransactionService.getInstance().getHistory(username, txPayInPage);
-			long nofPayInTx = (txPayInPage < 0) ? 0 : PayInTransactionService.getInstance().getHistoryCount(username);
-			
-			ArrayList<HistoryPayOutTransaction> payOutHistory = PayOutTransactionService.getInstance().getHistory(username, txPayOutPage);
-			long nofPayOutTx = (txPayOutPage < 0) ? 0 : PayOutTransactionService.getInstance().getHistoryCount(username);
-			
-			CustomResponseObject responseObject = new CustomResponseObject(true, "");
-			responseObject.setGetHistoryTO(new GetHistoryTransferObject(history, payInHistory, payOutHistory, nofTx, nofPayInTx, nofPayOutTx));
-			
-			ReadAccountTransferObject rato = new ReadAccountTransferObject(UserAccountController.transform(UserAccountService.getInstance().getByUsername(username)));
-			responseObject.setReadAccountTO(rato);
-			return responseObject;
+			AccountHistory history = HistoryService.getInstance().getHistory(username, txPage, txPayInPage, txPayOutPage);
+			return createHistoryResponse(history);
+		} catch (UserAccountNotFoundException e) {
+			return new CustomResponseObject(false, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns the history of all transactions assigned to the authenticated
+	 * UserAccount using cursors instead of page numbers. If a parameter is
+	 * missing, the corresponding history type is not returned. An empty
+	 * parameter requests the first page, otherwise the page following the
+	 * given cursor is returned. The cursors of the next pages are returned in
+	 * the response headers {@value #TX_CURSOR_HEADER},
+	 * {@value #PAY_IN_CURSOR_HEADER} and {@value #PAY_OUT_CURSOR_HEADER}. A
+	 * header is missing if there are no more entries. The returned lists are
+	 * ordered by their time stamp descending.
+	 * 
+	 * @param txCursor
+	 *            the cursor of common transactions
+	 * @param txPayInCursor
+	 *            the cursor of pay in transactions
+	 * @param txPayOutCursor
+	 *            the cursor of pay out transactions
+	 * @return CustomResponseObject with the ordered transactions and
+	 *         information about success/non success of request.
+	 */
+	@RequestMapping(value = "/history/cursor", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public CustomResponseObject getHistory(
+			@RequestParam(value="txCursor", required=false) String txCursor,
+			@RequestParam(value="txPayInCursor", required=false) String txPayInCursor,
+			@RequestParam(value="txPayOutCursor", required=false) String txPayOutCursor,
+			HttpServletResponse response) {
+		
+		try {
+			String username = AuthenticationInfo.getPrincipalUsername();
+			AccountHistory history = HistoryService.getInstance().getHistory(username, txCursor, txPayInCursor, txPayOutCursor);
+			setCursorHeader(response, TX_CURSOR_HEADER, history.getNextTransactionCursor());
+			setCursorHeader(response, PAY_IN_CURSOR_HEADER, history.getNextPayInCursor());
+			setCursorHeader(response, PAY_OUT_CURSOR_HEADER, history.getNextPayOutCursor());
+			return createHistoryResponse(history);
+		} catch (IllegalArgumentException e) {
+			return new CustomResponseObject(false, e.getMessage());
 		} catch (UserAccountNotFoundException e) {
 			return new CustomResponseObject(false, e.getMessage());
 		}
 	}
 	
+	private static CustomResponseObject createHistoryResponse(AccountHistory history) {
+		CustomResponseObject responseObject = new CustomResponseObject(true, "");
+		responseObject.setGetHistoryTO(new GetHistoryTransferObject(
+				history.getTransactions(), history.getPayInTransactions(), history.getPayOutTransactions(),
+				history.getNofTransactions(), history.getNofPayInTransactions(), history.getNofPayOutTransactions()));
+		responseObject.setReadAccountTO(new ReadAccountTransferObject(UserAccountController.transform(history.getUserAccount())));
+		return responseObject;
+	}
+	
+	private static void setCursorHeader(HttpServletResponse response, String header, HistoryCursor cursor) {
+		if (cursor != null)
+			response.setHeader(header, cursor.encode());
+	}
+	
 	/**
 	 * Sends an email to the authenticated user containing a csv-file with the
 	 * given transaction type. It is only possible to request a history list for
@@ -154,6 +200,42 @@ public class TransactionController {
 		}
 	}
 	
+	/**
+	 * Streams the complete history of the given transaction type of the
+	 * authenticated user as gzip compressed csv file. The content length is
+	 * not known in advance, so the response is sent with chunked transfer
+	 * encoding.
+	 * 
+	 * @param type
+	 *            0 for common transactions, 1 for pay in transactions, 2 for
+	 *            pay out transactions
+	 * @param response
+	 */
+	@RequestMapping(value = "/history/export", params = { "type" }, method = RequestMethod.GET)
+	public void exportHistory(@RequestParam(value="type") int type, HttpServletResponse response) throws IOException {
+		if (type < 0 || type > 2) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "parameter is not valid");
+			return;
+		}
+		
+		String username = AuthenticationInfo.getPrincipalUsername();
+		try {
+			response.setContentType("application/gzip");
+			response.setHeader("Content-Disposition", "attachment; filename=\"" + username + "-" + System.currentTimeMillis() + ".csv.gz\"");
+			HistoryService.getInstance().exportHistory(username, type, response.getOutputStream());
+		} catch (UserAccountNotFoundException e) {
+			response.reset();
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "UserAccount not found.");
+		} catch (IOException e) {
+			//the response might already be committed, the client sees a truncated file
+			LOGGER.error("Couldn't export history of " + username + ". Reason: " + e.getMessage());
+			if (!response.isCommitted()) {
+				response.reset();
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		}
+	}
+	
 	/**
 	 * Returns up to date exchangerate BTC/CHF
 	 * 
@@ -164,7 +246,7 @@ public class TransactionController {
 	public CustomResponseObject getExchangeRate() {
 		try {
 			return new CustomResponseObject(true, ExchangeRates.getExchangeRate().toString(), Type.EXCHANGE_RATE);
-		} catch (ParseException | IOException e) {
+		} catch (ExchangeRateUnavailableException e) {
 			LOGGER.error("Couldn't get exchange rate. Response: " + e.getMessage());
 			return new CustomResponseObject(false, "0.0", Type.EXCHANGE_RATE);
 		}
@@ -12,9 +12,9 @@ import org.springframework.web.servlet.ModelAndView;
 import ch.uzh.csg.mbps.responseobject.CustomResponseObject;
 import ch.uzh.csg.mbps.responseobject.ReadAccountTransferObject;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.service.ServerKeys;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
 import ch.uzh.csg.mbps.server.util.AuthenticationInfo;
-import ch.uzh.csg.mbps.server.util.Constants;
 import ch.uzh.csg.mbps.server.util.PasswordMatcher;
 import ch.uzh.csg.mbps.server.util.exceptions.BalanceNotZeroException;
 import ch.uzh.csg.mbps.server.util.exceptions.EmailAlreadyExistsException;
@@ -22,7 +22,6 @@ import ch.uzh.csg.mbps.server.util.exceptions.InvalidEmailException;
 import ch.uzh.csg.mbps.server.util.exceptions.InvalidUsernameException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 import ch.uzh.csg.mbps.server.util.exceptions.UsernameAlreadyExistsException;
-import ch.uzh.csg.mbps.util.KeyHandler;
 
 import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
 
@@ -87,7 +86,7 @@ public class UserAccountController {
 		try {
 			UserAccount userAccount = UserAccountService.getInstance().getByUsername(AuthenticationInfo.getPrincipalUsername());
 			CustomResponseObject responseObject = new CustomResponseObject(true, READ_SUCCESS);
-			responseObject.setEncodedServerPublicKey(KeyHandler.encodePublicKey(Constants.PUBLICKEY));
+			responseObject.setEncodedServerPublicKey(ServerKeys.get().getEncodedPublicKey());
 			responseObject.setReadAccountTO(new ReadAccountTransferObject(transform(userAccount)));
 			return responseObject;
 		} catch (UserAccountNotFoundException e) {
@@ -117,7 +116,7 @@ public class UserAccountController {
 		ua.setPaymentAddress(userAccount.getPaymentAddress());
 //		ua.setPrivateKey(userAccount.getPrivateKey());
 //		ua.setPublicKey(userAccount.getPublicKey());
-//		ua.setTransactionNumber(userAccount.getTransactionNumber());
+		ua.setTransactionNumber(userAccount.getTransactionNumber());
 		ua.setUsername(userAccount.getUsername());
 		return ua;
 	}
@@ -0,0 +1,126 @@
+package ch.uzh.csg.mbps.server.dao;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+import ch.uzh.csg.mbps.server.domain.BlockchainCursor;
+import ch.uzh.csg.mbps.server.domain.ProcessedBitcoinTransaction;
+import ch.uzh.csg.mbps.server.util.HibernateUtil;
+
+/**
+ * DatabaseAccessObject for the position of the BlockchainWatcher, i.e. the
+ * {@link BlockchainCursor} and the {@link ProcessedBitcoinTransaction}s.
+ */
+public class BlockchainWatcherDAO {
+	private static Logger LOGGER = Logger.getLogger(BlockchainWatcherDAO.class);
+
+	private BlockchainWatcherDAO() {
+	}
+
+	private static Session openSession() {
+		return HibernateUtil.openWriteSession();
+	}
+
+	/**
+	 * Returns the hash of the last processed block or null, if the watcher has
+	 * never run before.
+	 *
+	 * @return block hash or null
+	 */
+	public static String getLastBlock() {
+		Session session = HibernateUtil.openReadSession();
+		try {
+			BlockchainCursor cursor = (BlockchainCursor) session.get(BlockchainCursor.class, BlockchainCursor.ID);
+			return (cursor == null) ? null : cursor.getLastBlock();
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+
+	/**
+	 * Stores the hash of the last processed block.
+	 *
+	 * @param lastBlock
+	 * @throws HibernateException
+	 */
+	public static void setLastBlock(String lastBlock) throws HibernateException {
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+
+		try {
+			transaction = session.beginTransaction();
+			BlockchainCursor cursor = (BlockchainCursor) session.get(BlockchainCursor.class, BlockchainCursor.ID);
+			if (cursor == null) {
+				session.save(new BlockchainCursor(lastBlock));
+			} else {
+				cursor.setLastBlock(lastBlock);
+				session.update(cursor);
+			}
+			transaction.commit();
+		} catch (HibernateException e) {
+			LOGGER.error("Problem saving last block " + lastBlock + ". ErrorMessage: " + e.getMessage());
+			if (transaction != null)
+				transaction.rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Returns the keys out of the given keys which have already been
+	 * processed.
+	 *
+	 * @param txKeys
+	 * @return Set of processed keys
+	 */
+	public static Set<String> getProcessed(Collection<String> txKeys) {
+		Set<String> processed = new HashSet<String>();
+		if (txKeys.isEmpty())
+			return processed;
+
+		Session session = HibernateUtil.openReadSession();
+		try {
+			@SuppressWarnings("unchecked")
+			List<String> result = session.createQuery(
+					"SELECT p.txKey FROM PROCESSED_BTC_TRANSACTION p WHERE p.txKey IN (:keys)")
+					.setParameterList("keys", txKeys)
+					.list();
+			processed.addAll(result);
+			return processed;
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+
+	/**
+	 * Marks the Bitcoin transaction with the given key as processed.
+	 *
+	 * @param txKey
+	 * @throws HibernateException
+	 */
+	public static void markProcessed(String txKey) throws HibernateException {
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+
+		try {
+			transaction = session.beginTransaction();
+			session.save(new ProcessedBitcoinTransaction(txKey));
+			transaction.commit();
+		} catch (HibernateException e) {
+			LOGGER.error("Problem marking Bitcoin transaction " + txKey + " as processed. ErrorMessage: " + e.getMessage());
+			if (transaction != null)
+				transaction.rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package ch.uzh.csg.mbps.server.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+import ch.uzh.csg.mbps.server.domain.DbTransaction;
+import ch.uzh.csg.mbps.server.domain.HistoryCounter;
+import ch.uzh.csg.mbps.server.domain.PayInTransaction;
+import ch.uzh.csg.mbps.server.domain.PayOutTransaction;
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.HibernateUtil;
+
+/**
+ * DatabaseAccessObject for {@link HistoryCounter}s. The counters are
+ * incremented by the DAOs which create {@link DbTransaction}s,
+ * {@link PayInTransaction}s and {@link PayOutTransaction}s within their
+ * database transaction. The native updates are synchronized with the
+ * HistoryCounter only, otherwise Hibernate would evict the whole second-level
+ * cache on every payment.
+ */
+public class HistoryCounterDAO {
+	private static Logger LOGGER = Logger.getLogger(HistoryCounterDAO.class);
+
+	private HistoryCounterDAO() {
+	}
+
+	private static Session openSession() {
+		return HibernateUtil.openWriteSession();
+	}
+
+	/**
+	 * Returns the {@link HistoryCounter} of the UserAccount with the given id
+	 * or null, if no counter exists for this UserAccount (yet).
+	 *
+	 * @param userId
+	 * @return HistoryCounter or null
+	 */
+	public static HistoryCounter get(long userId) {
+		Session session = HibernateUtil.openReadSession();
+		try {
+			return get(session, userId);
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+
+	static HistoryCounter get(Session session, long userId) {
+		return (HistoryCounter) session.get(HistoryCounter.class, new Long(userId));
+	}
+
+	/**
+	 * Saves a new {@link HistoryCounter} with all counters set to zero within
+	 * the transaction of the given session.
+	 */
+	static void create(Session session, long userId) {
+		session.save(new HistoryCounter(userId));
+	}
+
+	/**
+	 * Increments the transaction counter of buyer and seller within the
+	 * transaction of the given session.
+	 */
+	static void incrementTransactions(Session session, long buyerId, long sellerId) {
+		session.createSQLQuery(
+				"UPDATE history_counter SET transaction_count = transaction_count + 1 " +
+				"WHERE user_id IN (:buyerid, :sellerid)")
+				.addSynchronizedEntityClass(HistoryCounter.class)
+				.setLong("buyerid", buyerId)
+				.setLong("sellerid", sellerId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Adds the given number of transactions to the counter of the given
+	 * UserAccount within the transaction of the given session.
+	 */
+	static void incrementTransactions(Session session, long userId, int count) {
+		session.createSQLQuery(
+				"UPDATE history_counter SET transaction_count = transaction_count + :count " +
+				"WHERE user_id = :userid")
+				.addSynchronizedEntityClass(HistoryCounter.class)
+				.setInteger("count", count)
+				.setLong("userid", userId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Increments the pay in counter of the given UserAccount within the
+	 * transaction of the given session.
+	 */
+	static void incrementPayIns(Session session, long userId) {
+		session.createSQLQuery(
+				"UPDATE history_counter SET pay_in_count = pay_in_count + 1 " +
+				"WHERE user_id = :userid")
+				.addSynchronizedEntityClass(HistoryCounter.class)
+				.setLong("userid", userId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Increments the pay out counter of the given UserAccount within the
+	 * transaction of the given session.
+	 */
+	static void incrementPayOuts(Session session, long userId) {
+		session.createSQLQuery(
+				"UPDATE history_counter SET pay_out_count = pay_out_count + 1 " +
+				"WHERE user_id = :userid")
+				.addSynchronizedEntityClass(HistoryCounter.class)
+				.setLong("userid", userId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Decrements the pay out counter of the given UserAccount within the
+	 * transaction of the given session.
+	 */
+	static void decrementPayOuts(Session session, long userId) {
+		session.createSQLQuery(
+				"UPDATE history_counter SET pay_out_count = pay_out_count - 1 " +
+				"WHERE user_id = :userid")
+				.addSynchronizedEntityClass(HistoryCounter.class)
+				.setLong("userid", userId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Recounts all {@link HistoryCounter}s from the history tables. Every
+	 * counter is recounted in its own database transaction while its row is
+	 * locked, so payments only wait for the recount of their own counters.
+	 * Rows inserted by a payment which has already incremented the counter are
+	 * visible to the recount once the payment has committed, rows of a payment
+	 * which increments the counter after the recount are not counted by it,
+	 * so every row is counted exactly once. A payment to oneself is counted
+	 * once, as by {@link #incrementTransactions(Session, long, long)}.
+	 *
+	 * @throws HibernateException
+	 */
+	public static void rebuild() throws HibernateException {
+		int nofCounters = 0;
+		long lastUserId = -1;
+		List<Long> userIds;
+		do {
+			userIds = getUserIds(lastUserId, Config.HISTORY_COUNTER_REBUILD_BATCH_SIZE);
+			for (Long userId : userIds) {
+				recount(userId.longValue());
+				nofCounters++;
+				lastUserId = userId.longValue();
+			}
+		} while (userIds.size() == Config.HISTORY_COUNTER_REBUILD_BATCH_SIZE);
+		LOGGER.info("Rebuilt HistoryCounters for " + nofCounters + " UserAccounts");
+	}
+
+	private static List<Long> getUserIds(long afterUserId, int maxResults) throws HibernateException {
+		Session session = HibernateUtil.openReadSession();
+		try {
+			@SuppressWarnings("unchecked")
+			List<Number> ids = session.createSQLQuery("SELECT u.id FROM user_account u WHERE u.id > :userid ORDER BY u.id")
+					.setLong("userid", afterUserId)
+					.setMaxResults(maxResults)
+					.list();
+			List<Long> userIds = new ArrayList<Long>(ids.size());
+			for (Number id : ids) {
+				userIds.add(id.longValue());
+			}
+			return userIds;
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+
+	private static void recount(long userId) throws HibernateException {
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+
+		try {
+			transaction = session.beginTransaction();
+			//the counts are read by the following statements, after the lock has been granted
+			boolean exists = !session.createSQLQuery("SELECT user_id FROM history_counter WHERE user_id = :userid FOR UPDATE")
+					.addSynchronizedEntityClass(HistoryCounter.class)
+					.setLong("userid", userId)
+					.list().isEmpty();
+			String sql;
+			if (exists) {
+				sql = "UPDATE history_counter SET " +
+						"transaction_count = (SELECT COUNT(*) FROM db_transaction t WHERE t.buyer_id = :userid OR t.seller_id = :userid), " +
+						"pay_in_count = (SELECT COUNT(*) FROM pay_in_transaction pit WHERE pit.user_id = :userid), " +
+						"pay_out_count = (SELECT COUNT(*) FROM pay_out_transaction pot WHERE pot.user_id = :userid) " +
+						"WHERE user_id = :userid";
+			} else {
+				sql = "INSERT INTO history_counter (user_id, transaction_count, pay_in_count, pay_out_count) " +
+						"SELECT :userid, " +
+						"(SELECT COUNT(*) FROM db_transaction t WHERE t.buyer_id = :userid OR t.seller_id = :userid), " +
+						"(SELECT COUNT(*) FROM pay_in_transaction pit WHERE pit.user_id = :userid), " +
+						"(SELECT COUNT(*) FROM pay_out_transaction pot WHERE pot.user_id = :userid)";
+			}
+			session.createSQLQuery(sql)
+					.addSynchronizedEntityClass(HistoryCounter.class)
+					.setLong("userid", userId)
+					.executeUpdate();
+			transaction.commit();
+		} catch (HibernateException e) {
+			LOGGER.error("Problem rebuilding HistoryCounter of UserAccount " + userId + ". ErrorMessage: " + e.getMessage());
+			if (transaction != null)
+				transaction.rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+package ch.uzh.csg.mbps.server.dao;
+
+import org.hibernate.Session;
+
+import ch.uzh.csg.mbps.model.HistoryPayInTransaction;
+import ch.uzh.csg.mbps.model.HistoryPayOutTransaction;
+import ch.uzh.csg.mbps.model.HistoryTransaction;
+import ch.uzh.csg.mbps.server.domain.HistoryCounter;
+import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.util.AccountHistory;
+import ch.uzh.csg.mbps.server.util.HibernateUtil;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
+import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
+
+/**
+ * DatabaseAccessObject for reading the complete {@link AccountHistory} of a
+ * {@link UserAccount}. All histories and the history sizes are read within
+ * one session on the read replica (see
+ * HibernateUtil#openReplicaReadSession()), instead of opening a session for
+ * every single query. The UserAccount is read from the primary.
+ */
+public class HistoryDAO {
+
+	private HistoryDAO() {
+	}
+
+	/**
+	 * Returns the given pages of the histories of the UserAccount with the
+	 * given username. If a page number is negative, the corresponding history
+	 * is not read.
+	 *
+	 * @param username
+	 * @param txPage
+	 *            the page number of common transactions
+	 * @param payInPage
+	 *            the page number of pay in transactions
+	 * @param payOutPage
+	 *            the page number of pay out transactions
+	 * @return AccountHistory
+	 * @throws UserAccountNotFoundException
+	 */
+	public static AccountHistory getHistory(String username, int txPage, int payInPage, int payOutPage) throws UserAccountNotFoundException {
+		//the UserAccount (and its balance) is read from the primary
+		UserAccount userAccount = UserAccountDAO.getByUsername(username);
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			AccountHistory history = new AccountHistory();
+			history.setUserAccount(userAccount);
+			long userId = userAccount.getId();
+
+			HistoryCounter counter = null;
+			if (txPage >= 0 || payInPage >= 0 || payOutPage >= 0)
+				counter = HistoryCounterDAO.get(session, userId);
+
+			if (txPage >= 0) {
+				history.setTransactions(TransactionDAO.getHistory(session, userId, txPage));
+				history.setNofTransactions(TransactionDAO.getHistoryCount(session, userId, counter));
+			}
+			if (payInPage >= 0) {
+				history.setPayInTransactions(PayInTransactionDAO.getHistory(session, userId, payInPage));
+				history.setNofPayInTransactions(PayInTransactionDAO.getHistoryCount(session, userId, counter));
+			}
+			if (payOutPage >= 0) {
+				history.setPayOutTransactions(PayOutTransactionDAO.getHistory(session, userId, payOutPage));
+				history.setNofPayOutTransactions(PayOutTransactionDAO.getHistoryCount(session, userId, counter));
+			}
+			return history;
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+
+	/**
+	 * Returns the pages following the given cursors of the histories of the
+	 * UserAccount with the given username. If a cursor is null, the
+	 * corresponding history is not read. An empty cursor stands for the first
+	 * page.
+	 *
+	 * @param username
+	 * @param txCursor
+	 *            the encoded cursor of common transactions
+	 * @param payInCursor
+	 *            the encoded cursor of pay in transactions
+	 * @param payOutCursor
+	 *            the encoded cursor of pay out transactions
+	 * @return AccountHistory
+	 * @throws UserAccountNotFoundException
+	 * @throws IllegalArgumentException
+	 *             if a cursor is not valid
+	 */
+	public static AccountHistory getHistory(String username, String txCursor, String payInCursor, String payOutCursor) throws UserAccountNotFoundException, IllegalArgumentException {
+		//decode before opening the session, invalid cursors fail fast
+		HistoryCursor tx = HistoryCursor.decode(txCursor);
+		HistoryCursor payIn = HistoryCursor.decode(payInCursor);
+		HistoryCursor payOut = HistoryCursor.decode(payOutCursor);
+
+		//the UserAccount (and its balance) is read from the primary
+		UserAccount userAccount = UserAccountDAO.getByUsername(username);
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			AccountHistory history = new AccountHistory();
+			history.setUserAccount(userAccount);
+			long userId = userAccount.getId();
+
+			HistoryCounter counter = null;
+			if (txCursor != null || payInCursor != null || payOutCursor != null)
+				counter = HistoryCounterDAO.get(session, userId);
+
+			if (txCursor != null) {
+				HistoryPage<HistoryTransaction> page = TransactionDAO.getHistory(session, userId, tx);
+				history.setTransactions(page.getItems());
+				history.setNextTransactionCursor(page.getNextCursor());
+				history.setNofTransactions(TransactionDAO.getHistoryCount(session, userId, counter));
+			}
+			if (payInCursor != null) {
+				HistoryPage<HistoryPayInTransaction> page = PayInTransactionDAO.getHistory(session, userId, payIn);
+				history.setPayInTransactions(page.getItems());
+				history.setNextPayInCursor(page.getNextCursor());
+				history.setNofPayInTransactions(PayInTransactionDAO.getHistoryCount(session, userId, counter));
+			}
+			if (payOutCursor != null) {
+				HistoryPage<HistoryPayOutTransaction> page = PayOutTransactionDAO.getHistory(session, userId, payOut);
+				history.setPayOutTransactions(page.getItems());
+				history.setNextPayOutCursor(page.getNextCursor());
+				history.setNofPayOutTransactions(PayOutTransactionDAO.getHistoryCount(session, userId, counter));
+			}
+			return history;
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+
+}
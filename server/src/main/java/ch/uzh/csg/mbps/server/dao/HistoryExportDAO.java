@@ -0,0 +1,269 @@
+package ch.uzh.csg.mbps.server.dao;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.type.StandardBasicTypes;
+
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.HibernateUtil;
+
+/**
+ * DatabaseAccessObject for exporting the complete history of a UserAccount as
+ * gzip compressed csv. The rows are read with a forward only cursor of a
+ * {@link StatelessSession} and compressed while they are read, so the memory
+ * needed does not depend on the size of the history. The rows are read from
+ * the read replica if one is usable (see
+ * HibernateUtil#getReplicaSessionFactory()).
+ */
+public class HistoryExportDAO {
+	private static Logger LOGGER = Logger.getLogger(HistoryExportDAO.class);
+
+	public static final int TRANSACTIONS = 0;
+	public static final int PAY_IN_TRANSACTIONS = 1;
+	public static final int PAY_OUT_TRANSACTIONS = 2;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int ROWS_PER_READ = 100;
+
+	private HistoryExportDAO() {
+	}
+
+	/**
+	 * Returns true if the given type is one of {@link #TRANSACTIONS},
+	 * {@link #PAY_IN_TRANSACTIONS} or {@link #PAY_OUT_TRANSACTIONS}.
+	 */
+	public static boolean isValidType(int type) {
+		return type == TRANSACTIONS || type == PAY_IN_TRANSACTIONS || type == PAY_OUT_TRANSACTIONS;
+	}
+
+	/**
+	 * Returns a stream of the gzip compressed csv history of the given type of
+	 * the UserAccount with the given id. The database is not accessed before
+	 * the first read, further rows are only fetched when the content read so
+	 * far has been consumed. The stream has to be closed.
+	 *
+	 * @param userId
+	 * @param type
+	 *            {@link #TRANSACTIONS}, {@link #PAY_IN_TRANSACTIONS} or
+	 *            {@link #PAY_OUT_TRANSACTIONS}
+	 * @return InputStream of gzip compressed csv
+	 * @throws IllegalArgumentException
+	 *             if the type is not valid
+	 */
+	public static InputStream openGzipCsv(long userId, int type) throws IllegalArgumentException {
+		if (!isValidType(type))
+			throw new IllegalArgumentException("Unknown history type: " + type);
+
+		return new GzipCsvInputStream(userId, type);
+	}
+
+	private static ScrollableResults scroll(StatelessSession session, long userId, int type) {
+		switch (type) {
+		case TRANSACTIONS:
+			return session.createSQLQuery(
+					  "SELECT transaction.timestamp, u2.username as buyer, u1.username as seller, transaction.amount " +
+					  "FROM DB_TRANSACTION transaction " +
+					  "INNER JOIN user_account u1 on transaction.seller_id = u1.id " +
+					  "INNER JOIN user_account u2 on transaction.buyer_id = u2.id " +
+					  "WHERE transaction.buyer_id = :userid OR transaction.seller_id = :userid " +
+					  "ORDER BY transaction.timestamp DESC, transaction.id DESC")
+					.addScalar("timestamp", StandardBasicTypes.TIMESTAMP)
+					.addScalar("buyer", StandardBasicTypes.STRING)
+					.addScalar("seller", StandardBasicTypes.STRING)
+					.addScalar("amount", StandardBasicTypes.BIG_DECIMAL)
+					.setLong("userid", userId)
+					.setFetchSize(Config.HISTORY_EXPORT_FETCH_SIZE)
+					.setReadOnly(true)
+					.scroll(ScrollMode.FORWARD_ONLY);
+		case PAY_IN_TRANSACTIONS:
+			return session.createSQLQuery(
+					  "SELECT pit.timestamp, pit.amount " +
+					  "FROM pay_in_transaction pit " +
+					  "WHERE pit.user_id = :userid " +
+					  "ORDER BY pit.timestamp DESC, pit.id DESC")
+					.addScalar("timestamp", StandardBasicTypes.TIMESTAMP)
+					.addScalar("amount", StandardBasicTypes.BIG_DECIMAL)
+					.setLong("userid", userId)
+					.setFetchSize(Config.HISTORY_EXPORT_FETCH_SIZE)
+					.setReadOnly(true)
+					.scroll(ScrollMode.FORWARD_ONLY);
+		default:
+			return session.createSQLQuery(
+					  "SELECT pot.timestamp, pot.btc_address as btcAddress, pot.amount " +
+					  "FROM pay_out_transaction pot " +
+					  "WHERE pot.user_id = :userid " +
+					  "ORDER BY pot.timestamp DESC, pot.id DESC")
+					.addScalar("timestamp", StandardBasicTypes.TIMESTAMP)
+					.addScalar("btcAddress", StandardBasicTypes.STRING)
+					.addScalar("amount", StandardBasicTypes.BIG_DECIMAL)
+					.setLong("userid", userId)
+					.setFetchSize(Config.HISTORY_EXPORT_FETCH_SIZE)
+					.setReadOnly(true)
+					.scroll(ScrollMode.FORWARD_ONLY);
+		}
+	}
+
+	private static String getHeader(int type) {
+		switch (type) {
+		case TRANSACTIONS:
+			return "timestamp, username buyer, username seller, amount";
+		case PAY_IN_TRANSACTIONS:
+			return "timestamp, amount";
+		default:
+			return "timestamp, address, amount";
+		}
+	}
+
+	/**
+	 * Writes the columns of a row separated by ", ". The columns are selected
+	 * in the order of the header of the corresponding type.
+	 */
+	private static void writeRow(Writer writer, Object[] row) throws IOException {
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0)
+				writer.write(", ");
+			writer.write(String.valueOf(row[i]));
+		}
+		writer.write("\n");
+	}
+
+	/**
+	 * {@link ByteArrayOutputStream} which allows reading the written bytes
+	 * without copying them.
+	 */
+	private static class ChunkBuffer extends ByteArrayOutputStream {
+		private int position;
+
+		private int available() {
+			return count - position;
+		}
+
+		private int read(byte[] b, int off, int len) {
+			int n = Math.min(len, available());
+			System.arraycopy(buf, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public synchronized void reset() {
+			super.reset();
+			position = 0;
+		}
+	}
+
+	/**
+	 * Pulls rows from the database whenever the compressed bytes buffered so
+	 * far have been read. The session is opened with the first read and closed
+	 * as soon as the last row has been read, or when the stream is closed.
+	 */
+	private static class GzipCsvInputStream extends InputStream {
+		private final long userId;
+		private final int type;
+		private final ChunkBuffer buffer = new ChunkBuffer();
+
+		private StatelessSession session;
+		private Transaction transaction;
+		private ScrollableResults results;
+		private Writer writer;
+		private boolean finished = false;
+
+		private GzipCsvInputStream(long userId, int type) {
+			this.userId = userId;
+			this.type = type;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return (n == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			while (buffer.available() == 0 && !finished)
+				fill();
+
+			if (buffer.available() == 0)
+				return -1;
+
+			return buffer.read(b, off, len);
+		}
+
+		private void fill() throws IOException {
+			buffer.reset();
+			try {
+				if (session == null) {
+					session = HibernateUtil.getReplicaSessionFactory().openStatelessSession();
+					//postgres only uses a cursor within a transaction
+					transaction = session.beginTransaction();
+					results = scroll(session, userId, type);
+					writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(buffer), CHARSET));
+					writer.write(getHeader(type) + "\n");
+				}
+
+				for (int i = 0; i < ROWS_PER_READ; i++) {
+					if (!results.next()) {
+						finished = true;
+						break;
+					}
+					writeRow(writer, results.get());
+				}
+			} catch (HibernateException e) {
+				LOGGER.error("Problem exporting history of UserAccount with id " + userId + ". ErrorMessage: " + e.getMessage());
+				finished = true;
+				closeSession();
+				throw new IOException(e);
+			}
+
+			if (finished) {
+				//writes the gzip trailer
+				writer.close();
+				closeSession();
+			} else {
+				writer.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			finished = true;
+			closeSession();
+		}
+
+		private void closeSession() {
+			if (session == null)
+				return;
+
+			try {
+				if (results != null)
+					results.close();
+				if (transaction != null)
+					transaction.commit();
+			} catch (HibernateException e) {
+				LOGGER.error("Problem closing history export. ErrorMessage: " + e.getMessage());
+			} finally {
+				session.close();
+				session = null;
+			}
+		}
+	}
+
+}
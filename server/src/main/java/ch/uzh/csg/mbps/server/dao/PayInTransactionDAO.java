@@ -1,21 +1,27 @@
 package ch.uzh.csg.mbps.server.dao;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.hibernate.HibernateException;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.transform.Transformers;
+import org.hibernate.type.StandardBasicTypes;
 
 import ch.uzh.csg.mbps.model.HistoryPayInTransaction;
+import ch.uzh.csg.mbps.server.domain.HistoryCounter;
 import ch.uzh.csg.mbps.server.domain.PayInTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
 import ch.uzh.csg.mbps.server.util.Config;
 import ch.uzh.csg.mbps.server.util.HibernateUtil;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 
 /**
@@ -27,8 +33,7 @@ public class PayInTransactionDAO {
 	private static Logger LOGGER = Logger.getLogger(PayInTransactionDAO.class);
 	
 	private static Session openSession() {
-		SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
-		return sessionFactory.openSession();
+		return HibernateUtil.openWriteSession();
 	}
 
 	/**
@@ -47,14 +52,16 @@ public class PayInTransactionDAO {
 			
 			session.save(tx);
 			
-			//update UserAccountBalance
-			UserAccount userAccount = UserAccountDAO.getById(tx.getUserID());
+			//update UserAccountBalance (row is locked until commit)
+			UserAccount userAccount = UserAccountDAO.getByIdForUpdate(session, tx.getUserID());
 			userAccount.setBalance(userAccount.getBalance().add(tx.getAmount()));
 			session.update(userAccount);
+			HistoryCounterDAO.incrementPayIns(session, tx.getUserID());
 			
 			transaction.commit();
+			UserAccountCache.invalidate(tx.getUserID());
 			LOGGER.info("PayTransaction created and balance for user with ID " + tx.getUserID() + " updated: " + tx.toString());
-		} catch (HibernateException e) {
+		} catch (HibernateException | UserAccountNotFoundException e) {
 			LOGGER.error("Problem creating PayInTransaction: " + tx.toString() + "ErrorMessage: " + e.getMessage());
 			if (transaction != null)
 				transaction.rollback();
@@ -72,10 +79,13 @@ public class PayInTransactionDAO {
 	 * @return boolean if PayInTransaction is new (not in DB yet).
 	 */
 	public static boolean isNew(PayInTransaction pit) {
-		Session session = openSession();
-		session.beginTransaction();
-		PayInTransaction existingPIT = (PayInTransaction) session.createCriteria(PayInTransaction.class).add(Restrictions.eq("userID", pit.getUserID())).add(Restrictions.eq("transactionID", pit.getTransactionID())).uniqueResult();
-		session.close();
+		Session session = HibernateUtil.openReadSession();
+		PayInTransaction existingPIT;
+		try {
+			existingPIT = (PayInTransaction) session.createCriteria(PayInTransaction.class).add(Restrictions.eq("userID", pit.getUserID())).add(Restrictions.eq("transactionID", pit.getTransactionID())).uniqueResult();
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
 	
 		if (existingPIT == null)
 			return true;
@@ -98,30 +108,104 @@ public class PayInTransactionDAO {
 			return null;
 		
 		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
-		Session session = openSession();
-		session.beginTransaction();
-				
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistory(session, userAccount.getId(), page);
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Reads the given page of {@link PayInTransaction}s of the UserAccount with
+	 * the given id within the given session.
+	 */
+	static ArrayList<HistoryPayInTransaction> getHistory(Session session, long userId, int page) {
 		@SuppressWarnings("unchecked")
 		List<HistoryPayInTransaction> resultWithAliasedBean = session.createSQLQuery(
 				  "SELECT pit.timestamp, pit.amount " +
 				  "FROM pay_in_transaction pit " +
 				  "WHERE pit.user_id = :userid " +
-				  "ORDER BY pit.timestamp DESC")
+				  "ORDER BY pit.timestamp DESC, pit.id DESC")
 				  .addScalar("timestamp")
 				  .addScalar("amount")
-				  .setLong("userid",  userAccount.getId())
+				  .setLong("userid", userId)
 				  .setFirstResult(page * Config.PAY_INS_MAX_RESULTS)
 				  .setMaxResults(Config.PAY_INS_MAX_RESULTS)
 				  .setFetchSize(Config.PAY_INS_MAX_RESULTS)
 				  .setResultTransformer(Transformers.aliasToBean(HistoryPayInTransaction.class))
 				  .list();
 		
-		List<HistoryPayInTransaction> results = resultWithAliasedBean;
-		session.close();
-		
-		return new ArrayList<HistoryPayInTransaction>(results);
+		return new ArrayList<HistoryPayInTransaction>(resultWithAliasedBean);
 	}
 	
+	/**
+	 * Returns the next page of {@link PayInTransaction}s assigned to the given
+	 * username, starting after the entry the cursor points to. The page size
+	 * is defined in the Config-File. The entries are ordered by their
+	 * timestamp (and id) descending.
+	 * 
+	 * @param username
+	 * @param cursor pointing to the last entry of the previous page or null for the first page
+	 * @return HistoryPage with the HistoryPayInTransactions and the cursor for the next page
+	 * @throws UserAccountNotFoundException
+	 */
+	public static HistoryPage<HistoryPayInTransaction> getHistory(String username, HistoryCursor cursor) throws UserAccountNotFoundException {
+		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistory(session, userAccount.getId(), cursor);
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Reads the page of {@link PayInTransaction}s of the UserAccount with the
+	 * given id which follows the cursor within the given session.
+	 */
+	static HistoryPage<HistoryPayInTransaction> getHistory(Session session, long userId, HistoryCursor cursor) {
+		int limit = Config.PAY_INS_MAX_RESULTS + 1;
+		
+		SQLQuery query = session.createSQLQuery(
+				  "SELECT pit.id, pit.timestamp, pit.amount " +
+				  "FROM pay_in_transaction pit " +
+				  "WHERE pit.user_id = :userid " +
+				  ((cursor == null) ? "" : "AND (pit.timestamp, pit.id) < (:timestamp, :id) ") +
+				  "ORDER BY pit.timestamp DESC, pit.id DESC");
+		query.addScalar("id", StandardBasicTypes.LONG)
+			 .addScalar("timestamp", StandardBasicTypes.TIMESTAMP)
+			 .addScalar("amount", StandardBasicTypes.BIG_DECIMAL)
+			 .setLong("userid", userId)
+			 .setMaxResults(limit)
+			 .setFetchSize(limit);
+		if (cursor != null) {
+			query.setTimestamp("timestamp", cursor.getTimestamp());
+			query.setLong("id", cursor.getId());
+		}
+		
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = query.list();
+		
+		int size = Math.min(rows.size(), Config.PAY_INS_MAX_RESULTS);
+		ArrayList<HistoryPayInTransaction> results = new ArrayList<HistoryPayInTransaction>(size);
+		for (int i = 0; i < size; i++) {
+			Object[] row = rows.get(i);
+			HistoryPayInTransaction hpit = new HistoryPayInTransaction();
+			hpit.setTimestamp((Date) row[1]);
+			hpit.setAmount((BigDecimal) row[2]);
+			results.add(hpit);
+		}
+		
+		HistoryCursor nextCursor = null;
+		if (rows.size() > size) {
+			Object[] last = rows.get(size - 1);
+			nextCursor = new HistoryCursor((Date) last[1], (Long) last[0]);
+		}
+		
+		return new HistoryPage<HistoryPayInTransaction>(results, nextCursor);
+	}
+
 	/**
 	 * Counts number of {@link PayInTransaction}-entries for given username and returns
 	 * number as long.
@@ -132,18 +216,29 @@ public class PayInTransactionDAO {
 	 */
 	public static long getHistoryCount(String username) throws UserAccountNotFoundException {
 		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
-		Session session = openSession();
-		session.beginTransaction();
-				
-		long nofResults = ((Number) session.createSQLQuery(
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistoryCount(session, userAccount.getId(), HistoryCounterDAO.get(session, userAccount.getId()));
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Returns the number of {@link PayInTransaction}s of the UserAccount with the
+	 * given id. Uses the given {@link HistoryCounter} if available, otherwise
+	 * the entries are counted within the given session.
+	 */
+	static long getHistoryCount(Session session, long userId, HistoryCounter counter) {
+		if (counter != null)
+			return counter.getPayInCount();
+		
+		return ((Number) session.createSQLQuery(
 				  "SELECT COUNT(*) " +
 				  "FROM pay_in_transaction pit " +
 				  "WHERE pit.user_id = :userid")
-				  .setLong("userid", userAccount.getId())
+				  .setLong("userid", userId)
 				  .uniqueResult())
 				  .longValue();
-		session.close();
-		
-		return nofResults;
 	}
 }
@@ -1,17 +1,19 @@
 package ch.uzh.csg.mbps.server.dao;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.type.StandardBasicTypes;
 
 import ch.uzh.csg.mbps.server.domain.PayOutRule;
+import ch.uzh.csg.mbps.server.domain.PayOutTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.util.Config;
 import ch.uzh.csg.mbps.server.util.HibernateUtil;
-import ch.uzh.csg.mbps.server.util.exceptions.PayOutRuleNotFoundException;
 
 /**
  * DatabaseAccessObject for {@link PayOutRule}s. Handles all DB operations
@@ -21,8 +23,7 @@ import ch.uzh.csg.mbps.server.util.exceptions.PayOutRuleNotFoundException;
 public class PayOutRuleDAO {
 	
 	private static Session openSession() {
-		SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
-		return sessionFactory.openSession();
+		return HibernateUtil.openWriteSession();
 	}
 	
 	private static PayOutRule transform(ch.uzh.csg.mbps.model.PayOutRule por) {
@@ -57,29 +58,83 @@ public class PayOutRuleDAO {
 		} finally {
 			session.close();
 		}
+		for (ch.uzh.csg.mbps.model.PayOutRule por : list) {
+			PayOutRuleIndex.invalidate(por.getUserId());
+		}
 	}
 	
 	/**
-	 * Returns ArrayList with all {@link PayOutRule}s assigned to given userId. Throws
-	 * {@link PayOutRuleNotFoundException} if no {@link PayOutRule}s are assigned to given
-	 * {@link UserAccount}.
+	 * Returns ArrayList with all {@link PayOutRule}s assigned to given userId.
+	 * The rules are read from the {@link PayOutRuleIndex} and only loaded from
+	 * the database if they are not indexed yet.
 	 * 
 	 * @param userId
-	 * @return ArrayList<PayOutRule>
-	 * @throws PayOutRuleNotFoundException
+	 * @return ArrayList<PayOutRule>, empty if no rules are assigned to the
+	 *         {@link UserAccount}
 	 */
 	@SuppressWarnings("unchecked")
-	public static ArrayList<PayOutRule> getByUserId(long userId) throws PayOutRuleNotFoundException {
-		Session session = openSession();
-		session.beginTransaction();
-		ArrayList<PayOutRule> por = (ArrayList<PayOutRule>) session.createCriteria(PayOutRule.class).add(Restrictions.eq("userId", userId)).list();
+	public static ArrayList<PayOutRule> getByUserId(long userId) {
+		List<PayOutRule> indexed = PayOutRuleIndex.getUser(userId);
+		if (indexed != null)
+			return new ArrayList<PayOutRule>(indexed);
+
+		long stamp = PayOutRuleIndex.beginLoad();
+		Session session = HibernateUtil.openReadSession();
+		List<PayOutRule> por;
+		try {
+			por = (List<PayOutRule>) session.createCriteria(PayOutRule.class).add(Restrictions.eq("userId", userId)).list();
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
 		
-		session.close();
-	
-		if(por == null || por.isEmpty())
-			throw new PayOutRuleNotFoundException();
+		PayOutRuleIndex.putUser(stamp, userId, por);
+		return new ArrayList<PayOutRule>(por);
+	}
+
+	/**
+	 * Returns true if at least one {@link PayOutRule} with a balance limit is
+	 * assigned to given userId. The rules are read from the
+	 * {@link PayOutRuleIndex}, so this is cheap enough to be called for every
+	 * transaction.
+	 * 
+	 * @param userId
+	 * @return true if a balance limit rule exists
+	 */
+	public static boolean hasBalanceLimitRule(long userId) {
+		for (PayOutRule rule : getByUserId(userId)) {
+			if (rule.getBalanceLimit() != null)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Loads all {@link PayOutRule}s with one query and replaces the
+	 * {@link PayOutRuleIndex} with them. Called at startup and by the hourly
+	 * job, so reads afterwards don't hit the database.
+	 * 
+	 * @return number of loaded PayOutRules, or -1 if rules have been changed
+	 *         while loading and the index has not been replaced
+	 */
+	@SuppressWarnings("unchecked")
+	public static int preload() {
+		long stamp = PayOutRuleIndex.beginLoad();
+		Session session = HibernateUtil.openReadSession();
+		List<PayOutRule> por;
+		try {
+			por = (List<PayOutRule>) session.createCriteria(PayOutRule.class).list();
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
 		
-		return por;
+		return PayOutRuleIndex.load(stamp, por) ? por.size() : -1;
+	}
+
+	/**
+	 * Returns statistics about the {@link PayOutRuleIndex} for logging.
+	 */
+	public static String getIndexStatistics() {
+		return PayOutRuleIndex.getStatistics();
 	}
 
 	/**
@@ -96,29 +151,79 @@ public class PayOutRuleDAO {
 		session.createQuery(hql).setLong("userId", userId).executeUpdate();
 		tx.commit();
 		session.close();
+		PayOutRuleIndex.invalidate(userId);
 	}
 
 	/**
 	 * Returns a list with all {@link PayOutRule}s which define a {@link PayOutRule} for defined
-	 * hour and day. Throws {@link PayOutRuleNotFoundException} if no rule is defined
-	 * for defined hour and time.
+	 * hour and day. The rules are read from the {@link PayOutRuleIndex} and only
+	 * loaded from the database if they are not indexed yet.
 	 * 
 	 * @param hour of day (0-23)
 	 * @param day of week (SO 1 -SA 7)
-	 * @return List<PayOutRule>
-	 * @throws PayOutRuleNotFoundException
+	 * @return List<PayOutRule>, empty if no rule is defined for defined hour and day
 	 */
 	@SuppressWarnings("unchecked")
-	public static List<PayOutRule> get(int hour, int day) throws PayOutRuleNotFoundException {
-		Session session = openSession();
-		session.beginTransaction();
-		List<PayOutRule> por = (List<PayOutRule>) session.createCriteria(PayOutRule.class).add(Restrictions.eq("hour", hour)).add(Restrictions.eq("day", day)).list();
+	public static List<PayOutRule> get(int hour, int day) {
+		List<PayOutRule> indexed = PayOutRuleIndex.getSlot(hour, day);
+		if (indexed != null)
+			return new ArrayList<PayOutRule>(indexed);
+
+		long stamp = PayOutRuleIndex.beginLoad();
+		Session session = HibernateUtil.openReadSession();
+		List<PayOutRule> por;
+		try {
+			por = (List<PayOutRule>) session.createCriteria(PayOutRule.class).add(Restrictions.eq("hour", hour)).add(Restrictions.eq("day", day)).list();
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
 		
-		session.close();
+		PayOutRuleIndex.putSlot(stamp, hour, day, por);
+		return new ArrayList<PayOutRule>(por);
+	}
+
+	/**
+	 * Returns one new {@link PayOutTransaction} for every UserAccount which
+	 * has a {@link PayOutRule} for the defined hour and day and a balance
+	 * higher than the transaction fee. The rules and balances are read with
+	 * one query, if a UserAccount has several rules for this hour, the first
+	 * one is used. The amount of the PayOutTransactions is the balance minus
+	 * the transaction fee.
+	 * 
+	 * @param hour of day (0-23)
+	 * @param day of week (SO 1 -SA 7)
+	 * @return List<PayOutTransaction>, empty if no PayOut is due
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<PayOutTransaction> getDuePayOuts(int hour, int day) {
+		Session session = HibernateUtil.openReadSession();
+		List<Object[]> rows;
+		try {
+			rows = session.createSQLQuery(
+					  "SELECT DISTINCT ON (r.user_id) r.user_id as userId, r.payout_address as btcAddress, u.balance " +
+					  "FROM payout_rules r " +
+					  "INNER JOIN user_account u on r.user_id = u.id " +
+					  "WHERE r.hour = :hour AND r.day = :day AND u.deleted = false AND u.balance > :fee " +
+					  "ORDER BY r.user_id, r.id")
+					.addScalar("userId", StandardBasicTypes.LONG)
+					.addScalar("btcAddress", StandardBasicTypes.STRING)
+					.addScalar("balance", StandardBasicTypes.BIG_DECIMAL)
+					.setInteger("hour", hour)
+					.setInteger("day", day)
+					.setBigDecimal("fee", Config.TRANSACTION_FEE)
+					.list();
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
 		
-		if (por == null || por.isEmpty())
-			throw new PayOutRuleNotFoundException();
-			
-		return por;
+		List<PayOutTransaction> payOuts = new ArrayList<PayOutTransaction>(rows.size());
+		for (Object[] row : rows) {
+			PayOutTransaction pot = new PayOutTransaction();
+			pot.setUserID((Long) row[0]);
+			pot.setBtcAddress((String) row[1]);
+			pot.setAmount(((BigDecimal) row[2]).subtract(Config.TRANSACTION_FEE));
+			payOuts.add(pot);
+		}
+		return payOuts;
 	}
 }
@@ -0,0 +1,158 @@
+package ch.uzh.csg.mbps.server.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.uzh.csg.mbps.server.domain.PayOutRule;
+
+/**
+ * In-memory index of the {@link PayOutRule}s per UserAccount and per
+ * (day, hour) slot, used by the {@link PayOutRuleDAO} so the rules are not
+ * loaded from the database on every payment or every hour. UserAccounts and
+ * slots without rules are indexed with an empty list. The indexed lists are
+ * unmodifiable.
+ *
+ * The index is filled by {@link #load(long, List)} at startup and read-through
+ * afterwards. Every write to the PayOutRules of a UserAccount has to call
+ * {@link #invalidate(long)} after the commit, which removes the rules of the
+ * UserAccount and all slots. Loads which started before an invalidation are
+ * not indexed (see {@link #beginLoad()}), so a concurrent read cannot put
+ * outdated rules back into the index.
+ */
+class PayOutRuleIndex {
+	private static final ConcurrentMap<Long, List<PayOutRule>> BY_USER = new ConcurrentHashMap<Long, List<PayOutRule>>();
+	private static final ConcurrentMap<Integer, List<PayOutRule>> BY_SLOT = new ConcurrentHashMap<Integer, List<PayOutRule>>();
+
+	private static final AtomicLong EPOCH = new AtomicLong();
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+
+	private PayOutRuleIndex() {
+	}
+
+	/**
+	 * Has to be called before loading PayOutRules from the database. The
+	 * returned stamp is passed to the put and load methods.
+	 */
+	static long beginLoad() {
+		return EPOCH.get();
+	}
+
+	/**
+	 * Indexes the PayOutRules of the given UserAccount, unless rules have been
+	 * invalidated since the stamp has been taken.
+	 */
+	static synchronized void putUser(long stamp, long userId, List<PayOutRule> rules) {
+		if (stamp == EPOCH.get())
+			BY_USER.put(userId, unmodifiable(rules));
+	}
+
+	/**
+	 * Indexes the PayOutRules of the given slot, unless rules have been
+	 * invalidated since the stamp has been taken.
+	 */
+	static synchronized void putSlot(long stamp, int hour, int day, List<PayOutRule> rules) {
+		if (stamp == EPOCH.get())
+			BY_SLOT.put(slotKey(hour, day), unmodifiable(rules));
+	}
+
+	/**
+	 * Replaces the whole index with the given PayOutRules, unless rules have
+	 * been invalidated since the stamp has been taken. Indexed UserAccounts
+	 * which have no rules anymore are indexed with an empty list.
+	 *
+	 * @return true if the rules have been indexed
+	 */
+	static synchronized boolean load(long stamp, List<PayOutRule> allRules) {
+		if (stamp != EPOCH.get())
+			return false;
+
+		Map<Long, List<PayOutRule>> byUser = new HashMap<Long, List<PayOutRule>>();
+		Map<Integer, List<PayOutRule>> bySlot = new HashMap<Integer, List<PayOutRule>>();
+		for (PayOutRule rule : allRules) {
+			add(byUser, rule.getUserId(), rule);
+			add(bySlot, slotKey(rule.getHour(), rule.getDay()), rule);
+		}
+
+		for (Long userId : BY_USER.keySet()) {
+			if (!byUser.containsKey(userId))
+				BY_USER.put(userId, Collections.<PayOutRule> emptyList());
+		}
+		for (Map.Entry<Long, List<PayOutRule>> entry : byUser.entrySet()) {
+			BY_USER.put(entry.getKey(), unmodifiable(entry.getValue()));
+		}
+
+		BY_SLOT.clear();
+		for (int day = 1; day <= 7; day++) {
+			for (int hour = 0; hour < 24; hour++) {
+				List<PayOutRule> rules = bySlot.get(slotKey(hour, day));
+				BY_SLOT.put(slotKey(hour, day), rules == null ? Collections.<PayOutRule> emptyList() : unmodifiable(rules));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the indexed PayOutRules of the given UserAccount, or null if
+	 * they are not indexed.
+	 */
+	static List<PayOutRule> getUser(long userId) {
+		return count(BY_USER.get(userId));
+	}
+
+	/**
+	 * Returns the indexed PayOutRules of the given slot, or null if they are
+	 * not indexed.
+	 */
+	static List<PayOutRule> getSlot(int hour, int day) {
+		return count(BY_SLOT.get(slotKey(hour, day)));
+	}
+
+	static synchronized void invalidate(long userId) {
+		EPOCH.incrementAndGet();
+		BY_USER.remove(userId);
+		BY_SLOT.clear();
+	}
+
+	static synchronized void clear() {
+		EPOCH.incrementAndGet();
+		BY_USER.clear();
+		BY_SLOT.clear();
+	}
+
+	static String getStatistics() {
+		return "users: " + BY_USER.size() + " slots: " + BY_SLOT.size() + " hits: " + HITS.get() + " misses: " + MISSES.get();
+	}
+
+	private static int slotKey(int hour, int day) {
+		return day * 24 + hour;
+	}
+
+	private static List<PayOutRule> count(List<PayOutRule> rules) {
+		if (rules == null)
+			MISSES.incrementAndGet();
+		else
+			HITS.incrementAndGet();
+		return rules;
+	}
+
+	private static <K> void add(Map<K, List<PayOutRule>> map, K key, PayOutRule rule) {
+		List<PayOutRule> rules = map.get(key);
+		if (rules == null) {
+			rules = new ArrayList<PayOutRule>();
+			map.put(key, rules);
+		}
+		rules.add(rule);
+	}
+
+	private static List<PayOutRule> unmodifiable(List<PayOutRule> rules) {
+		return Collections.unmodifiableList(new ArrayList<PayOutRule>(rules));
+	}
+
+}
@@ -1,21 +1,30 @@
 package ch.uzh.csg.mbps.server.dao;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.hibernate.HibernateException;
+import org.hibernate.LockOptions;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
-import org.hibernate.criterion.Restrictions;
 import org.hibernate.transform.Transformers;
+import org.hibernate.type.StandardBasicTypes;
 
 import ch.uzh.csg.mbps.model.HistoryPayOutTransaction;
+import ch.uzh.csg.mbps.server.domain.HistoryCounter;
 import ch.uzh.csg.mbps.server.domain.PayOutTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
 import ch.uzh.csg.mbps.server.util.Config;
 import ch.uzh.csg.mbps.server.util.HibernateUtil;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
+import ch.uzh.csg.mbps.server.util.exceptions.InsufficientBalanceException;
 import ch.uzh.csg.mbps.server.util.exceptions.TransactionException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 
@@ -28,8 +37,7 @@ public class PayOutTransactionDAO {
 	private static Logger LOGGER = Logger.getLogger(PayOutTransactionDAO.class);
 	
 	private static Session openSession() {
-		SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
-		return sessionFactory.openSession();
+		return HibernateUtil.openWriteSession();
 	}
 	
 	/**
@@ -47,29 +55,105 @@ public class PayOutTransactionDAO {
 			return null;
 		
 		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
-		Session session = openSession();
-		session.beginTransaction();
-				
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistory(session, userAccount.getId(), page);
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Reads the given page of {@link PayOutTransaction}s of the UserAccount with
+	 * the given id within the given session.
+	 */
+	static ArrayList<HistoryPayOutTransaction> getHistory(Session session, long userId, int page) {
 		@SuppressWarnings("unchecked")
 		List<HistoryPayOutTransaction> resultWithAliasedBean = session.createSQLQuery(
 				  "SELECT pot.timestamp, pot.amount, pot.btc_address as btcAddress " +
 				  "FROM pay_out_transaction pot " +
 				  "WHERE pot.user_id = :userid " +
-				  "ORDER BY pot.timestamp DESC")
+				  "ORDER BY pot.timestamp DESC, pot.id DESC")
 				  .addScalar("timestamp")
 				  .addScalar("amount")
 				  .addScalar("btcAddress")
-				  .setLong("userid",  userAccount.getId())
+				  .setLong("userid", userId)
 				  .setFirstResult(page * Config.PAY_OUTS_MAX_RESULTS)
 				  .setMaxResults(Config.PAY_OUTS_MAX_RESULTS)
 				  .setFetchSize(Config.PAY_OUTS_MAX_RESULTS)
 				  .setResultTransformer(Transformers.aliasToBean(HistoryPayOutTransaction.class))
 				  .list();
 		
-		List<HistoryPayOutTransaction> results = resultWithAliasedBean;
-		session.close();
+		return new ArrayList<HistoryPayOutTransaction>(resultWithAliasedBean);
+	}
+	
+	/**
+	 * Returns the next page of {@link PayOutTransaction}s assigned to the given
+	 * username, starting after the entry the cursor points to. The page size
+	 * is defined in the Config-File. The entries are ordered by their
+	 * timestamp (and id) descending.
+	 * 
+	 * @param username for which UserAccount history is requested
+	 * @param cursor pointing to the last entry of the previous page or null for the first page
+	 * @return HistoryPage with the HistoryPayOutTransactions and the cursor for the next page
+	 * @throws UserAccountNotFoundException
+	 */
+	public static HistoryPage<HistoryPayOutTransaction> getHistory(String username, HistoryCursor cursor) throws UserAccountNotFoundException {
+		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistory(session, userAccount.getId(), cursor);
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Reads the page of {@link PayOutTransaction}s of the UserAccount with the
+	 * given id which follows the cursor within the given session.
+	 */
+	static HistoryPage<HistoryPayOutTransaction> getHistory(Session session, long userId, HistoryCursor cursor) {
+		int limit = Config.PAY_OUTS_MAX_RESULTS + 1;
+		
+		SQLQuery query = session.createSQLQuery(
+				  "SELECT pot.id, pot.timestamp, pot.amount, pot.btc_address as btcAddress " +
+				  "FROM pay_out_transaction pot " +
+				  "WHERE pot.user_id = :userid " +
+				  ((cursor == null) ? "" : "AND (pot.timestamp, pot.id) < (:timestamp, :id) ") +
+				  "ORDER BY pot.timestamp DESC, pot.id DESC");
+		query.addScalar("id", StandardBasicTypes.LONG)
+			 .addScalar("timestamp", StandardBasicTypes.TIMESTAMP)
+			 .addScalar("amount", StandardBasicTypes.BIG_DECIMAL)
+			 .addScalar("btcAddress", StandardBasicTypes.STRING)
+			 .setLong("userid", userId)
+			 .setMaxResults(limit)
+			 .setFetchSize(limit);
+		if (cursor != null) {
+			query.setTimestamp("timestamp", cursor.getTimestamp());
+			query.setLong("id", cursor.getId());
+		}
+		
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = query.list();
+		
+		int size = Math.min(rows.size(), Config.PAY_OUTS_MAX_RESULTS);
+		ArrayList<HistoryPayOutTransaction> results = new ArrayList<HistoryPayOutTransaction>(size);
+		for (int i = 0; i < size; i++) {
+			Object[] row = rows.get(i);
+			HistoryPayOutTransaction hpot = new HistoryPayOutTransaction();
+			hpot.setTimestamp((Date) row[1]);
+			hpot.setAmount((BigDecimal) row[2]);
+			hpot.setBtcAddress((String) row[3]);
+			results.add(hpot);
+		}
+		
+		HistoryCursor nextCursor = null;
+		if (rows.size() > size) {
+			Object[] last = rows.get(size - 1);
+			nextCursor = new HistoryCursor((Date) last[1], (Long) last[0]);
+		}
 		
-		return new ArrayList<HistoryPayOutTransaction>(results);
+		return new HistoryPage<HistoryPayOutTransaction>(results, nextCursor);
 	}
 
 	/**
@@ -82,24 +166,37 @@ public class PayOutTransactionDAO {
 	 */
 	public static long getHistoryCount(String username) throws UserAccountNotFoundException {
 		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
-		Session session = openSession();
-		session.beginTransaction();
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistoryCount(session, userAccount.getId(), HistoryCounterDAO.get(session, userAccount.getId()));
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Returns the number of {@link PayOutTransaction}s of the UserAccount with the
+	 * given id. Uses the given {@link HistoryCounter} if available, otherwise
+	 * the entries are counted within the given session.
+	 */
+	static long getHistoryCount(Session session, long userId, HistoryCounter counter) {
+		if (counter != null)
+			return counter.getPayOutCount();
 		
-		long nofResults = ((Number) session.createSQLQuery(
+		return ((Number) session.createSQLQuery(
 				  "SELECT COUNT(*) " +
 				  "FROM pay_out_transaction pot " +
 				  "WHERE pot.user_id = :userid")
-				  .setLong("userid", userAccount.getId())
+				  .setLong("userid", userId)
 				  .uniqueResult())
 				  .longValue();
-
-		session.close();
-		
-		return nofResults;
 	}
 
 	/**
-	 * Saves a new {@link PayOutTransaction} in the database.
+	 * Saves a new {@link PayOutTransaction} whose Bitcoins have already been
+	 * sent in the database and debits its amount without checking the
+	 * balance. PayOuts which are still to be sent have to be reserved with
+	 * {@link #reservePayOutTransaction(PayOutTransaction)}.
 	 * 
 	 * @param pot PayOutTransaction to save
 	 * @throws UserAccountNotFoundException if defined UserAccount is not found
@@ -114,12 +211,14 @@ public class PayOutTransactionDAO {
 			
 			session.save(pot);
 			
-			//update UserAccountBalance
-			userAccount = UserAccountDAO.getById(pot.getUserID());
+			//update UserAccountBalance (row is locked until commit)
+			userAccount = UserAccountDAO.getByIdForUpdate(session, pot.getUserID());
 			userAccount.setBalance(userAccount.getBalance().subtract(pot.getAmount()));
 			session.update(userAccount);
+			HistoryCounterDAO.incrementPayOuts(session, pot.getUserID());
 			
 			transaction.commit();
+			UserAccountCache.invalidate(pot.getUserID());
 			LOGGER.info("PayOutTransaction created for UserAccount with ID: " + userAccount.getId() + " Transaction: " + pot.toString());
 		} catch (HibernateException e) {
 			LOGGER.error("Error creating PayOutTransaction: " + pot.toString() + "ErrorMessage: " + e.getMessage());
@@ -127,6 +226,8 @@ public class PayOutTransactionDAO {
 				transaction.rollback();
 			throw e;
 		} catch (UserAccountNotFoundException e) {
+			if (transaction != null)
+				transaction.rollback();
 			throw e;
 		} finally {
 			session.close();
@@ -134,40 +235,257 @@ public class PayOutTransactionDAO {
 	}
 
 	/**
-	 * Verifies a {@link PayOutTransaction} in the DB.
+	 * Saves a pending {@link PayOutTransaction} (without transaction id) and
+	 * debits its amount from the locked UserAccount, before the Bitcoins are
+	 * sent. Afterwards either {@link #setTransactionID(List, String)} or
+	 * {@link #cancelPayOutTransactions(List)} has to be called.
 	 * 
-	 * @param pot PayOutTransation to be verified.
-	 * @throws TransactionException if PayOutTransaction with specified TransactionId does not exist in the database.
+	 * @param pot PayOutTransaction including the fee
+	 * @throws UserAccountNotFoundException if defined UserAccount is not found
+	 * @throws InsufficientBalanceException if the balance is lower than the amount
 	 * @throws HibernateException
 	 */
-	public static void verify(PayOutTransaction pot) throws TransactionException, HibernateException {
+	public static void reservePayOutTransaction(PayOutTransaction pot) throws UserAccountNotFoundException, InsufficientBalanceException, HibernateException {
 		Session session = openSession();
-		session.beginTransaction();
-		PayOutTransaction existingPOT = (PayOutTransaction) session.createCriteria(PayOutTransaction.class).add(Restrictions.eq("transactionID", pot.getTransactionID())).uniqueResult();
-		session.close();
-
-		if(existingPOT == null){
-			throw new TransactionException("The transaction does not exists.");
+		org.hibernate.Transaction transaction = null;
+		try {
+			transaction = session.beginTransaction();
+			
+			UserAccount userAccount = UserAccountDAO.getByIdForUpdate(session, pot.getUserID());
+			if (userAccount.getBalance().compareTo(pot.getAmount()) < 0)
+				throw new InsufficientBalanceException(pot.getUserID());
+			
+			userAccount.setBalance(userAccount.getBalance().subtract(pot.getAmount()));
+			pot.setTransactionID(null);
+			session.save(pot);
+			HistoryCounterDAO.incrementPayOuts(session, pot.getUserID());
+			
+			transaction.commit();
+			UserAccountCache.invalidate(pot.getUserID());
+			LOGGER.info("PayOutTransaction reserved for UserAccount with ID: " + pot.getUserID() + " Transaction: " + pot.toString());
+		} catch (HibernateException | UserAccountNotFoundException | InsufficientBalanceException e) {
+			if (transaction != null)
+				transaction.rollback();
+			throw e;
+		} finally {
+			session.close();
 		}
+	}
+
+	/**
+	 * Saves pending {@link PayOutTransaction}s (without transaction id) of the
+	 * PayOutRules and debits the complete balance of every UserAccount within
+	 * one database transaction, before the Bitcoins are sent. The amount of
+	 * every PayOutTransaction is set to the balance of the locked UserAccount
+	 * (including the fee). PayOuts of UserAccounts which do not exist anymore
+	 * or whose balance does not cover the fee anymore are left out. The
+	 * UserAccount rows are locked in the order of their ids. Afterwards either
+	 * {@link #setTransactionID(List, String)} or
+	 * {@link #cancelPayOutTransactions(List)} has to be called.
+	 * 
+	 * @param pots PayOutTransactions to be sent together
+	 * @return the saved PayOutTransactions
+	 * @throws HibernateException
+	 */
+	public static List<PayOutTransaction> reservePayOutTransactions(List<PayOutTransaction> pots) throws HibernateException {
+		List<PayOutTransaction> sorted = sortByUserId(pots);
+		List<PayOutTransaction> reserved = new ArrayList<PayOutTransaction>(sorted.size());
+		
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+		try {
+			transaction = session.beginTransaction();
+			for (PayOutTransaction pot : sorted) {
+				UserAccount userAccount;
+				try {
+					userAccount = UserAccountDAO.getByIdForUpdate(session, pot.getUserID());
+				} catch (UserAccountNotFoundException e) {
+					continue;
+				}
+				if (userAccount.getBalance().compareTo(Config.TRANSACTION_FEE) <= 0)
+					continue;
 				
-		if(!existingPOT.isVerified()){
-			existingPOT.setVerified(true);
-			Session session2 = openSession();
-			org.hibernate.Transaction transaction = null;			
+				pot.setAmount(userAccount.getBalance());
+				pot.setTransactionID(null);
+				userAccount.setBalance(BigDecimal.ZERO);
+				session.save(pot);
+				HistoryCounterDAO.incrementPayOuts(session, pot.getUserID());
+				reserved.add(pot);
+			}
+			transaction.commit();
+			for (PayOutTransaction pot : reserved) {
+				UserAccountCache.invalidate(pot.getUserID());
+			}
+			LOGGER.info(reserved.size() + " PayOutTransactions reserved.");
+			return reserved;
+		} catch (HibernateException e) {
+			LOGGER.error("Error reserving PayOutTransactions. ErrorMessage: " + e.getMessage());
+			if (transaction != null)
+				transaction.rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Sets the transaction id of the given pending
+	 * {@link PayOutTransaction}s after their Bitcoins have been sent.
+	 * 
+	 * @param pots reserved PayOutTransactions
+	 * @param transactionID of the Bitcoin transaction
+	 * @throws HibernateException
+	 */
+	public static void setTransactionID(List<PayOutTransaction> pots, String transactionID) throws HibernateException {
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+		try {
+			transaction = session.beginTransaction();
+			session.createQuery(
+					"UPDATE PAY_OUT_TRANSACTION SET transactionID = :transactionId " +
+					"WHERE id IN (:ids) AND transactionID IS NULL")
+					.setString("transactionId", transactionID)
+					.setParameterList("ids", getIds(pots))
+					.executeUpdate();
+			transaction.commit();
+			for (PayOutTransaction pot : pots) {
+				pot.setTransactionID(transactionID);
+			}
+			LOGGER.info(pots.size() + " PayOutTransactions sent with TransactionID: " + transactionID);
+		} catch (HibernateException e) {
+			LOGGER.error("Error setting TransactionID " + transactionID + " of PayOutTransactions. ErrorMessage: " + e.getMessage());
+			if (transaction != null)
+				transaction.rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Deletes the given pending {@link PayOutTransaction}s, whose Bitcoins
+	 * could not be sent, and refunds their amounts to the UserAccounts.
+	 * 
+	 * @param pots reserved PayOutTransactions
+	 * @throws HibernateException
+	 */
+	public static void cancelPayOutTransactions(List<PayOutTransaction> pots) throws HibernateException {
+		List<PayOutTransaction> sorted = sortByUserId(pots);
 		
-			try {
-				transaction = session2.beginTransaction();
-				session2.update(existingPOT);
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+		try {
+			transaction = session.beginTransaction();
+			for (PayOutTransaction pot : sorted) {
+				int deleted = session.createQuery(
+						"DELETE FROM PAY_OUT_TRANSACTION WHERE id = :id AND transactionID IS NULL")
+						.setLong("id", pot.getId())
+						.executeUpdate();
+				if (deleted == 0)
+					continue;
+				
+				//the account may have been deleted meanwhile, the amount has to be refunded anyway
+				UserAccount userAccount = (UserAccount) session.get(UserAccount.class, new Long(pot.getUserID()), LockOptions.UPGRADE);
+				if (userAccount != null)
+					userAccount.setBalance(userAccount.getBalance().add(pot.getAmount()));
+				HistoryCounterDAO.decrementPayOuts(session, pot.getUserID());
+			}
+			transaction.commit();
+			for (PayOutTransaction pot : sorted) {
+				UserAccountCache.invalidate(pot.getUserID());
+			}
+			LOGGER.info(sorted.size() + " PayOutTransactions cancelled and refunded.");
+		} catch (HibernateException e) {
+			LOGGER.error("Error cancelling PayOutTransactions. ErrorMessage: " + e.getMessage());
+			if (transaction != null)
+				transaction.rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Returns the pending {@link PayOutTransaction}s, which have been reserved
+	 * but have no transaction id. Outside of a running PayOut they have to be
+	 * reconciled with the wallet: either the Bitcoins have been sent and the
+	 * transaction id is missing, or they have not been sent and the amount has
+	 * to be refunded.
+	 * 
+	 * @return pending PayOutTransactions, oldest first
+	 */
+	public static List<PayOutTransaction> getPending() {
+		Session session = HibernateUtil.openReadSession();
+		try {
+			@SuppressWarnings("unchecked")
+			List<PayOutTransaction> pending = session.createQuery(
+					"FROM PAY_OUT_TRANSACTION WHERE transactionID IS NULL ORDER BY timestamp, id")
+					.list();
+			return pending;
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+
+	private static List<PayOutTransaction> sortByUserId(List<PayOutTransaction> pots) {
+		List<PayOutTransaction> sorted = new ArrayList<PayOutTransaction>(pots);
+		Collections.sort(sorted, new Comparator<PayOutTransaction>() {
+			@Override
+			public int compare(PayOutTransaction o1, PayOutTransaction o2) {
+				return Long.compare(o1.getUserID(), o2.getUserID());
+			}
+		});
+		return sorted;
+	}
+
+	private static List<Long> getIds(List<PayOutTransaction> pots) {
+		List<Long> ids = new ArrayList<Long>(pots.size());
+		for (PayOutTransaction pot : pots) {
+			ids.add(pot.getId());
+		}
+		return ids;
+	}
+
+	/**
+	 * Verifies all {@link PayOutTransaction}s with the transaction id of the
+	 * given PayOutTransaction in the DB. One Bitcoin transaction can contain
+	 * the PayOuts of several UserAccounts.
+	 * 
+	 * @param pot PayOutTransation to be verified.
+	 * @throws TransactionException if PayOutTransaction with specified TransactionId does not exist in the database.
+	 * @throws HibernateException
+	 */
+	public static void verify(PayOutTransaction pot) throws TransactionException, HibernateException {
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+		try {
+			transaction = session.beginTransaction();
+			int nofVerified = session.createQuery(
+					"UPDATE PAY_OUT_TRANSACTION SET verified = true " +
+					"WHERE transactionID = :transactionId AND verified = false")
+					.setString("transactionId", pot.getTransactionID())
+					.executeUpdate();
+			
+			if (nofVerified == 0) {
+				long nofExisting = ((Number) session.createQuery(
+						"SELECT COUNT(*) FROM PAY_OUT_TRANSACTION WHERE transactionID = :transactionId")
+						.setString("transactionId", pot.getTransactionID())
+						.uniqueResult()).longValue();
 				transaction.commit();
-				LOGGER.info("Successfully verifyed PayOutTransaction with ID: " + existingPOT.getId());
-			} catch (HibernateException e) {
-				LOGGER.error("Problem verifying PayOutTransaction with TransactionID: " + pot.getTransactionID());
-				 if (transaction != null)
-					 transaction.rollback();
-				 throw e;
-			} finally {
-				session2.close();
+				if (nofExisting == 0)
+					throw new TransactionException("The transaction does not exists.");
+				return;
 			}
+			
+			transaction.commit();
+			LOGGER.info("Successfully verifyed " + nofVerified + " PayOutTransactions with TransactionID: " + pot.getTransactionID());
+		} catch (HibernateException e) {
+			LOGGER.error("Problem verifying PayOutTransaction with TransactionID: " + pot.getTransactionID());
+			if (transaction != null)
+				transaction.rollback();
+			throw e;
+		} finally {
+			session.close();
 		}
 	}
 	
@@ -0,0 +1,213 @@
+package ch.uzh.csg.mbps.server.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+
+import ch.uzh.csg.mbps.server.domain.DbTransaction;
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.HibernateUtil;
+import ch.uzh.csg.mbps.server.util.ThreadPools;
+import ch.uzh.csg.mbps.server.util.exceptions.DuplicateTransactionException;
+import ch.uzh.csg.mbps.server.util.exceptions.InsufficientBalanceException;
+import ch.uzh.csg.mbps.server.util.exceptions.InvalidTransactionNumberException;
+import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
+
+/**
+ * Group commit for {@link DbTransaction}s. Payments are collected for up to
+ * Config.TRANSACTION_GROUP_COMMIT_WINDOW ms (or until
+ * Config.TRANSACTION_GROUP_COMMIT_SIZE payments are waiting) and created by
+ * one thread within one database transaction, so concurrent payments share
+ * one commit and their inserts and updates are sent as JDBC batches. Every
+ * caller waits for its own result.
+ *
+ * If the common database transaction fails, it is rolled back and the
+ * payments of the group are created one by one, so one failing payment does
+ * not fail the others.
+ */
+class TransactionBatcher {
+	private static Logger LOGGER = Logger.getLogger(TransactionBatcher.class);
+
+	private static final BlockingQueue<Pending> QUEUE = new LinkedBlockingQueue<Pending>();
+	private static Thread worker;
+
+	private static final AtomicLong GROUPS = new AtomicLong();
+	private static final AtomicLong PAYMENTS = new AtomicLong();
+	private static final AtomicLong FALLBACKS = new AtomicLong();
+
+	private TransactionBatcher() {
+	}
+
+	/**
+	 * Queues the DbTransaction and waits until it has been committed or
+	 * refused. The read session of the request is closed before waiting.
+	 *
+	 * @throws HibernateException
+	 * @throws UserAccountNotFoundException
+	 * @throws InsufficientBalanceException
+	 * @throws DuplicateTransactionException
+	 * @throws InvalidTransactionNumberException
+	 */
+	static void create(DbTransaction tx) throws HibernateException, UserAccountNotFoundException, InsufficientBalanceException, DuplicateTransactionException, InvalidTransactionNumberException {
+		startWorker();
+		HibernateUtil.releaseRequestSession();
+
+		Pending pending = new Pending(tx);
+		QUEUE.add(pending);
+		try {
+			pending.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HibernateException("Interrupted while waiting for the group commit of " + tx);
+		}
+
+		Exception failure = pending.failure;
+		if (failure == null)
+			return;
+		if (failure instanceof UserAccountNotFoundException)
+			throw (UserAccountNotFoundException) failure;
+		if (failure instanceof InsufficientBalanceException)
+			throw (InsufficientBalanceException) failure;
+		if (failure instanceof DuplicateTransactionException)
+			throw (DuplicateTransactionException) failure;
+		if (failure instanceof InvalidTransactionNumberException)
+			throw (InvalidTransactionNumberException) failure;
+		if (failure instanceof HibernateException)
+			throw (HibernateException) failure;
+		throw new HibernateException(failure);
+	}
+
+	/**
+	 * Returns the number of committed groups and payments and the number of
+	 * groups which had to be created one by one.
+	 */
+	static String getStatistics() {
+		long groups = GROUPS.get();
+		long payments = PAYMENTS.get();
+		String avgSize = (groups == 0) ? "0" : String.valueOf(payments / groups);
+		return "groups: " + groups + " payments: " + payments + " avg group size: " + avgSize + " fallbacks: " + FALLBACKS.get();
+	}
+
+	/**
+	 * Stops the worker thread, if it has been started. A group which is being
+	 * committed is finished, payments still queued are refused.
+	 */
+	static synchronized void shutdown() {
+		if (worker == null)
+			return;
+
+		ThreadPools.stop(worker);
+		worker = null;
+
+		Pending pending;
+		while ((pending = QUEUE.poll()) != null) {
+			pending.complete(new HibernateException("Server is shutting down, transaction has not been created: " + pending.tx));
+		}
+	}
+
+	private static synchronized void startWorker() {
+		if (worker != null)
+			return;
+
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						commit(nextGroup());
+					} catch (InterruptedException e) {
+						return;
+					} catch (RuntimeException e) {
+						LOGGER.error("Problem in group commit of transactions.", e);
+					}
+				}
+			}
+		}, "TransactionBatcher");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	private static List<Pending> nextGroup() throws InterruptedException {
+		List<Pending> group = new ArrayList<Pending>();
+		group.add(QUEUE.take());
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.TRANSACTION_GROUP_COMMIT_WINDOW);
+		while (group.size() < Config.TRANSACTION_GROUP_COMMIT_SIZE) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				break;
+
+			Pending next;
+			try {
+				next = QUEUE.poll(remaining, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				//commit the payments taken so far, the worker stops afterwards
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (next == null)
+				break;
+			group.add(next);
+		}
+		return group;
+	}
+
+	private static void commit(List<Pending> group) {
+		List<DbTransaction> txs = new ArrayList<DbTransaction>(group.size());
+		for (Pending pending : group) {
+			txs.add(pending.tx);
+		}
+
+		try {
+			Exception[] failures = TransactionDAO.createTransactions(txs);
+			for (int i = 0; i < group.size(); i++) {
+				group.get(i).complete(failures[i]);
+			}
+			GROUPS.incrementAndGet();
+			PAYMENTS.addAndGet(group.size());
+		} catch (HibernateException e) {
+			FALLBACKS.incrementAndGet();
+			LOGGER.warn("Group commit of " + group.size() + " transactions failed, creating them one by one. ErrorMessage: " + e.getMessage());
+			for (Pending pending : group) {
+				pending.tx.setId(0);
+				try {
+					TransactionDAO.createTransactionNow(pending.tx);
+					pending.complete(null);
+				} catch (Exception e2) {
+					pending.complete(e2);
+				}
+			}
+		} finally {
+			//never leave a caller waiting
+			for (Pending pending : group) {
+				pending.complete(new HibernateException("Transaction has not been created: " + pending.tx));
+			}
+		}
+	}
+
+	private static class Pending {
+		private final DbTransaction tx;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Exception failure;
+
+		private Pending(DbTransaction tx) {
+			this.tx = tx;
+		}
+
+		private synchronized void complete(Exception failure) {
+			if (done.getCount() == 0)
+				return;
+
+			this.failure = failure;
+			done.countDown();
+		}
+	}
+
+}
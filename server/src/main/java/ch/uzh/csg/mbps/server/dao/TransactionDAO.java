@@ -1,20 +1,34 @@
 package ch.uzh.csg.mbps.server.dao;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 import org.hibernate.HibernateException;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
+import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.transform.Transformers;
+import org.hibernate.type.StandardBasicTypes;
 
 import ch.uzh.csg.mbps.model.HistoryTransaction;
 import ch.uzh.csg.mbps.server.domain.DbTransaction;
+import ch.uzh.csg.mbps.server.domain.HistoryCounter;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
 import ch.uzh.csg.mbps.server.util.Config;
 import ch.uzh.csg.mbps.server.util.HibernateUtil;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
+import ch.uzh.csg.mbps.server.util.exceptions.DuplicateTransactionException;
+import ch.uzh.csg.mbps.server.util.exceptions.InsufficientBalanceException;
+import ch.uzh.csg.mbps.server.util.exceptions.InvalidTransactionNumberException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 
 /**
@@ -26,8 +40,7 @@ public class TransactionDAO {
 	private static Logger LOGGER = Logger.getLogger(TransactionDAO.class);
 
 	private static Session openSession() {
-		SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
-		return sessionFactory.openSession();
+		return HibernateUtil.openWriteSession();
 	}
 
 	/**
@@ -40,37 +53,127 @@ public class TransactionDAO {
 	 * @return ArrayList with requested amount of HistoryTransactions
 	 * @throws UserAccountNotFoundException
 	 */
-	@SuppressWarnings("unchecked")
 	public static ArrayList<HistoryTransaction> getHistory(String username, int page) throws UserAccountNotFoundException {
 		if (page < 0)
 			return null;
 		
 		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
-		Session session = openSession();
-		session.beginTransaction();
-		
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistory(session, userAccount.getId(), page);
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Reads the given page of {@link DbTransaction}s of the UserAccount with
+	 * the given id within the given session.
+	 */
+	@SuppressWarnings("unchecked")
+	static ArrayList<HistoryTransaction> getHistory(Session session, long userId, int page) {
 		List<HistoryTransaction> resultWithAliasedBean = session.createSQLQuery(
 				  "SELECT transaction.timestamp, u2.username as buyer, u1.username as seller, transaction.amount " +
 				  "FROM DB_TRANSACTION transaction " +
 				  "INNER JOIN user_account u1 on transaction.seller_id = u1.id " +
 				  "INNER JOIN user_account u2 on transaction.buyer_id = u2.id " +
 				  "WHERE transaction.buyer_id = :userid OR transaction.seller_id = :userid " +
-				  "ORDER BY transaction.timestamp DESC")
+				  "ORDER BY transaction.timestamp DESC, transaction.id DESC")
 				  .addScalar("timestamp")
 				  .addScalar("buyer")
 				  .addScalar("seller")
 				  .addScalar("amount")
-				  .setLong("userid", userAccount.getId())
+				  .setLong("userid", userId)
 				  .setFirstResult(page * Config.TRANSACTIONS_MAX_RESULTS)
 				  .setMaxResults(Config.TRANSACTIONS_MAX_RESULTS)
 				  .setFetchSize(Config.TRANSACTIONS_MAX_RESULTS)
 				  .setResultTransformer(Transformers.aliasToBean(HistoryTransaction.class))
 				  .list();
+		
+		return new ArrayList<HistoryTransaction>(resultWithAliasedBean);
+	}
 
-		List<HistoryTransaction> results = resultWithAliasedBean;
-		session.close();
+	/**
+	 * Returns the next page of {@link DbTransaction}s assigned to the given
+	 * username, starting after the entry the cursor points to. The page size
+	 * is defined in the Config-File. The entries are ordered by their
+	 * timestamp (and id) descending. In contrast to
+	 * {@link #getHistory(String, int)} the cost of a page does not depend on
+	 * the number of previous pages.
+	 * 
+	 * @param username for which history is requested
+	 * @param cursor pointing to the last entry of the previous page or null for the first page
+	 * @return HistoryPage with the HistoryTransactions and the cursor for the next page
+	 * @throws UserAccountNotFoundException
+	 */
+	public static HistoryPage<HistoryTransaction> getHistory(String username, HistoryCursor cursor) throws UserAccountNotFoundException {
+		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistory(session, userAccount.getId(), cursor);
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Reads the page of {@link DbTransaction}s of the UserAccount with the
+	 * given id which follows the cursor within the given session.
+	 */
+	static HistoryPage<HistoryTransaction> getHistory(Session session, long userId, HistoryCursor cursor) {
+		int limit = Config.TRANSACTIONS_MAX_RESULTS + 1;
+		String seek = (cursor == null) ? "" : "AND (t.timestamp, t.id) < (:timestamp, :id) ";
+		
+		//each branch can use its own (user, timestamp, id) index
+		SQLQuery query = session.createSQLQuery(
+				  "SELECT transaction.id, transaction.timestamp, u2.username as buyer, u1.username as seller, transaction.amount " +
+				  "FROM (" +
+				  "(SELECT t.id, t.timestamp, t.buyer_id, t.seller_id, t.amount FROM DB_TRANSACTION t " +
+				  "WHERE t.buyer_id = :userid " + seek +
+				  "ORDER BY t.timestamp DESC, t.id DESC LIMIT " + limit + ") " +
+				  "UNION ALL " +
+				  "(SELECT t.id, t.timestamp, t.buyer_id, t.seller_id, t.amount FROM DB_TRANSACTION t " +
+				  "WHERE t.seller_id = :userid AND t.buyer_id <> :userid " + seek +
+				  "ORDER BY t.timestamp DESC, t.id DESC LIMIT " + limit + ")" +
+				  ") transaction " +
+				  "INNER JOIN user_account u1 on transaction.seller_id = u1.id " +
+				  "INNER JOIN user_account u2 on transaction.buyer_id = u2.id " +
+				  "ORDER BY transaction.timestamp DESC, transaction.id DESC");
+		query.addScalar("id", StandardBasicTypes.LONG)
+			 .addScalar("timestamp", StandardBasicTypes.TIMESTAMP)
+			 .addScalar("buyer", StandardBasicTypes.STRING)
+			 .addScalar("seller", StandardBasicTypes.STRING)
+			 .addScalar("amount", StandardBasicTypes.BIG_DECIMAL)
+			 .setLong("userid", userId)
+			 .setMaxResults(limit)
+			 .setFetchSize(limit);
+		if (cursor != null) {
+			query.setTimestamp("timestamp", cursor.getTimestamp());
+			query.setLong("id", cursor.getId());
+		}
+		
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = query.list();
 		
-		return new ArrayList<HistoryTransaction>(results);
+		int size = Math.min(rows.size(), Config.TRANSACTIONS_MAX_RESULTS);
+		ArrayList<HistoryTransaction> results = new ArrayList<HistoryTransaction>(size);
+		for (int i = 0; i < size; i++) {
+			Object[] row = rows.get(i);
+			HistoryTransaction htx = new HistoryTransaction();
+			htx.setTimestamp((Date) row[1]);
+			htx.setBuyer((String) row[2]);
+			htx.setSeller((String) row[3]);
+			htx.setAmount((BigDecimal) row[4]);
+			results.add(htx);
+		}
+		
+		HistoryCursor nextCursor = null;
+		if (rows.size() > size) {
+			Object[] last = rows.get(size - 1);
+			nextCursor = new HistoryCursor((Date) last[1], (Long) last[0]);
+		}
+		
+		return new HistoryPage<HistoryTransaction>(results, nextCursor);
 	}
 
 	/**
@@ -83,52 +186,120 @@ public class TransactionDAO {
 	 */
 	public static long getHistoryCount(String username) throws UserAccountNotFoundException {
 		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
-		Session session = openSession();
-		session.beginTransaction();
+		Session session = HibernateUtil.openReplicaReadSession();
+		try {
+			return getHistoryCount(session, userAccount.getId(), HistoryCounterDAO.get(session, userAccount.getId()));
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	/**
+	 * Returns the number of {@link DbTransaction}s of the UserAccount with the
+	 * given id. Uses the given {@link HistoryCounter} if available, otherwise
+	 * the entries are counted within the given session.
+	 */
+	static long getHistoryCount(Session session, long userId, HistoryCounter counter) {
+		if (counter != null)
+			return counter.getTransactionCount();
 		
-		long nofResults = ((Number) session.createSQLQuery(
+		return ((Number) session.createSQLQuery(
 				  "SELECT COUNT(*) " +
 				  "FROM DB_TRANSACTION transaction " +
-				  "INNER JOIN user_account u1 on transaction.seller_id = u1.id " +
-				  "INNER JOIN user_account u2 on transaction.buyer_id = u2.id " +
 				  "WHERE transaction.buyer_id = :userid OR transaction.seller_id = :userid")
-				  .setLong("userid", userAccount.getId())
+				  .setLong("userid", userId)
 				  .uniqueResult())
 				  .longValue();
-
-		session.close();
-		
-		return nofResults;
 	}
 
 	/**
-	 * Saves a new {@link DbTransaction} in the database.
+	 * Saves a new {@link DbTransaction} in the database and transfers the
+	 * amount from the buyer's to the seller's {@link UserAccount}. Both
+	 * accounts are read with a row lock within the same database transaction
+	 * in which the balances are updated, so concurrent payments involving the
+	 * same account are serialized by the database and no update gets lost.
+	 * The rows are always locked in ascending order of their id to avoid
+	 * deadlocks between two opposite payments. The balance of the buyer is
+	 * checked after the lock has been acquired.
+	 * 
+	 * The transaction numbers of the DbTransaction have to match the ones the
+	 * server has issued to buyer and seller, which are read with the lock and
+	 * incremented with the payment. If they don't match, the request is either
+	 * a retry of a payment which has already been created with these numbers
+	 * (which is returned with a {@link DuplicateTransactionException}) or the
+	 * numbers have never been issued. Buyer, seller and their transaction
+	 * numbers are unique as well.
+	 * 
+	 * If Config.TRANSACTION_GROUP_COMMIT is set, the DbTransaction is
+	 * committed together with concurrent payments by the
+	 * {@link TransactionBatcher}.
 	 * 
 	 * @param tx to save in the DB
-	 * @param buyerAccount UserAccount from which transaction-amount is subtracted.
-	 * @param sellerAccount UserAccount to which transaction-amount is added.
 	 * @throws HibernateException
+	 * @throws UserAccountNotFoundException if buyer or seller does not exist (anymore)
+	 * @throws InsufficientBalanceException if the balance of the buyer is lower than the amount
+	 * @throws DuplicateTransactionException if the transaction has already been created
+	 * @throws InvalidTransactionNumberException if the transaction numbers have not been issued
+	 */
+	public static void createTransaction(DbTransaction tx) throws HibernateException, UserAccountNotFoundException, InsufficientBalanceException, DuplicateTransactionException, InvalidTransactionNumberException {
+		if (Config.TRANSACTION_GROUP_COMMIT)
+			TransactionBatcher.create(tx);
+		else
+			createTransactionNow(tx);
+	}
+	
+	/**
+	 * Creates the given DbTransaction within its own database transaction,
+	 * see {@link #createTransaction(DbTransaction)}.
 	 */
-	public static void createTransaction(DbTransaction tx, UserAccount buyerAccount, UserAccount sellerAccount) throws HibernateException {
+	static void createTransactionNow(DbTransaction tx) throws HibernateException, UserAccountNotFoundException, InsufficientBalanceException, DuplicateTransactionException, InvalidTransactionNumberException {
 		Session session = openSession();
 		org.hibernate.Transaction transaction = null;
 		
-		//TODO jeton: fix!!
 		try {
 			transaction = session.beginTransaction();
-			session.save(tx);
-			buyerAccount.setBalance(buyerAccount.getBalance().subtract(tx.getAmount()));
-//			buyerAccount.setTransactionNumber(buyerAccount.getTransactionNumber() + 1);
-			session.update(buyerAccount);
 			
-			sellerAccount.setBalance(sellerAccount.getBalance().add(tx.getAmount()));
-//			sellerAccount.setTransactionNumber(sellerAccount.getTransactionNumber() + 1);
-			session.update(sellerAccount);
+			UserAccount buyerAccount;
+			UserAccount sellerAccount;
+			if (tx.getBuyerId() < tx.getSellerId()) {
+				buyerAccount = UserAccountDAO.getByIdForUpdate(session, tx.getBuyerId());
+				sellerAccount = UserAccountDAO.getByIdForUpdate(session, tx.getSellerId());
+			} else {
+				sellerAccount = UserAccountDAO.getByIdForUpdate(session, tx.getSellerId());
+				buyerAccount = UserAccountDAO.getByIdForUpdate(session, tx.getBuyerId());
+			}
 			
-			transaction.commit();			
+			checkTransactionNumbers(session, tx, buyerAccount, sellerAccount);
+			
+			if (buyerAccount.getBalance().subtract(tx.getAmount()).compareTo(BigDecimal.ZERO) < 0)
+				throw new InsufficientBalanceException(buyerAccount.getId());
+			
+			session.save(tx);
+			transfer(tx, buyerAccount, sellerAccount);
+			HistoryCounterDAO.incrementTransactions(session, tx.getBuyerId(), tx.getSellerId());
+			
+			transaction.commit();
+			UserAccountCache.invalidate(tx.getBuyerId());
+			UserAccountCache.invalidate(tx.getSellerId());
 			
 			LOGGER.info("Transaction created: " + tx.toString());
-		} catch (HibernateException e) {
+		} catch (ConstraintViolationException e) {
+			if (transaction != null)
+				transaction.rollback();
+			
+			DbTransaction existing = getByRequestKey(tx.getBuyerId(), tx.getSellerId(), tx.getTransactionNrBuyer(), tx.getTransactionNrSeller());
+			if (existing == null) {
+				LOGGER.error("Problem creating Transaction: " + tx.toString() + " " + e.getMessage());
+				throw e;
+			}
+			
+			LOGGER.info("Transaction already created: " + existing.toString());
+			throw new DuplicateTransactionException(existing);
+		} catch (DuplicateTransactionException e) {
+			transaction.rollback();
+			LOGGER.info("Transaction already created: " + e.getExisting().toString());
+			throw e;
+		} catch (HibernateException | UserAccountNotFoundException | InsufficientBalanceException | InvalidTransactionNumberException e) {
 			LOGGER.error("Problem creating Transaction: " + tx.toString() + " " + e.getMessage());
 			if (transaction != null)
 				transaction.rollback();
@@ -139,4 +310,176 @@ public class TransactionDAO {
 		}
 	}
 	
+	/**
+	 * Checks the transaction numbers of the given DbTransaction against the
+	 * ones issued to the locked buyer and seller.
+	 * 
+	 * @throws DuplicateTransactionException
+	 *             if the numbers have already been used by a DbTransaction
+	 *             between the same accounts
+	 * @throws InvalidTransactionNumberException
+	 *             if the numbers have not been issued
+	 */
+	private static void checkTransactionNumbers(Session session, DbTransaction tx, UserAccount buyerAccount, UserAccount sellerAccount) throws DuplicateTransactionException, InvalidTransactionNumberException {
+		if (tx.getTransactionNrBuyer() == buyerAccount.getTransactionNumber() && tx.getTransactionNrSeller() == sellerAccount.getTransactionNumber())
+			return;
+		
+		DbTransaction existing = getByRequestKey(session, tx.getBuyerId(), tx.getSellerId(), tx.getTransactionNrBuyer(), tx.getTransactionNrSeller());
+		if (existing != null)
+			throw new DuplicateTransactionException(existing);
+		
+		throw new InvalidTransactionNumberException(tx);
+	}
+	
+	private static void transfer(DbTransaction tx, UserAccount buyerAccount, UserAccount sellerAccount) {
+		buyerAccount.setBalance(buyerAccount.getBalance().subtract(tx.getAmount()));
+		buyerAccount.setTransactionNumber(buyerAccount.getTransactionNumber() + 1);
+		sellerAccount.setBalance(sellerAccount.getBalance().add(tx.getAmount()));
+		sellerAccount.setTransactionNumber(sellerAccount.getTransactionNumber() + 1);
+	}
+	
+	/**
+	 * Creates the given DbTransactions within one database transaction. All
+	 * involved accounts are locked in ascending order of their id, then the
+	 * payments are applied in the given order. A payment whose buyer or
+	 * seller does not exist, whose transaction numbers are not the current
+	 * ones or whose buyer's balance is too low is skipped and its exception
+	 * is returned at its index, null means created.
+	 * 
+	 * @param txs to save in the DB
+	 * @return the failure of every DbTransaction or null
+	 * @throws HibernateException
+	 *             if the database transaction failed, nothing has been
+	 *             created in this case
+	 */
+	static Exception[] createTransactions(List<DbTransaction> txs) throws HibernateException {
+		Exception[] failures = new Exception[txs.size()];
+		SortedSet<Long> accountIds = new TreeSet<Long>();
+		for (DbTransaction tx : txs) {
+			accountIds.add(tx.getBuyerId());
+			accountIds.add(tx.getSellerId());
+		}
+		
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+		
+		try {
+			transaction = session.beginTransaction();
+			
+			Map<Long, UserAccount> accounts = new HashMap<Long, UserAccount>();
+			for (Long id : accountIds) {
+				try {
+					accounts.put(id, UserAccountDAO.getByIdForUpdate(session, id));
+				} catch (UserAccountNotFoundException e) {
+					// payments of this account are refused below
+				}
+			}
+			
+			Map<Long, Integer> counters = new HashMap<Long, Integer>();
+			for (int i = 0; i < txs.size(); i++) {
+				DbTransaction tx = txs.get(i);
+				UserAccount buyerAccount = accounts.get(tx.getBuyerId());
+				UserAccount sellerAccount = accounts.get(tx.getSellerId());
+				if (buyerAccount == null || sellerAccount == null) {
+					failures[i] = new UserAccountNotFoundException("id: " + (buyerAccount == null ? tx.getBuyerId() : tx.getSellerId()));
+					continue;
+				}
+				try {
+					checkTransactionNumbers(session, tx, buyerAccount, sellerAccount);
+				} catch (DuplicateTransactionException | InvalidTransactionNumberException e) {
+					failures[i] = e;
+					continue;
+				}
+				if (buyerAccount.getBalance().subtract(tx.getAmount()).compareTo(BigDecimal.ZERO) < 0) {
+					failures[i] = new InsufficientBalanceException(buyerAccount.getId());
+					continue;
+				}
+				
+				session.save(tx);
+				transfer(tx, buyerAccount, sellerAccount);
+				increment(counters, tx.getBuyerId());
+				increment(counters, tx.getSellerId());
+			}
+			
+			for (Map.Entry<Long, Integer> counter : counters.entrySet()) {
+				HistoryCounterDAO.incrementTransactions(session, counter.getKey(), counter.getValue());
+			}
+			
+			transaction.commit();
+			for (Long id : counters.keySet()) {
+				UserAccountCache.invalidate(id);
+			}
+			
+			LOGGER.info("Transactions created in one group: " + (txs.size() - countFailures(failures)) + " of " + txs.size());
+			return failures;
+		} catch (HibernateException e) {
+			LOGGER.error("Problem creating " + txs.size() + " Transactions. " + e.getMessage());
+			if (transaction != null)
+				transaction.rollback();
+			
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+	
+	private static int countFailures(Exception[] failures) {
+		int count = 0;
+		for (Exception failure : failures) {
+			if (failure != null)
+				count++;
+		}
+		return count;
+	}
+	
+	private static void increment(Map<Long, Integer> counters, long userId) {
+		Integer count = counters.get(userId);
+		counters.put(userId, (count == null) ? 1 : count + 1);
+	}
+	
+	/**
+	 * Returns statistics about the group commit for logging.
+	 */
+	public static String getGroupCommitStatistics() {
+		return TransactionBatcher.getStatistics();
+	}
+	
+	/**
+	 * Stops the thread of the group commit, if it has been started.
+	 */
+	public static void stopGroupCommit() {
+		TransactionBatcher.shutdown();
+	}
+	
+	/**
+	 * Returns the {@link DbTransaction} between the given buyer and seller
+	 * with the given transaction numbers, or null if there is none.
+	 * 
+	 * @param buyerId
+	 * @param sellerId
+	 * @param transactionNrBuyer
+	 * @param transactionNrSeller
+	 * @return DbTransaction or null
+	 */
+	public static DbTransaction getByRequestKey(long buyerId, long sellerId, long transactionNrBuyer, long transactionNrSeller) {
+		Session session = HibernateUtil.openReadSession();
+		try {
+			return getByRequestKey(session, buyerId, sellerId, transactionNrBuyer, transactionNrSeller);
+		} finally {
+			HibernateUtil.closeReadSession(session);
+		}
+	}
+	
+	private static DbTransaction getByRequestKey(Session session, long buyerId, long sellerId, long transactionNrBuyer, long transactionNrSeller) {
+		return (DbTransaction) session.createQuery(
+				  "FROM DB_TRANSACTION t " +
+				  "WHERE t.buyerID = :buyerId AND t.sellerID = :sellerId " +
+				  "AND t.transactionNrBuyer = :nrBuyer AND t.transactionNrSeller = :nrSeller")
+				  .setLong("buyerId", buyerId)
+				  .setLong("sellerId", sellerId)
+				  .setLong("nrBuyer", transactionNrBuyer)
+				  .setLong("nrSeller", transactionNrSeller)
+				  .uniqueResult();
+	}
+	
 }
@@ -0,0 +1,113 @@
+package ch.uzh.csg.mbps.server.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.ExpiringLruCache;
+
+/**
+ * Identity cache for {@link UserAccount}s used by the DAOs to avoid opening a
+ * new session for every lookup of the same account. Usernames, payment
+ * addresses and email addresses are mapped to the account id, the id is
+ * mapped to a snapshot of the account. Callers always get a copy of the
+ * snapshot, so changing a returned UserAccount does not change the cache.
+ *
+ * Every write to a UserAccount has to call {@link #invalidate(long)} after
+ * the commit. Loads which started before an invalidation are not cached (see
+ * {@link #beginLoad()}), so a concurrent read cannot put an outdated snapshot
+ * back into the cache.
+ */
+class UserAccountCache {
+	private static final ExpiringLruCache<Long, UserAccount> BY_ID = new ExpiringLruCache<Long, UserAccount>(Config.USER_ACCOUNT_CACHE_SIZE, Config.USER_ACCOUNT_CACHE_TTL);
+	private static final ExpiringLruCache<String, Long> BY_USERNAME = new ExpiringLruCache<String, Long>(Config.USER_ACCOUNT_CACHE_SIZE, Config.USER_ACCOUNT_CACHE_TTL);
+	private static final ExpiringLruCache<String, Long> BY_ADDRESS = new ExpiringLruCache<String, Long>(Config.USER_ACCOUNT_CACHE_SIZE, Config.USER_ACCOUNT_CACHE_TTL);
+	private static final ExpiringLruCache<String, Long> BY_EMAIL = new ExpiringLruCache<String, Long>(Config.USER_ACCOUNT_CACHE_SIZE, Config.USER_ACCOUNT_CACHE_TTL);
+
+	private static final AtomicLong EPOCH = new AtomicLong();
+
+	private UserAccountCache() {
+	}
+
+	/**
+	 * Has to be called before loading a UserAccount from the database. The
+	 * returned stamp is passed to {@link #put(long, UserAccount)}.
+	 */
+	static long beginLoad() {
+		return EPOCH.get();
+	}
+
+	/**
+	 * Caches a copy of the given UserAccount, unless an account has been
+	 * invalidated since the stamp has been taken.
+	 */
+	static void put(long stamp, UserAccount userAccount) {
+		if (userAccount == null || stamp != EPOCH.get())
+			return;
+
+		BY_ID.put(userAccount.getId(), new UserAccount(userAccount));
+		BY_USERNAME.put(userAccount.getUsername(), userAccount.getId());
+		if (userAccount.getPaymentAddress() != null)
+			BY_ADDRESS.put(userAccount.getPaymentAddress(), userAccount.getId());
+		if (userAccount.getEmail() != null)
+			BY_EMAIL.put(userAccount.getEmail(), userAccount.getId());
+	}
+
+	/**
+	 * Returns a copy of the cached UserAccount or null.
+	 */
+	static UserAccount getById(long id) {
+		UserAccount cached = BY_ID.get(id);
+		return cached == null ? null : new UserAccount(cached);
+	}
+
+	static UserAccount getByUsername(String username) {
+		Long id = BY_USERNAME.get(username);
+		if (id == null)
+			return null;
+
+		UserAccount cached = getById(id);
+		return (cached != null && username.equals(cached.getUsername())) ? cached : null;
+	}
+
+	static UserAccount getByBTCAddress(String address) {
+		Long id = BY_ADDRESS.get(address);
+		if (id == null)
+			return null;
+
+		UserAccount cached = getById(id);
+		return (cached != null && address.equals(cached.getPaymentAddress())) ? cached : null;
+	}
+
+	static UserAccount getByEmail(String email) {
+		Long id = BY_EMAIL.get(email);
+		if (id == null)
+			return null;
+
+		UserAccount cached = getById(id);
+		return (cached != null && email.equals(cached.getEmail())) ? cached : null;
+	}
+
+	/**
+	 * Removes the snapshot of the UserAccount with the given id. The key
+	 * mappings are verified against the snapshot on every hit and therefore
+	 * don't need to be removed.
+	 */
+	static void invalidate(long id) {
+		EPOCH.incrementAndGet();
+		BY_ID.remove(id);
+	}
+
+	static void clear() {
+		EPOCH.incrementAndGet();
+		BY_ID.clear();
+		BY_USERNAME.clear();
+		BY_ADDRESS.clear();
+		BY_EMAIL.clear();
+	}
+
+	static String getStatistics() {
+		return "accounts [" + BY_ID + "], usernames [" + BY_USERNAME + "], addresses [" + BY_ADDRESS + "], emails [" + BY_EMAIL + "]";
+	}
+
+}
@@ -1,17 +1,24 @@
 package ch.uzh.csg.mbps.server.dao;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.hibernate.HibernateException;
+import org.hibernate.LockOptions;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Restrictions;
 
 import ch.uzh.csg.mbps.server.domain.EmailVerification;
 import ch.uzh.csg.mbps.server.domain.ResetPassword;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.service.UserAccountService;
 import ch.uzh.csg.mbps.server.util.HibernateUtil;
 import ch.uzh.csg.mbps.server.util.exceptions.BalanceNotZeroException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
@@ -23,6 +30,9 @@ import ch.uzh.csg.mbps.server.util.exceptions.VerificationTokenNotFoundException
  */
 public class UserAccountDAO {
 	private static Logger LOGGER = Logger.getLogger(UserAccountDAO.class);
+	
+	//query cache region for the lookups of EmailVerifications and ResetPasswords by token, see ehcache.xml
+	private static final String TOKEN_QUERY_REGION = "tokenQueries";
 
 	private UserAccountDAO() {
 	}
@@ -49,6 +59,7 @@ public class UserAccountDAO {
 			fromDb = (UserAccount) session.createCriteria(UserAccount.class).add(Restrictions.eq("username", userAccount.getUsername())).uniqueResult();
 			ev = new EmailVerification(fromDb.getId(), token);
 			session.save(ev);
+			HistoryCounterDAO.create(session, fromDb.getId());
 			transaction.commit();
 			LOGGER.info("UserAccount created: " + fromDb.toString() + " and created EmailVerification: " + ev.toString());
 		} catch (HibernateException e) {
@@ -62,9 +73,7 @@ public class UserAccountDAO {
 	}
 
 	private static Session openSession() {
-		SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
-		Session session = sessionFactory.openSession();
-		return session;
+		return HibernateUtil.openWriteSession();
 	}
 
 	/**
@@ -77,10 +86,14 @@ public class UserAccountDAO {
 	 * @throws UserAccountNotFoundException
 	 */
 	public static UserAccount getByUsername(String username) throws UserAccountNotFoundException{
-		Session session = openSession();
-		session.beginTransaction();
-		UserAccount userAccount = (UserAccount) session.createCriteria(UserAccount.class).add(Restrictions.eq("username", username)).uniqueResult();
-		session.close();
+		UserAccount userAccount = UserAccountCache.getByUsername(username);
+		if (userAccount == null) {
+			long stamp = UserAccountCache.beginLoad();
+			Session session = HibernateUtil.openReadSession();
+			userAccount = (UserAccount) session.bySimpleNaturalId(UserAccount.class).load(username);
+			HibernateUtil.closeReadSession(session);
+			UserAccountCache.put(stamp, userAccount);
+		}
 		if (userAccount == null || userAccount.isDeleted())
 			throw new UserAccountNotFoundException(username);
 		
@@ -98,10 +111,9 @@ public class UserAccountDAO {
 	 * @throws UserAccountNotFoundException
 	 */
 	public static UserAccount getByUsernameIgnoreCaseAndDeletedFlag(String username) throws UserAccountNotFoundException{
-		Session session = openSession();
-		session.beginTransaction();
+		Session session = HibernateUtil.openReadSession();
 		UserAccount userAccount = (UserAccount) session.createCriteria(UserAccount.class).add(Restrictions.eq("username", username).ignoreCase()).uniqueResult();
-		session.close();
+		HibernateUtil.closeReadSession(session);
 		if (userAccount == null)
 			throw new UserAccountNotFoundException(username);
 		
@@ -117,13 +129,89 @@ public class UserAccountDAO {
 	 * @throws UserAccountNotFoundException
 	 */
 	public static UserAccount getById(long id) throws UserAccountNotFoundException {
-		Session session = openSession();
-		session.beginTransaction();
-		UserAccount userAccount = (UserAccount) session.get(UserAccount.class, new Long(id));
-		session.close();
+		UserAccount userAccount = UserAccountCache.getById(id);
+		if (userAccount == null) {
+			long stamp = UserAccountCache.beginLoad();
+			Session session = HibernateUtil.openReadSession();
+			userAccount = (UserAccount) session.get(UserAccount.class, new Long(id));
+			HibernateUtil.closeReadSession(session);
+			UserAccountCache.put(stamp, userAccount);
+		}
 		if (userAccount == null || userAccount.isDeleted())
 			throw new UserAccountNotFoundException("id: "+id);
+
+		return userAccount;
+	}
+
+	/**
+	 * Returns the {@link UserAccount}s with the given ids mapped by their id.
+	 * Accounts which are not cached are loaded with a single query. Deleted
+	 * and not existing UserAccounts are not contained in the returned map.
+	 * 
+	 * @param ids
+	 *            for identifying the UserAccounts
+	 * @return Map with id as key and UserAccount as value
+	 */
+	public static Map<Long, UserAccount> getByIds(Collection<Long> ids) {
+		Map<Long, UserAccount> result = new HashMap<Long, UserAccount>();
+		Set<Long> missing = new HashSet<Long>();
+		for (Long id : ids) {
+			UserAccount cached = UserAccountCache.getById(id);
+			if (cached != null)
+				result.put(id, cached);
+			else
+				missing.add(id);
+		}
+		
+		if (!missing.isEmpty()) {
+			long stamp = UserAccountCache.beginLoad();
+			Session session = HibernateUtil.openReadSession();
+			@SuppressWarnings("unchecked")
+			List<UserAccount> list = (List<UserAccount>) session.createCriteria(UserAccount.class).add(Restrictions.in("id", missing)).list();
+			HibernateUtil.closeReadSession(session);
+			for (UserAccount userAccount : list) {
+				UserAccountCache.put(stamp, userAccount);
+				result.put(userAccount.getId(), userAccount);
+			}
+		}
 		
+		Iterator<UserAccount> it = result.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isDeleted())
+				it.remove();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the size and hit/miss statistics of the UserAccount cache.
+	 * 
+	 * @return statistics as String
+	 */
+	public static String getCacheStatistics() {
+		return UserAccountCache.getStatistics();
+	}
+
+	/**
+	 * Loads the {@link UserAccount} with the given id within the given session
+	 * and acquires a row lock (SELECT ... FOR UPDATE) on it. The lock is held
+	 * until the transaction of the session is committed or rolled back. Every
+	 * operation which changes the balance of a UserAccount has to load the
+	 * account by this method, otherwise concurrent updates get lost. Does not
+	 * return deleted UserAccounts.
+	 *
+	 * @param session
+	 *            with an active transaction
+	 * @param id
+	 *            for identifying UserAccount
+	 * @return UserAccount attached to the given session
+	 * @throws UserAccountNotFoundException
+	 */
+	static UserAccount getByIdForUpdate(Session session, long id) throws UserAccountNotFoundException {
+		UserAccount userAccount = (UserAccount) session.get(UserAccount.class, new Long(id), LockOptions.UPGRADE);
+		if (userAccount == null || userAccount.isDeleted())
+			throw new UserAccountNotFoundException("id: "+id);
+
 		return userAccount;
 	}
 
@@ -140,34 +228,40 @@ public class UserAccountDAO {
 	 * @throws HibernateException
 	 */
 	public static void delete(String username) throws UserAccountNotFoundException, BalanceNotZeroException, HibernateException {
-		UserAccount userAccount = getByUsername(username);
+		long id = getByUsername(username).getId();
 		
 		Session session = openSession();
 		org.hibernate.Transaction transaction = null;
 		
-		if (userAccount.getBalance().compareTo(BigDecimal.ZERO)==0) {
-			try {
-				userAccount.setDeleted(true);
-				
-				transaction = session.beginTransaction();
-				session.update(userAccount);
-				transaction.commit();
-				LOGGER.info("Delted UserAccount: " + userAccount.toString());
-			} catch (HibernateException e) {
-				LOGGER.error("Problem deleting UserAccount: " + userAccount.toString() + " ErrorMessage: " + e.getMessage());
-				 if (transaction != null)
-					 transaction.rollback();
-				 throw e;
-			} finally {
-				session.close();
+		try {
+			transaction = session.beginTransaction();
+			//the balance has to be checked on the locked row, not on a cached copy
+			UserAccount userAccount = getByIdForUpdate(session, id);
+			if (userAccount.getBalance().compareTo(BigDecimal.ZERO) != 0) {
+				transaction.rollback();
+				throw new BalanceNotZeroException();
 			}
-		} else {
-			throw new BalanceNotZeroException();
+			
+			userAccount.setDeleted(true);
+			transaction.commit();
+			UserAccountCache.invalidate(id);
+			LOGGER.info("Delted UserAccount: " + userAccount.toString());
+		} catch (HibernateException | UserAccountNotFoundException e) {
+			LOGGER.error("Problem deleting UserAccount with ID: " + id + " ErrorMessage: " + e.getMessage());
+			 if (transaction != null && transaction.isActive())
+				 transaction.rollback();
+			 throw e;
+		} finally {
+			session.close();
 		}
 	}
 
 	/**
-	 * Updates a {@link UserAccount} in the database.
+	 * Updates a {@link UserAccount} in the database. Only the email address,
+	 * the password, the public key and the email verified flag are copied
+	 * from the given UserAccount to the locked row, all other columns (in
+	 * particular the balance) are left as they are. If the public key has
+	 * changed, the key version is incremented.
 	 * 
 	 * @param userAccount
 	 *            (updated UserAccount)
@@ -180,11 +274,50 @@ public class UserAccountDAO {
 		
 		try {
 			transaction = session.beginTransaction();
-			session.update(userAccount);
+			UserAccount locked = getByIdForUpdate(session, userAccount.getId());
+			locked.setEmail(userAccount.getEmail());
+			locked.setPassword(userAccount.getPassword());
+			locked.setEmailVerified(userAccount.isEmailVerified());
+			if (userAccount.getPublicKey() != null && !userAccount.getPublicKey().equals(locked.getPublicKey())) {
+				locked.setPublicKey(userAccount.getPublicKey());
+				locked.setPublicKeyVersion(locked.getPublicKeyVersion() + 1);
+			}
 			transaction.commit();
-			LOGGER.info("Updated UserAccount: " + userAccount.toString());
-		} catch (HibernateException e) {
+			UserAccountCache.invalidate(userAccount.getId());
+			LOGGER.info("Updated UserAccount: " + locked.toString());
+		} catch (HibernateException | UserAccountNotFoundException e) {
 			LOGGER.error("Problem updating UserAccount: " + userAccount.toString() + " ErrorMessage: " + e.getMessage());
+			 if (transaction != null && transaction.isActive())
+				 transaction.rollback();
+			 throw e;
+		} finally {
+			session.close();
+		}
+	}
+	
+	/**
+	 * Sets the balance of the {@link UserAccount} with the given id. Only
+	 * available in testing mode, balances are otherwise only changed by
+	 * transactions, PayIns and PayOuts.
+	 * 
+	 * @param id
+	 * @param balance
+	 * @throws UserAccountNotFoundException
+	 * @throws HibernateException
+	 */
+	public static void setBalanceForTesting(long id, BigDecimal balance) throws UserAccountNotFoundException, HibernateException {
+		if (!UserAccountService.isTestingMode())
+			throw new IllegalStateException("The balance can only be set in testing mode.");
+		
+		Session session = openSession();
+		org.hibernate.Transaction transaction = null;
+		
+		try {
+			transaction = session.beginTransaction();
+			getByIdForUpdate(session, id).setBalance(balance);
+			transaction.commit();
+			UserAccountCache.invalidate(id);
+		} catch (HibernateException | UserAccountNotFoundException e) {
 			 if (transaction != null)
 				 transaction.rollback();
 			 throw e;
@@ -205,23 +338,25 @@ public class UserAccountDAO {
 	 */
 	public static void verifyEmail(String verificationToken) throws UserAccountNotFoundException, HibernateException, VerificationTokenNotFoundException {
 		Session session = openSession();
-		org.hibernate.Transaction tx = session.beginTransaction();
-		
-		EmailVerification ev = (EmailVerification) session.createCriteria(EmailVerification.class).add(Restrictions.eq("verificationToken", verificationToken)).uniqueResult();
-		if (ev == null)
-			throw new VerificationTokenNotFoundException(verificationToken);
-		
-		UserAccount userAccount = getById(ev.getUserID());
+		org.hibernate.Transaction tx = null;
 		
 		try {
+			tx = session.beginTransaction();
+			EmailVerification ev = (EmailVerification) session.createCriteria(EmailVerification.class).add(Restrictions.eq("verificationToken", verificationToken)).setCacheable(true).setCacheRegion(TOKEN_QUERY_REGION).uniqueResult();
+			if (ev == null) {
+				tx.rollback();
+				throw new VerificationTokenNotFoundException(verificationToken);
+			}
+			
+			UserAccount userAccount = getByIdForUpdate(session, ev.getUserID());
 			userAccount.setEmailVerified(true);
-			session.update(userAccount);
 			session.delete(ev);
 			tx.commit();
+			UserAccountCache.invalidate(userAccount.getId());
 			LOGGER.info("Verified Emailaddress for UserAccount with ID: " + userAccount.getId() );
-		} catch (HibernateException e) {
-			LOGGER.error("Problem verifying UserAccount with ID: " + userAccount.getId() + "ErrorMessage: " + e.getMessage());
-			if (tx != null)
+		} catch (HibernateException | UserAccountNotFoundException e) {
+			LOGGER.error("Problem verifying UserAccount with token: " + verificationToken + " ErrorMessage: " + e.getMessage());
+			if (tx != null && tx.isActive())
 				 tx.rollback();
 			 throw e;
 		} finally {
@@ -239,11 +374,14 @@ public class UserAccountDAO {
 	 * @throws UserAccountNotFoundException
 	 */
 	public static UserAccount getByBTCAddress(String address) throws UserAccountNotFoundException {
-		Session session = openSession();
-		session.beginTransaction();
-		UserAccount userAccount = (UserAccount) session.createCriteria(UserAccount.class).add(Restrictions.eq("paymentAddress", address)).uniqueResult();
-		
-		session.close();
+		UserAccount userAccount = UserAccountCache.getByBTCAddress(address);
+		if (userAccount == null) {
+			long stamp = UserAccountCache.beginLoad();
+			Session session = HibernateUtil.openReadSession();
+			userAccount = (UserAccount) session.createCriteria(UserAccount.class).add(Restrictions.eq("paymentAddress", address)).uniqueResult();
+			HibernateUtil.closeReadSession(session);
+			UserAccountCache.put(stamp, userAccount);
+		}
 		if (userAccount == null || userAccount.isDeleted())
 			throw new UserAccountNotFoundException("BTC Address: "+address);
 		
@@ -260,10 +398,14 @@ public class UserAccountDAO {
 	 * @throws UserAccountNotFoundException
 	 */
 	public static UserAccount getByEmail(String emailAddress) throws UserAccountNotFoundException {
-		Session session = openSession();
-		session.beginTransaction();
-		UserAccount userAccount = (UserAccount) session.createCriteria(UserAccount.class).add(Restrictions.eq("email", emailAddress)).uniqueResult();
-		session.close();
+		UserAccount userAccount = UserAccountCache.getByEmail(emailAddress);
+		if (userAccount == null) {
+			long stamp = UserAccountCache.beginLoad();
+			Session session = HibernateUtil.openReadSession();
+			userAccount = (UserAccount) session.createCriteria(UserAccount.class).add(Restrictions.eq("email", emailAddress)).uniqueResult();
+			HibernateUtil.closeReadSession(session);
+			UserAccountCache.put(stamp, userAccount);
+		}
 		if (userAccount == null || userAccount.isDeleted())
 			throw new UserAccountNotFoundException("email: "+ emailAddress);
 		
@@ -307,11 +449,10 @@ public class UserAccountDAO {
 	 * @throws VerificationTokenNotFoundException
 	 */
 	public static ResetPassword getResetPassword(String resetPasswordToken) throws VerificationTokenNotFoundException{
-		Session session = openSession();
-		session.beginTransaction();
-		ResetPassword resetPassword = (ResetPassword) session.createCriteria(ResetPassword.class).add(Restrictions.eq("token", resetPasswordToken)).uniqueResult();
+		Session session = HibernateUtil.openReadSession();
+		ResetPassword resetPassword = (ResetPassword) session.createCriteria(ResetPassword.class).add(Restrictions.eq("token", resetPasswordToken)).setCacheable(true).setCacheRegion(TOKEN_QUERY_REGION).uniqueResult();
 		
-		session.close();
+		HibernateUtil.closeReadSession(session);
 		if (resetPassword == null){
 			throw new VerificationTokenNotFoundException(resetPasswordToken);			
 		}
@@ -328,10 +469,9 @@ public class UserAccountDAO {
 	 * @throws VerificationTokenNotFoundException
 	 */
 	public static String getVerificationTokenByUserId(long id) throws VerificationTokenNotFoundException {
-		Session session = openSession();
-		session.beginTransaction();
+		Session session = HibernateUtil.openReadSession();
 		EmailVerification ev = (EmailVerification) session.createCriteria(EmailVerification.class).add(Restrictions.eq("userID", id)).uniqueResult();
-		session.close();
+		HibernateUtil.closeReadSession(session);
 		
 		if (ev == null)
 			throw new VerificationTokenNotFoundException("");			
@@ -380,10 +520,9 @@ public class UserAccountDAO {
 	 * @throws UserAccountNotFoundException
 	 */
 	public static UserAccount getByResetPasswordToken(String token) throws VerificationTokenNotFoundException, UserAccountNotFoundException {
-		Session session = openSession();
-		session.beginTransaction();
-		ResetPassword resetPassword = (ResetPassword) session.createCriteria(ResetPassword.class).add(Restrictions.eq("token", token)).uniqueResult();
-		session.close();
+		Session session = HibernateUtil.openReadSession();
+		ResetPassword resetPassword = (ResetPassword) session.createCriteria(ResetPassword.class).add(Restrictions.eq("token", token)).setCacheable(true).setCacheRegion(TOKEN_QUERY_REGION).uniqueResult();
+		HibernateUtil.closeReadSession(session);
 		if (resetPassword == null){
 			throw new VerificationTokenNotFoundException(token);			
 		}
@@ -424,20 +563,18 @@ public class UserAccountDAO {
 	 * @return List<ResetPassword>
 	 */
 	public static List<ResetPassword> getAllResetPassword() {
-		Session session = openSession();
-		session.beginTransaction();
+		Session session = HibernateUtil.openReadSession();
 		@SuppressWarnings("unchecked")
 		List<ResetPassword> list = (List<ResetPassword>) session.createCriteria(ResetPassword.class).list();
-		session.close();
+		HibernateUtil.closeReadSession(session);
 		
 		return list;
 	}
 
 	public static UserAccount getByEmailIgnoreCaseAndDeletedFlag(String email) throws UserAccountNotFoundException {
-		Session session = openSession();
-		session.beginTransaction();
+		Session session = HibernateUtil.openReadSession();
 		UserAccount userAccount = (UserAccount) session.createCriteria(UserAccount.class).add(Restrictions.eq("email", email).ignoreCase()).uniqueResult();
-		session.close();
+		HibernateUtil.closeReadSession(session);
 		if (userAccount == null)
 			throw new UserAccountNotFoundException(email);
 		
@@ -0,0 +1,55 @@
+package ch.uzh.csg.mbps.server.domain;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * The last block processed by the BlockchainWatcher. There is only one row,
+ * so the watcher can resume from this block after a restart.
+ */
+@Entity(name = "BLOCKCHAIN_CURSOR")
+public class BlockchainCursor {
+	public static final long ID = 1;
+
+	@Id
+	@Column(name = "ID")
+	private long id = ID;
+	@Column(name = "LAST_BLOCK", nullable = false)
+	private String lastBlock;
+	@Column(name = "UPDATED", nullable = false)
+	private Date updated;
+
+	public BlockchainCursor() {
+	}
+
+	public BlockchainCursor(String lastBlock) {
+		this.lastBlock = lastBlock;
+		this.updated = new Date();
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getLastBlock() {
+		return lastBlock;
+	}
+
+	public void setLastBlock(String lastBlock) {
+		this.lastBlock = lastBlock;
+		this.updated = new Date();
+	}
+
+	public Date getUpdated() {
+		return updated;
+	}
+
+	@Override
+	public String toString() {
+		return "lastBlock: " + getLastBlock() + " updated: " + getUpdated();
+	}
+
+}
@@ -10,23 +10,26 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
-import org.hibernate.annotations.Index;
 
 import ch.uzh.csg.mbps.model.Transaction;
-import ch.uzh.csg.mbps.server.service.UserAccountService;
-import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
+
+import ch.uzh.csg.mbps.server.util.Config;
 
 @Entity(name = "DB_TRANSACTION")
+@Table(uniqueConstraints = {
+		@UniqueConstraint(name = "TRANSACTION_REQUEST_KEY", columnNames = { "BUYER_ID", "SELLER_ID", "TRANSACTION_NR_BUYER", "TRANSACTION_NR_SELLER" }) })
 public class DbTransaction implements Serializable {
 	private static final long serialVersionUID = 6937127333699090182L;
 	
 	@Id
-	@SequenceGenerator(name="pk_sequence",sequenceName="db_transaction_id_seq", allocationSize=1)
+	@SequenceGenerator(name="pk_sequence",sequenceName="db_transaction_id_seq", allocationSize=Config.ID_ALLOCATION_SIZE)
 	@GeneratedValue(strategy=GenerationType.SEQUENCE,generator="pk_sequence")
 	@Column(name="ID")
 	private long id;
@@ -38,10 +41,8 @@ public class DbTransaction implements Serializable {
 	@Column(name="TRANSACTION_NR_SELLER")
 	private long transactionNrSeller;
 	@Column(name="BUYER_ID")
-	@Index(name = "BUYER_ID_INDEX")
 	private long buyerID;
 	@Column(name="SELLER_ID")
-	@Index(name = "SELLER_ID_INDEX")
 	private long sellerID;
 	@Column(name="AMOUNT", precision = 25, scale=8)
 	private BigDecimal amount;
@@ -53,10 +54,10 @@ public class DbTransaction implements Serializable {
 	public DbTransaction() {
 	}
 	
-	public DbTransaction(Transaction transaction) throws UserAccountNotFoundException {
+	public DbTransaction(Transaction transaction, UserAccount buyerAccount, UserAccount sellerAccount) {
 		this.amount = transaction.getAmount();
-		this.buyerID = UserAccountService.getInstance().getByUsername(transaction.getBuyerUsername()).getId();
-		this.sellerID = UserAccountService.getInstance().getByUsername(transaction.getSellerUsername()).getId();
+		this.buyerID = buyerAccount.getId();
+		this.sellerID = sellerAccount.getId();
 		this.transactionNrBuyer = transaction.getTransactionNrBuyer();
 		this.transactionNrSeller = transaction.getTransactionNrSeller();
 		this.inputCurrency = transaction.getInputCurrency();
@@ -7,18 +7,21 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
 
-import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import ch.uzh.csg.mbps.server.util.Config;
 
 @Entity(name = "EMAILVERIFICATION")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "emailVerification")
 public class EmailVerification {
 	
 	@Id
 	@Column(name="ID")
-	@SequenceGenerator(name="pk_sequence",sequenceName="emailVerfication_id_seq", allocationSize=1)
+	@SequenceGenerator(name="pk_sequence",sequenceName="emailVerfication_id_seq", allocationSize=Config.ID_ALLOCATION_SIZE)
 	@GeneratedValue(strategy=GenerationType.SEQUENCE,generator="pk_sequence")
 	private long id;
 	@Column(name="USER_ID")
-	@Index(name = "USER_ID_INDEX")
 	private long userID;
 	@Column(name="VERIFICATION_TOKEN")
 	private String verificationToken;
@@ -0,0 +1,83 @@
+package ch.uzh.csg.mbps.server.domain;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Number of {@link DbTransaction}s, {@link PayInTransaction}s and
+ * {@link PayOutTransaction}s of a {@link UserAccount}. The counters are
+ * incremented in the same database transaction in which the corresponding
+ * entry is created, so the history size can be read without counting all
+ * rows.
+ */
+@Entity(name = "HISTORY_COUNTER")
+public class HistoryCounter implements Serializable {
+	private static final long serialVersionUID = 3129045226613479011L;
+
+	@Id
+	@Column(name = "USER_ID")
+	private long userID;
+	@Column(name = "TRANSACTION_COUNT", nullable = false)
+	private long transactionCount;
+	@Column(name = "PAY_IN_COUNT", nullable = false)
+	private long payInCount;
+	@Column(name = "PAY_OUT_COUNT", nullable = false)
+	private long payOutCount;
+
+	public HistoryCounter() {
+	}
+
+	public HistoryCounter(long userID) {
+		this.userID = userID;
+	}
+
+	public long getUserID() {
+		return userID;
+	}
+
+	public void setUserID(long userID) {
+		this.userID = userID;
+	}
+
+	public long getTransactionCount() {
+		return transactionCount;
+	}
+
+	public void setTransactionCount(long transactionCount) {
+		this.transactionCount = transactionCount;
+	}
+
+	public long getPayInCount() {
+		return payInCount;
+	}
+
+	public void setPayInCount(long payInCount) {
+		this.payInCount = payInCount;
+	}
+
+	public long getPayOutCount() {
+		return payOutCount;
+	}
+
+	public void setPayOutCount(long payOutCount) {
+		this.payOutCount = payOutCount;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("userId: ");
+		sb.append(getUserID());
+		sb.append(" transactions: ");
+		sb.append(getTransactionCount());
+		sb.append(" pay ins: ");
+		sb.append(getPayInCount());
+		sb.append(" pay outs: ");
+		sb.append(getPayOutCount());
+		return sb.toString();
+	}
+
+}
@@ -11,9 +11,8 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
 
-import org.hibernate.annotations.Index;
-
 import ch.uzh.csg.mbps.server.dao.UserAccountDAO;
+import ch.uzh.csg.mbps.server.util.Config;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 
 import com.azazar.bitcoin.jsonrpcclient.Bitcoin.Transaction;
@@ -23,19 +22,17 @@ public class PayInTransaction implements Serializable {
 	private static final long serialVersionUID = -5777010150563320837L;
 	
 	@Id
-	@SequenceGenerator(name="pk_sequence",sequenceName="pay_in_transaction_id_seq", allocationSize=1)
+	@SequenceGenerator(name="pk_sequence",sequenceName="pay_in_transaction_id_seq", allocationSize=Config.ID_ALLOCATION_SIZE)
 	@GeneratedValue(strategy=GenerationType.SEQUENCE,generator="pk_sequence")
 	@Column(name="ID")
 	private long id;
 	@Column(name="USER_ID")
-	@Index(name = "USER_ID_INDEX")
 	private long userID;
 	@Column(name="TIMESTAMP")
 	private Date timestamp;
 	@Column(name="AMOUNT", precision = 25, scale=8)
 	private BigDecimal amount;
 	@Column(name="TX_ID")
-	@Index(name = "TX_ID_INDEX")
 	private String transactionID;
 	
 	public PayInTransaction() {
@@ -10,14 +10,18 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
 
-import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import ch.uzh.csg.mbps.server.util.Config;
 
 @Entity(name = "PAYOUT_RULES")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "payOutRule")
 public class PayOutRule implements Serializable {
 	private static final long serialVersionUID = -6789290299273381688L;
 
 	@Id
-	@SequenceGenerator(name = "pk_sequence", sequenceName = "payout_rules_id_seq", allocationSize = 1)
+	@SequenceGenerator(name = "pk_sequence", sequenceName = "payout_rules_id_seq", allocationSize = Config.ID_ALLOCATION_SIZE)
 	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "pk_sequence")
 	@Column(name = "ID")
 	private long id;
@@ -26,7 +30,6 @@ public class PayOutRule implements Serializable {
 	@Column(name = "DAY")
 	private int day;
 	@Column(name = "USER_ID")
-	@Index(name = "USER_ID_INDEX")
 	private long userId;
 	@Column(name = "BALANCE_LIMIT", precision = 25, scale = 8)
 	private BigDecimal balanceLimit;
@@ -11,7 +11,7 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
 
-import org.hibernate.annotations.Index;
+import ch.uzh.csg.mbps.server.util.Config;
 
 import com.azazar.bitcoin.jsonrpcclient.Bitcoin.Transaction;
 
@@ -20,12 +20,11 @@ public class PayOutTransaction implements Serializable {
 	private static final long serialVersionUID = -3754792381238747631L;
 	
 	@Id
-	@SequenceGenerator(name="pk_sequence",sequenceName="pay_out_transaction_id_seq", allocationSize=1)
+	@SequenceGenerator(name="pk_sequence",sequenceName="pay_out_transaction_id_seq", allocationSize=Config.ID_ALLOCATION_SIZE)
 	@GeneratedValue(strategy=GenerationType.SEQUENCE,generator="pk_sequence")
 	@Column(name="ID")
 	private long id;
 	@Column(name="USER_ID")
-	@Index(name = "USER_ID_INDEX")
 	private long userID;
 	@Column(name="TIMESTAMP")
 	private Date timestamp;
@@ -36,7 +35,6 @@ public class PayOutTransaction implements Serializable {
 	@Column(name="VERIFIED")
 	private boolean verified;
 	@Column(name="TRANSACTION_ID")
-	@Index(name = "TRANSACTION_ID_INDEX")
 	private String transactionID;
 	
 	public PayOutTransaction() {
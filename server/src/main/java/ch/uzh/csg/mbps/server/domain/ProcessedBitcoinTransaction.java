@@ -0,0 +1,39 @@
+package ch.uzh.csg.mbps.server.domain;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Marks a Bitcoin transaction output (transaction id, category and address)
+ * which has already been handed to a listener of the BlockchainWatcher, so it
+ * is not processed twice, not even after a restart.
+ */
+@Entity(name = "PROCESSED_BTC_TRANSACTION")
+public class ProcessedBitcoinTransaction {
+
+	@Id
+	@Column(name = "TX_KEY")
+	private String txKey;
+	@Column(name = "PROCESSED", nullable = false)
+	private Date processed;
+
+	public ProcessedBitcoinTransaction() {
+	}
+
+	public ProcessedBitcoinTransaction(String txKey) {
+		this.txKey = txKey;
+		this.processed = new Date();
+	}
+
+	public String getTxKey() {
+		return txKey;
+	}
+
+	public Date getProcessed() {
+		return processed;
+	}
+
+}
@@ -9,20 +9,23 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
 
-import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import ch.uzh.csg.mbps.server.util.Config;
 
 @Entity(name = "RESETPASSWORD")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "resetPassword")
 public class ResetPassword {
 
 	@Id
 	@Column(name = "ID")
-	@SequenceGenerator(name = "pk_sequence", sequenceName = "resetPassword_id_seq", allocationSize = 1)
+	@SequenceGenerator(name = "pk_sequence", sequenceName = "resetPassword_id_seq", allocationSize = Config.ID_ALLOCATION_SIZE)
 	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "pk_sequence")
 	private long id;
 	@Column(name = "USER_ID")
 	private long userID;
 	@Column(name = "TOKEN")
-	@Index(name = "TOKEN_INDEX")
 	private String token;
 	@Column(name = "CREATIONDATE", nullable = false)
 	private Date creationDate;
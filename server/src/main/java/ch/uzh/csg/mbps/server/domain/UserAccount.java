@@ -15,22 +15,29 @@ import javax.persistence.TemporalType;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
-import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
+
+import ch.uzh.csg.mbps.server.util.Config;
 
 @Entity(name = "USER_ACCOUNT")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "userAccount")
+@NaturalIdCache
 public class UserAccount implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	@Id
-	@SequenceGenerator(name="pk_sequence",sequenceName="useracccount_id_seq", allocationSize=1)
+	@SequenceGenerator(name="pk_sequence",sequenceName="useracccount_id_seq", allocationSize=Config.ID_ALLOCATION_SIZE)
 	@GeneratedValue(strategy=GenerationType.SEQUENCE,generator="pk_sequence")
 	@Column(name = "ID", nullable = false)
 	private long id;
 	@Temporal(TemporalType.TIMESTAMP)
 	@Column(name = "CREATIONDATE", nullable = false)
 	private Date creationDate;
+	@NaturalId
 	@Column(name = "USERNAME", unique = true, nullable = false)
-	@Index(name = "USERNAME_INDEX")
 	private String username;
 	@Column(name = "EMAIL", unique = true, nullable = false)
 	private String email;
@@ -46,6 +53,12 @@ public class UserAccount implements Serializable {
 	private String paymentAddress;
 	@Column(name = "ROLRES")
 	private byte roles;
+	@Column(name = "PUBLIC_KEY", length = 1024)
+	private String publicKey;
+	@Column(name = "PUBLIC_KEY_VERSION", nullable = false)
+	private int publicKeyVersion;
+	@Column(name = "TRANSACTION_NUMBER", nullable = false)
+	private long transactionNumber;
 
 	public UserAccount() {
 	}
@@ -71,6 +84,28 @@ public class UserAccount implements Serializable {
 		this.emailVerified = false;
 	}
 
+	/**
+	 * Creates a detached copy of the given account.
+	 *
+	 * @param other
+	 *            UserAccount to copy
+	 */
+	public UserAccount(UserAccount other) {
+		this.id = other.id;
+		this.creationDate = other.creationDate == null ? null : new Date(other.creationDate.getTime());
+		this.username = other.username;
+		this.email = other.email;
+		this.password = other.password;
+		this.deleted = other.deleted;
+		this.balance = other.balance;
+		this.emailVerified = other.emailVerified;
+		this.paymentAddress = other.paymentAddress;
+		this.roles = other.roles;
+		this.publicKey = other.publicKey;
+		this.publicKeyVersion = other.publicKeyVersion;
+		this.transactionNumber = other.transactionNumber;
+	}
+
 	public boolean isDeleted() {
 		return deleted;
 	}
@@ -151,6 +186,43 @@ public class UserAccount implements Serializable {
 		this.roles = roles;
 	}
 	
+	/**
+	 * Returns the encoded public key the signatures of the payment requests
+	 * of this UserAccount are verified with, or null if none has been stored.
+	 */
+	public String getPublicKey() {
+		return publicKey;
+	}
+	
+	public void setPublicKey(String publicKey) {
+		this.publicKey = publicKey;
+	}
+	
+	/**
+	 * Returns the version of the public key, which is incremented whenever
+	 * the public key is changed.
+	 */
+	public int getPublicKeyVersion() {
+		return publicKeyVersion;
+	}
+	
+	public void setPublicKeyVersion(int publicKeyVersion) {
+		this.publicKeyVersion = publicKeyVersion;
+	}
+	
+	/**
+	 * Returns the transaction number the next payment of this UserAccount
+	 * (as buyer or seller) has to carry. It is issued by the server and
+	 * incremented with every payment.
+	 */
+	public long getTransactionNumber() {
+		return transactionNumber;
+	}
+	
+	public void setTransactionNumber(long transactionNumber) {
+		this.transactionNumber = transactionNumber;
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
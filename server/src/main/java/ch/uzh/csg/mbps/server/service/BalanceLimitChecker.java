@@ -0,0 +1,165 @@
+package ch.uzh.csg.mbps.server.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+
+import ch.uzh.csg.mbps.server.dao.PayOutRuleDAO;
+import ch.uzh.csg.mbps.server.domain.PayOutRule;
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.ThreadPools;
+import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
+
+import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
+
+/**
+ * Checks the balance limit {@link PayOutRule}s of sellers in the background,
+ * so a payment does not wait for the rules to be checked and the PayOut to be
+ * sent. There is at most one pending check per seller: if further payments
+ * arrive while a check is queued, they are coalesced into it, if they arrive
+ * while a check is running, the check is repeated once afterwards with the
+ * new balance. Checks of the same seller therefore never run concurrently.
+ *
+ */
+public class BalanceLimitChecker {
+	private static Logger LOGGER = Logger.getLogger(BalanceLimitChecker.class);
+	private static BalanceLimitChecker balanceLimitChecker;
+
+	/*
+	 * Sellers with a queued or running check. FALSE means the check has not
+	 * seen the latest payment yet, TRUE that the check has to be repeated.
+	 */
+	private final ConcurrentMap<Long, Boolean> pending = new ConcurrentHashMap<Long, Boolean>();
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong scheduled = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private BalanceLimitChecker() {
+		executor = new ThreadPoolExecutor(Config.BALANCE_LIMIT_CHECK_THREADS, Config.BALANCE_LIMIT_CHECK_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Config.BALANCE_LIMIT_CHECK_QUEUE_SIZE), new CheckerThreadFactory());
+	}
+
+	/**
+	 * Returns new or existing instance of {@link BalanceLimitChecker}.
+	 *
+	 * @return instance of BalanceLimitChecker
+	 */
+	public static synchronized BalanceLimitChecker getInstance() {
+		if (balanceLimitChecker == null)
+			balanceLimitChecker = new BalanceLimitChecker();
+
+		return balanceLimitChecker;
+	}
+
+	/**
+	 * Stops the threads of the {@link BalanceLimitChecker}, if it has been
+	 * started. Queued checks are still executed within
+	 * Config.SHUTDOWN_TIMEOUT.
+	 */
+	public static synchronized void shutdown() {
+		if (balanceLimitChecker != null) {
+			ThreadPools.shutdown(balanceLimitChecker.executor, "BalanceLimitChecker");
+			balanceLimitChecker = null;
+		}
+	}
+
+	/**
+	 * Schedules a check of the balance limit rules of the given seller. Does
+	 * nothing if the seller has no rule with a balance limit. Never blocks.
+	 *
+	 * @param userId
+	 *            id of the seller whose balance has increased
+	 */
+	public void schedule(long userId) {
+		try {
+			if (!PayOutRuleDAO.hasBalanceLimitRule(userId))
+				return;
+		} catch (HibernateException e) {
+			LOGGER.error("Problem reading PayOutRules of UserAccount with ID " + userId + ". ErrorMessage: " + e.getMessage());
+			return;
+		}
+
+		while (true) {
+			Boolean state = pending.putIfAbsent(userId, Boolean.FALSE);
+			if (state == null) {
+				submit(userId);
+				return;
+			}
+			if (state || pending.replace(userId, Boolean.FALSE, Boolean.TRUE)) {
+				coalesced.incrementAndGet();
+				return;
+			}
+			// the running check has just finished, try again
+		}
+	}
+
+	private void submit(long userId) {
+		try {
+			executor.execute(new CheckTask(userId));
+			scheduled.incrementAndGet();
+		} catch (RejectedExecutionException e) {
+			pending.remove(userId);
+			rejected.incrementAndGet();
+			LOGGER.warn("Balance limit check queue is full, skipped check of UserAccount with ID " + userId);
+		}
+	}
+
+	/**
+	 * Returns the number of queued checks and the number of scheduled,
+	 * coalesced, rejected and failed checks.
+	 */
+	public String getStatistics() {
+		return "queued: " + executor.getQueue().size() + " scheduled: " + scheduled.get() + " coalesced: " + coalesced.get() + " rejected: " + rejected.get() + " failed: " + failed.get();
+	}
+
+	private class CheckTask implements Runnable {
+		private final long userId;
+
+		private CheckTask(long userId) {
+			this.userId = userId;
+		}
+
+		@Override
+		public void run() {
+			do {
+				check();
+			} while (!pending.remove(userId, Boolean.FALSE) && pending.replace(userId, Boolean.TRUE, Boolean.FALSE));
+		}
+
+		private void check() {
+			try {
+				PayOutRuleService.getInstance().checkBalanceLimitRules(userId);
+			} catch (UserAccountNotFoundException | BitcoinException | HibernateException e) {
+				failed.incrementAndGet();
+				LOGGER.error("Problem checking balance limit of UserAccount with ID " + userId + ". ErrorMessage: " + e.getMessage());
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+				LOGGER.error("Problem checking balance limit of UserAccount with ID " + userId, e);
+			}
+		}
+	}
+
+	private static class CheckerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "BalanceLimitChecker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package ch.uzh.csg.mbps.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import ch.uzh.csg.mbps.server.dao.HistoryDAO;
+import ch.uzh.csg.mbps.server.dao.HistoryExportDAO;
+import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.util.AccountHistory;
+import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
+
+/**
+ * Service class for reading the complete {@link AccountHistory} of a
+ * {@link UserAccount} at once.
+ *
+ */
+public class HistoryService {
+	private static HistoryService historyService;
+
+	private HistoryService() {
+	}
+
+	/**
+	 * Returns new or existing instance of {@link HistoryService}.
+	 *
+	 * @return instance of HistoryService
+	 */
+	public static HistoryService getInstance() {
+		if (historyService == null)
+			historyService = new HistoryService();
+
+		return historyService;
+	}
+
+	/**
+	 * Returns the given pages of the transaction, pay in and pay out history,
+	 * their sizes and the UserAccount with the given username. A history with
+	 * a negative page number is not read.
+	 *
+	 * @param username
+	 * @param txPage
+	 * @param txPayInPage
+	 * @param txPayOutPage
+	 * @return AccountHistory
+	 * @throws UserAccountNotFoundException
+	 */
+	public AccountHistory getHistory(String username, int txPage, int txPayInPage, int txPayOutPage) throws UserAccountNotFoundException {
+		return HistoryDAO.getHistory(username, txPage, txPayInPage, txPayOutPage);
+	}
+
+	/**
+	 * Returns the pages following the given cursors of the transaction, pay in
+	 * and pay out history, their sizes and the UserAccount with the given
+	 * username. A history with a null cursor is not read, an empty cursor
+	 * stands for the first page.
+	 *
+	 * @param username
+	 * @param txCursor
+	 * @param txPayInCursor
+	 * @param txPayOutCursor
+	 * @return AccountHistory
+	 * @throws UserAccountNotFoundException
+	 * @throws IllegalArgumentException
+	 *             if a cursor is not valid
+	 */
+	public AccountHistory getHistory(String username, String txCursor, String txPayInCursor, String txPayOutCursor) throws UserAccountNotFoundException, IllegalArgumentException {
+		return HistoryDAO.getHistory(username, txCursor, txPayInCursor, txPayOutCursor);
+	}
+
+	/**
+	 * Writes the complete history of the given type of the UserAccount with
+	 * the given username as gzip compressed csv to the given OutputStream. The
+	 * history is streamed from the database, it is never held in memory or
+	 * written to a file as a whole. The OutputStream is not closed.
+	 *
+	 * @param username
+	 * @param type
+	 *            0 for common transactions, 1 for pay in transactions, 2 for
+	 *            pay out transactions
+	 * @param out
+	 * @throws UserAccountNotFoundException
+	 * @throws IllegalArgumentException
+	 *             if the type is not valid
+	 * @throws IOException
+	 *             if the history could not be read or written
+	 */
+	public void exportHistory(String username, int type, OutputStream out) throws UserAccountNotFoundException, IllegalArgumentException, IOException {
+		UserAccount userAccount = UserAccountService.getInstance().getByUsername(username);
+		InputStream in = HistoryExportDAO.openGzipCsv(userAccount.getId(), type);
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			out.flush();
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -8,6 +8,8 @@ import ch.uzh.csg.mbps.server.dao.PayInTransactionDAO;
 import ch.uzh.csg.mbps.server.domain.PayInTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.util.Emailer;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 
 import com.azazar.bitcoin.jsonrpcclient.Bitcoin.Transaction;
@@ -62,6 +64,19 @@ public class PayInTransactionService {
 		return PayInTransactionDAO.getHistory(username, page);
 	}
 
+	/**
+	 * Returns the page of {@link PayInTransaction}s of UserAccount with
+	 * username which follows the given cursor.
+	 * 
+	 * @param username
+	 * @param cursor pointing to the last entry of the previous page or null for the first page
+	 * @return HistoryPage with the HistoryPayInTransactions and the cursor for the next page
+	 * @throws UserAccountNotFoundException
+	 */
+	public HistoryPage<HistoryPayInTransaction> getHistory(String username, HistoryCursor cursor) throws UserAccountNotFoundException {
+		return PayInTransactionDAO.getHistory(username, cursor);
+	}
+
 	/**
 	 * Counts and returns number of {@link PayInTransaction}s which are saved in the DB
 	 * for {@link UserAccount} with username.
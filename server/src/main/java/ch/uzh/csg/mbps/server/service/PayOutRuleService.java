@@ -1,18 +1,30 @@
 package ch.uzh.csg.mbps.server.service;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
 
 import ch.uzh.csg.mbps.responseobject.PayOutRulesTransferObject;
 import ch.uzh.csg.mbps.server.dao.PayOutRuleDAO;
+import ch.uzh.csg.mbps.server.dao.PayOutTransactionDAO;
 import ch.uzh.csg.mbps.server.domain.PayOutRule;
 import ch.uzh.csg.mbps.server.domain.PayOutTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.util.BitcoindController;
 import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.HibernateUtil;
+import ch.uzh.csg.mbps.server.util.exceptions.BitcoinSendUncertainException;
 import ch.uzh.csg.mbps.server.util.exceptions.PayOutRuleNotFoundException;
 import ch.uzh.csg.mbps.server.util.exceptions.PayOutRulesAlreadyDefinedException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
@@ -24,6 +36,7 @@ import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
  *
  */
 public class PayOutRuleService {
+	private static Logger LOGGER = Logger.getLogger(PayOutRuleService.class);
 	private static PayOutRuleService payOutRuleService;
 	public static Boolean testingMode = false;
 
@@ -56,13 +69,10 @@ public class PayOutRuleService {
 	public void createRule(PayOutRulesTransferObject porto, String username) throws UserAccountNotFoundException, BitcoinException, PayOutRulesAlreadyDefinedException {
 		UserAccount user = UserAccountService.getInstance().getByUsername(username);
 		long userId = user.getId();
-		boolean noRulesDefined = true;
-		try {
-			noRulesDefined = PayOutRuleDAO.getByUserId(userId).isEmpty();
-		} catch (PayOutRuleNotFoundException e) {
-			noRulesDefined = true;
-		}
+		boolean noRulesDefined = PayOutRuleDAO.getByUserId(userId).isEmpty();
 		if(noRulesDefined && porto.getPayOutRulesList().size() <= 28 || testingMode){
+			//do not hold a connection while waiting for bitcoind
+			HibernateUtil.releaseRequestSession();
 			ch.uzh.csg.mbps.model.PayOutRule por;
 			for(int i = 0;i<porto.getPayOutRulesList().size();i++) {
 				por = porto.getPayOutRulesList().get(i);
@@ -87,7 +97,10 @@ public class PayOutRuleService {
 	 */
 	public ArrayList<PayOutRule> getRules(String username) throws PayOutRuleNotFoundException, UserAccountNotFoundException {
 		UserAccount user = UserAccountService.getInstance().getByUsername(username);
-		return PayOutRuleDAO.getByUserId(user.getId());
+		ArrayList<PayOutRule> rules = PayOutRuleDAO.getByUserId(user.getId());
+		if (rules.isEmpty())
+			throw new PayOutRuleNotFoundException();
+		return rules;
 	}
 
 	/**
@@ -108,13 +121,28 @@ public class PayOutRuleService {
 	 * to the PayOutRule.
 	 * 
 	 * @param sellerAccount
-	 * @throws PayOutRuleNotFoundException
 	 * @throws UserAccountNotFoundException
 	 * @throws BitcoinException
 	 */
-	public void checkBalanceLimitRules(UserAccount sellerAccount) throws PayOutRuleNotFoundException, UserAccountNotFoundException, BitcoinException {
-		sellerAccount = UserAccountService.getInstance().getById(sellerAccount.getId());
-		List<PayOutRule> rules = PayOutRuleDAO.getByUserId(sellerAccount.getId());
+	public void checkBalanceLimitRules(UserAccount sellerAccount) throws UserAccountNotFoundException, BitcoinException {
+		checkBalanceLimitRules(sellerAccount.getId());
+	}
+
+	/**
+	 * Checks the balance limit {@link PayOutRule}s of the UserAccount with
+	 * the given id, see {@link #checkBalanceLimitRules(UserAccount)}. Called
+	 * by the {@link BalanceLimitChecker} after a transaction.
+	 * 
+	 * @param userId
+	 * @throws UserAccountNotFoundException
+	 * @throws BitcoinException
+	 */
+	public void checkBalanceLimitRules(long userId) throws UserAccountNotFoundException, BitcoinException {
+		List<PayOutRule> rules = PayOutRuleDAO.getByUserId(userId);
+		if (rules.isEmpty())
+			return;
+
+		UserAccount sellerAccount = UserAccountService.getInstance().getById(userId);
 
 		PayOutRule tempRule;
 		for (int i=0; i < rules.size(); i++){
@@ -138,12 +166,19 @@ public class PayOutRuleService {
 	 * @throws PayOutRuleNotFoundException
 	 */
 	public List<PayOutRule> getRules(long userId) throws PayOutRuleNotFoundException{
-		return PayOutRuleDAO.getByUserId(userId);
+		List<PayOutRule> rules = PayOutRuleDAO.getByUserId(userId);
+		if (rules.isEmpty())
+			throw new PayOutRuleNotFoundException();
+		return rules;
 	}
 
 	/**
 	 * Checks if Rules exist for the current hour and day. If yes these
-	 * {@link PayOutRule}s are executed.
+	 * {@link PayOutRule}s are executed. All due PayOuts are read with one
+	 * query, their addresses are validated with one request to bitcoind and
+	 * they are sent in batches of Config.PAYOUT_BATCH_SIZE, each with one
+	 * Bitcoin transaction. The balances of a batch are debited within one
+	 * database transaction before it is sent and refunded if sending fails.
 	 */
 	public void checkAllRules() {
 		Date date = new Date();
@@ -152,26 +187,120 @@ public class PayOutRuleService {
 		int hour = calendar.get(Calendar.HOUR_OF_DAY); // hour formatted in 24h
 		int day = calendar.get(Calendar.DAY_OF_WEEK); // day of week (sun = 1, mon = 2,...sat = 7)
 
-		List<PayOutRule> rules;
+		//the index tells without a query whether any rule is due this hour
+		if (PayOutRuleDAO.get(hour, day).isEmpty())
+			return;
+
+		List<PayOutTransaction> payOuts = PayOutRuleDAO.getDuePayOuts(hour, day);
+		if (payOuts.isEmpty())
+			return;
+
 		try {
-			rules = PayOutRuleDAO.get(hour, day);
-			PayOutRule tempRule;
-			for (int i = 0; i < rules.size(); i++) {
-				tempRule = rules.get(i);
-				try {
-					UserAccount user = UserAccountService.getInstance().getById(tempRule.getUserId());
-					if (user.getBalance().compareTo(Config.TRANSACTION_FEE) == 1) {
-						PayOutTransaction pot = new PayOutTransaction();
-						pot.setUserID(user.getId());
-						pot.setBtcAddress(tempRule.getPayoutAddress());
-						pot.setAmount(user.getBalance().subtract(Config.TRANSACTION_FEE));
-						PayOutTransactionService.getInstance().createPayOutTransaction(user.getUsername(),pot);
-					}
-				} catch (UserAccountNotFoundException | BitcoinException e) {
-				}
+			payOuts = removeInvalidAddresses(payOuts);
+		} catch (BitcoinException e) {
+			LOGGER.error("Couldn't validate PayOut addresses. ErrorMessage: " + e.getMessage());
+			return;
+		}
+
+		for (List<PayOutTransaction> batch : createBatches(payOuts)) {
+			for (PayOutTransaction pot : batch) {
+				pot.setTimestamp(date);
+			}
+
+			//the balances are debited before the Bitcoins are sent, so payments in between cannot spend them
+			List<PayOutTransaction> reserved;
+			try {
+				reserved = PayOutTransactionDAO.reservePayOutTransactions(batch);
+			} catch (HibernateException e) {
+				LOGGER.error("Couldn't reserve " + batch.size() + " PayOuts. ErrorMessage: " + e.getMessage());
+				continue;
+			}
+			if (reserved.isEmpty())
+				continue;
+
+			Map<String, BigDecimal> amounts = new LinkedHashMap<String, BigDecimal>();
+			for (PayOutTransaction pot : reserved) {
+				amounts.put(pot.getBtcAddress(), pot.getAmount().subtract(Config.TRANSACTION_FEE));
+			}
+
+			String transactionID;
+			try {
+				transactionID = BitcoindController.sendMany(amounts);
+			} catch (BitcoinSendUncertainException e) {
+				//refunding PayOuts which may have been sent would pay them twice
+				LOGGER.fatal("PayOuts may have been sent, they stay pending until they are reconciled: " + reserved + " ErrorMessage: " + e.getMessage());
+				continue;
+			} catch (BitcoinException e) {
+				LOGGER.error("Couldn't send " + reserved.size() + " PayOuts. ErrorMessage: " + e.getMessage());
+				cancel(reserved);
+				continue;
+			}
+
+			try {
+				PayOutTransactionDAO.setTransactionID(reserved, transactionID);
+			} catch (HibernateException e) {
+				LOGGER.fatal("PayOuts have been sent with TransactionID " + transactionID + " but are still pending: " + reserved);
+			}
+		}
+	}
+
+	private static void cancel(List<PayOutTransaction> reserved) {
+		try {
+			PayOutTransactionDAO.cancelPayOutTransactions(reserved);
+		} catch (HibernateException e) {
+			LOGGER.fatal("PayOuts have not been sent but could not be refunded: " + reserved);
+		}
+	}
+
+	private static List<PayOutTransaction> removeInvalidAddresses(List<PayOutTransaction> payOuts) throws BitcoinException {
+		List<String> addresses = new ArrayList<String>(new LinkedHashSet<String>(getAddresses(payOuts)));
+		List<Boolean> valid = BitcoindController.validateAddresses(addresses);
+		Set<String> validAddresses = new HashSet<String>();
+		for (int i = 0; i < addresses.size(); i++) {
+			if (valid.get(i))
+				validAddresses.add(addresses.get(i));
+		}
+
+		List<PayOutTransaction> result = new ArrayList<PayOutTransaction>(payOuts.size());
+		for (PayOutTransaction pot : payOuts) {
+			if (validAddresses.contains(pot.getBtcAddress()))
+				result.add(pot);
+			else
+				LOGGER.warn("PayOutRule of UserAccount with ID " + pot.getUserID() + " has an invalid address: " + pot.getBtcAddress());
+		}
+		return result;
+	}
+
+	private static List<String> getAddresses(List<PayOutTransaction> payOuts) {
+		List<String> addresses = new ArrayList<String>(payOuts.size());
+		for (PayOutTransaction pot : payOuts) {
+			addresses.add(pot.getBtcAddress());
+		}
+		return addresses;
+	}
+
+	/**
+	 * Splits the PayOuts into batches of at most Config.PAYOUT_BATCH_SIZE.
+	 * Bitcoind does not allow an address twice in one transaction, so PayOuts
+	 * of different UserAccounts to the same address are put into different
+	 * batches.
+	 */
+	private static List<List<PayOutTransaction>> createBatches(List<PayOutTransaction> payOuts) {
+		List<List<PayOutTransaction>> batches = new ArrayList<List<PayOutTransaction>>();
+		List<Set<String>> batchAddresses = new ArrayList<Set<String>>();
+
+		for (PayOutTransaction pot : payOuts) {
+			int i = 0;
+			while (i < batches.size() && (batches.get(i).size() >= Config.PAYOUT_BATCH_SIZE || batchAddresses.get(i).contains(pot.getBtcAddress())))
+				i++;
+
+			if (i == batches.size()) {
+				batches.add(new ArrayList<PayOutTransaction>());
+				batchAddresses.add(new HashSet<String>());
 			}
-		} catch (PayOutRuleNotFoundException e1) {
-			// do nothing (no PayOutRule found for time/day)
+			batches.get(i).add(pot);
+			batchAddresses.get(i).add(pot.getBtcAddress());
 		}
+		return batches;
 	}
 }
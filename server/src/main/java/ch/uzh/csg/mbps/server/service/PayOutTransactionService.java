@@ -2,6 +2,10 @@ package ch.uzh.csg.mbps.server.service;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
 
 import ch.uzh.csg.mbps.model.HistoryPayOutTransaction;
 import ch.uzh.csg.mbps.responseobject.CustomResponseObject;
@@ -10,6 +14,11 @@ import ch.uzh.csg.mbps.server.domain.PayOutTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.util.BitcoindController;
 import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.HibernateUtil;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
+import ch.uzh.csg.mbps.server.util.exceptions.BitcoinSendUncertainException;
+import ch.uzh.csg.mbps.server.util.exceptions.InsufficientBalanceException;
 import ch.uzh.csg.mbps.server.util.exceptions.TransactionException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 
@@ -21,6 +30,7 @@ import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
  *
  */
 public class PayOutTransactionService {
+	private static Logger LOGGER = Logger.getLogger(PayOutTransactionService.class);
 	private static PayOutTransactionService payOutTransactionService;
 
 	private PayOutTransactionService() {
@@ -50,6 +60,19 @@ public class PayOutTransactionService {
 	public ArrayList<HistoryPayOutTransaction> getHistory(String username, int page) throws UserAccountNotFoundException {
 		return PayOutTransactionDAO.getHistory(username, page);
 	}
+
+	/**
+	 * Returns the page of {@link PayOutTransaction}s of {@link UserAccount}
+	 * with username which follows the given cursor.
+	 * 
+	 * @param username
+	 * @param cursor pointing to the last entry of the previous page or null for the first page
+	 * @return HistoryPage with the HistoryPayOutTransactions and the cursor for the next page
+	 * @throws UserAccountNotFoundException
+	 */
+	public HistoryPage<HistoryPayOutTransaction> getHistory(String username, HistoryCursor cursor) throws UserAccountNotFoundException {
+		return PayOutTransactionDAO.getHistory(username, cursor);
+	}
 	
 	/**
 	 * Counts and returns number of {@link PayOutTransaction}s which are saved in the DB
@@ -78,16 +101,41 @@ public class PayOutTransactionService {
 		pot.setUserID(user.getId());
 		
 		if(user.getBalance().compareTo(pot.getAmount().add(Config.TRANSACTION_FEE)) >= 0){
+			//do not hold a connection while waiting for bitcoind
+			HibernateUtil.releaseRequestSession();
 			if (BitcoindController.validateAddress(pot.getBtcAddress())) {
-				//do payOut in BitcoindController
-				String transactionID = BitcoindController.sendCoins(pot.getBtcAddress(), pot.getAmount());
-				pot.setTransactionID(transactionID);
-				
 				BigDecimal amount = pot.getAmount();
 				pot.setAmount(pot.getAmount().add(Config.TRANSACTION_FEE));
 
-				//write payOut to DB
-				PayOutTransactionDAO.createPayOutTransaction(pot);
+				//debit the locked balance before sending, so payments in between cannot spend it
+				try {
+					PayOutTransactionDAO.reservePayOutTransaction(pot);
+				} catch (InsufficientBalanceException e) {
+					return new CustomResponseObject(false, "Couldn't pay out the desired amount. Your balance is lower than your specified PayOut amount.");
+				}
+				
+				//do payOut in BitcoindController
+				String transactionID;
+				try {
+					transactionID = BitcoindController.sendCoins(pot.getBtcAddress(), amount);
+				} catch (BitcoinSendUncertainException e) {
+					//refunding a PayOut which may have been sent would pay it twice
+					LOGGER.fatal("PayOut may have been sent, it stays pending until it is reconciled: " + pot + " ErrorMessage: " + e.getMessage());
+					throw e;
+				} catch (BitcoinException e) {
+					try {
+						PayOutTransactionDAO.cancelPayOutTransactions(Collections.singletonList(pot));
+					} catch (HibernateException e1) {
+						LOGGER.fatal("PayOut has not been sent but could not be refunded: " + pot);
+					}
+					throw e;
+				}
+				
+				try {
+					PayOutTransactionDAO.setTransactionID(Collections.singletonList(pot), transactionID);
+				} catch (HibernateException e) {
+					LOGGER.fatal("PayOut has been sent with TransactionID " + transactionID + " but is still pending: " + pot);
+				}
 				return new CustomResponseObject(true, "Your PayOut Transaction of " + amount  + "BTC " + "(+" + Config.TRANSACTION_FEE + "BTC TxFee)" + " was successfully sent to the Bitcoin Network.");
 			} else {
 				return new CustomResponseObject(false, "Couldn't pay out the desired amount. The BTC Address is invalid.");	
@@ -0,0 +1,88 @@
+package ch.uzh.csg.mbps.server.service;
+
+import java.security.PublicKey;
+
+import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.ExpiringLruCache;
+import ch.uzh.csg.mbps.util.KeyHandler;
+
+/**
+ * Bounded cache of the decoded public keys of {@link UserAccount}s, so the
+ * encoded keys are not decoded for every signature check. A key is cached
+ * with the key version of the UserAccount and only returned for the same
+ * version, so a changed key is never verified against an outdated one. Keys
+ * are loaded lazily from the UserAccount and removed by
+ * {@link UserAccountService#updateAccount(String, UserAccount)} when they
+ * change.
+ *
+ */
+public class PublicKeyCache {
+	private static PublicKeyCache publicKeyCache;
+
+	private final ExpiringLruCache<Long, CachedKey> keys = new ExpiringLruCache<Long, CachedKey>(Config.PUBLIC_KEY_CACHE_SIZE, Config.PUBLIC_KEY_CACHE_TTL);
+
+	private PublicKeyCache() {
+	}
+
+	/**
+	 * Returns new or existing instance of {@link PublicKeyCache}.
+	 *
+	 * @return instance of PublicKeyCache
+	 */
+	public static synchronized PublicKeyCache getInstance() {
+		if (publicKeyCache == null)
+			publicKeyCache = new PublicKeyCache();
+
+		return publicKeyCache;
+	}
+
+	/**
+	 * Returns the decoded public key of the given UserAccount, or null if it
+	 * has no public key.
+	 *
+	 * @param userAccount
+	 * @return PublicKey or null
+	 * @throws Exception
+	 *             if the public key could not be decoded
+	 */
+	public PublicKey get(UserAccount userAccount) throws Exception {
+		if (userAccount.getPublicKey() == null)
+			return null;
+
+		CachedKey cached = keys.get(userAccount.getId());
+		if (cached != null && cached.version == userAccount.getPublicKeyVersion())
+			return cached.publicKey;
+
+		PublicKey publicKey = KeyHandler.decodePublicKey(userAccount.getPublicKey());
+		keys.put(userAccount.getId(), new CachedKey(userAccount.getPublicKeyVersion(), publicKey));
+		return publicKey;
+	}
+
+	/**
+	 * Removes the public key of the UserAccount with the given id.
+	 *
+	 * @param userId
+	 */
+	public void invalidate(long userId) {
+		keys.remove(userId);
+	}
+
+	/**
+	 * Returns the size, hits and misses of the cache for logging.
+	 */
+	public String getStatistics() {
+		return keys.toString();
+	}
+
+	private static class CachedKey {
+		private final int version;
+		private final PublicKey publicKey;
+
+		private CachedKey(int version, PublicKey publicKey) {
+			this.version = version;
+			this.publicKey = publicKey;
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package ch.uzh.csg.mbps.server.service;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+import ch.uzh.csg.mbps.util.KeyHandler;
+
+/**
+ * Holds the key pair the server signs its responses with. The keys are
+ * decoded and the public key is encoded once when they are set, a new key
+ * pair replaces the whole instance with the next key version, so readers
+ * always see a consistent key pair.
+ *
+ */
+public class ServerKeys {
+	private static volatile ServerKeys serverKeys;
+
+	private final int version;
+	private final PrivateKey privateKey;
+	private final PublicKey publicKey;
+	private final String encodedPublicKey;
+
+	private ServerKeys(int version, KeyPair keyPair) {
+		this.version = version;
+		this.privateKey = keyPair.getPrivate();
+		this.publicKey = keyPair.getPublic();
+		this.encodedPublicKey = KeyHandler.encodePublicKey(publicKey);
+	}
+
+	/**
+	 * Sets the key pair of the server.
+	 *
+	 * @param keyPair
+	 */
+	public static synchronized void set(KeyPair keyPair) {
+		int version = (serverKeys == null) ? 1 : serverKeys.version + 1;
+		serverKeys = new ServerKeys(version, keyPair);
+	}
+
+	/**
+	 * Returns the current key pair of the server.
+	 *
+	 * @return ServerKeys
+	 * @throws IllegalStateException
+	 *             if the key pair has not been set yet
+	 */
+	public static ServerKeys get() {
+		ServerKeys keys = serverKeys;
+		if (keys == null)
+			throw new IllegalStateException("The server keys have not been loaded.");
+
+		return keys;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+
+	public PublicKey getPublicKey() {
+		return publicKey;
+	}
+
+	public String getEncodedPublicKey() {
+		return encodedPublicKey;
+	}
+
+}
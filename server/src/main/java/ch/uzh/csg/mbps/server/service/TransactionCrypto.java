@@ -0,0 +1,232 @@
+package ch.uzh.csg.mbps.server.service;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignedObject;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.uzh.csg.mbps.model.Transaction;
+import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.ThreadPools;
+import ch.uzh.csg.mbps.util.KeyHandler;
+
+/**
+ * Decodes, verifies and signs the {@link SignedObject}s of payment requests.
+ * The signatures of buyer and seller are verified concurrently on a pool of
+ * Config.CRYPTO_THREADS threads, if its queue is full the verification runs on
+ * the request thread. Decoded public keys are taken from the
+ * {@link PublicKeyCache} and every thread reuses its {@link Signature}
+ * instances. The time spent in every stage is measured for logging.
+ *
+ */
+public class TransactionCrypto {
+	private static TransactionCrypto transactionCrypto;
+
+	private final ThreadPoolExecutor executor;
+
+	/*
+	 * Signature instances of the current thread by algorithm.
+	 */
+	private final ThreadLocal<Map<String, Signature>> signatures = new ThreadLocal<Map<String, Signature>>() {
+		@Override
+		protected Map<String, Signature> initialValue() {
+			return new HashMap<String, Signature>();
+		}
+	};
+
+	/*
+	 * Algorithm of the KeyHandler, known after the first response has been
+	 * signed.
+	 */
+	private volatile String signAlgorithm;
+
+	private final Stage decode = new Stage();
+	private final Stage verify = new Stage();
+	private final Stage sign = new Stage();
+
+	private TransactionCrypto() {
+		executor = new ThreadPoolExecutor(Config.CRYPTO_THREADS, Config.CRYPTO_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Config.CRYPTO_QUEUE_SIZE), new CryptoThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Returns new or existing instance of {@link TransactionCrypto}.
+	 *
+	 * @return instance of TransactionCrypto
+	 */
+	public static synchronized TransactionCrypto getInstance() {
+		if (transactionCrypto == null)
+			transactionCrypto = new TransactionCrypto();
+
+		return transactionCrypto;
+	}
+
+	/**
+	 * Stops the threads of the {@link TransactionCrypto}, if it has been
+	 * started.
+	 */
+	public static synchronized void shutdown() {
+		if (transactionCrypto != null) {
+			ThreadPools.shutdown(transactionCrypto.executor, "TransactionCrypto");
+			transactionCrypto = null;
+		}
+	}
+
+	/**
+	 * Returns the {@link Transaction} contained in the given SignedObject
+	 * without verifying the signature.
+	 *
+	 * @param signedObject
+	 * @return Transaction
+	 * @throws Exception
+	 *             if the SignedObject does not contain a Transaction
+	 */
+	public Transaction decode(SignedObject signedObject) throws Exception {
+		long start = System.nanoTime();
+		try {
+			return KeyHandler.retrieveTransaction(signedObject);
+		} finally {
+			decode.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Verifies the signatures of the buyer's and the seller's request
+	 * concurrently. A signature of a UserAccount without public key is not
+	 * valid.
+	 *
+	 * @param buyerAccount
+	 * @param buyerRequest
+	 * @param sellerAccount
+	 * @param sellerRequest
+	 * @return true if both signatures are valid
+	 * @throws Exception
+	 *             if a public key could not be decoded or a signature could
+	 *             not be verified
+	 */
+	public boolean verify(UserAccount buyerAccount, SignedObject buyerRequest, UserAccount sellerAccount, SignedObject sellerRequest) throws Exception {
+		long start = System.nanoTime();
+		try {
+			Future<Boolean> sellerValid = executor.submit(new VerifyTask(sellerAccount, sellerRequest));
+			Future<Boolean> buyerValid = executor.submit(new VerifyTask(buyerAccount, buyerRequest));
+			return buyerValid.get() && sellerValid.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		} finally {
+			verify.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Signs the given {@link Transaction} with the given private key, using
+	 * the same algorithm as the KeyHandler.
+	 *
+	 * @param transaction
+	 * @param privateKey
+	 * @return SignedObject containing the Transaction
+	 * @throws Exception
+	 */
+	public SignedObject sign(Transaction transaction, PrivateKey privateKey) throws Exception {
+		long start = System.nanoTime();
+		try {
+			String algorithm = signAlgorithm;
+			if (algorithm == null) {
+				SignedObject signedObject = KeyHandler.signTransaction(transaction, privateKey);
+				signAlgorithm = signedObject.getAlgorithm();
+				return signedObject;
+			}
+			return new SignedObject(transaction, privateKey, getSignature(algorithm));
+		} finally {
+			sign.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the number of calls and the average time in microseconds of
+	 * every stage, the number of queued verifications and the public key
+	 * cache statistics.
+	 */
+	public String getStatistics() {
+		return "decode [" + decode + "], verify [" + verify + "], sign [" + sign + "], queued: " + executor.getQueue().size() + ", public keys [" + PublicKeyCache.getInstance().getStatistics() + "]";
+	}
+
+	private boolean verifySignature(UserAccount userAccount, SignedObject signedObject) throws Exception {
+		PublicKey publicKey = PublicKeyCache.getInstance().get(userAccount);
+		if (publicKey == null)
+			return false;
+
+		return signedObject.verify(publicKey, getSignature(signedObject.getAlgorithm()));
+	}
+
+	private Signature getSignature(String algorithm) throws GeneralSecurityException {
+		Map<String, Signature> map = signatures.get();
+		Signature signature = map.get(algorithm);
+		if (signature == null) {
+			signature = Signature.getInstance(algorithm);
+			map.put(algorithm, signature);
+		}
+		return signature;
+	}
+
+	private class VerifyTask implements Callable<Boolean> {
+		private final UserAccount userAccount;
+		private final SignedObject signedObject;
+
+		private VerifyTask(UserAccount userAccount, SignedObject signedObject) {
+			this.userAccount = userAccount;
+			this.signedObject = signedObject;
+		}
+
+		@Override
+		public Boolean call() throws Exception {
+			return verifySignature(userAccount, signedObject);
+		}
+	}
+
+	private static class Stage {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+
+		private void add(long duration) {
+			count.incrementAndGet();
+			nanos.addAndGet(duration);
+		}
+
+		@Override
+		public String toString() {
+			long n = count.get();
+			long avgMicros = (n == 0) ? 0 : nanos.get() / n / 1000;
+			return "count: " + n + " avg: " + avgMicros + "us";
+		}
+	}
+
+	private static class CryptoThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "TransactionCrypto-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -12,15 +12,17 @@ import ch.uzh.csg.mbps.server.clientinterface.ITransaction;
 import ch.uzh.csg.mbps.server.dao.TransactionDAO;
 import ch.uzh.csg.mbps.server.domain.DbTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
-import ch.uzh.csg.mbps.server.util.Constants;
-import ch.uzh.csg.mbps.server.util.exceptions.PayOutRuleNotFoundException;
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.ExpiringLruCache;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
+import ch.uzh.csg.mbps.server.util.exceptions.DuplicateTransactionException;
+import ch.uzh.csg.mbps.server.util.exceptions.InsufficientBalanceException;
+import ch.uzh.csg.mbps.server.util.exceptions.InvalidTransactionNumberException;
 import ch.uzh.csg.mbps.server.util.exceptions.TransactionException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
-import ch.uzh.csg.mbps.util.KeyHandler;
 import ch.uzh.csg.mbps.util.Pair;
 
-import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
-
 /**
  * Service class for {@link DbTransaction} between two {@link UserAccount}s.
  *
@@ -34,6 +36,13 @@ public class TransactionService implements ITransaction {
 	public static final String PAYMENT_REFUSE = "The server refused the payment.";
 	
 	
+	/*
+	 * Signed responses of recently created transactions by request key, so a
+	 * client retrying after a timeout gets the same response without
+	 * touching the database again.
+	 */
+	private static final ExpiringLruCache<String, SignedObject> RECENT_RESPONSES = new ExpiringLruCache<String, SignedObject>(Config.TRANSACTION_RESPONSE_CACHE_SIZE, Config.TRANSACTION_RESPONSE_CACHE_TTL);
+	
 	private static TransactionService transactionService;
 	
 	private TransactionService() {
@@ -56,6 +65,11 @@ public class TransactionService implements ITransaction {
 		return TransactionDAO.getHistory(username, page);
 	}
 	
+	@Override
+	public HistoryPage<HistoryTransaction> getHistory(String username, HistoryCursor cursor) throws UserAccountNotFoundException {
+		return TransactionDAO.getHistory(username, cursor);
+	}
+	
 	/**
 	 * Counts and returns number of {@link DbTransaction}s which are saved in the DB for
 	 * {@link UserAccount} with username.
@@ -74,11 +88,12 @@ public class TransactionService implements ITransaction {
 		if (signedObjectPair == null || signedObjectPair.getFirst() == null || signedObjectPair.getSecond() == null)
 			throw new TransactionException(PAYMENT_REFUSE);
 		
+		TransactionCrypto crypto = TransactionCrypto.getInstance();
 		Transaction buyerTransaction = null;
 		Transaction sellerTransaction = null;
 		try {
-			buyerTransaction = KeyHandler.retrieveTransaction(signedObjectPair.getFirst());
-			sellerTransaction = KeyHandler.retrieveTransaction(signedObjectPair.getSecond());;
+			buyerTransaction = crypto.decode(signedObjectPair.getFirst());
+			sellerTransaction = crypto.decode(signedObjectPair.getSecond());
 		} catch (Exception e) {
 			throw new TransactionException(INTERNAL_ERROR);
 		}
@@ -92,7 +107,7 @@ public class TransactionService implements ITransaction {
 		String buyerUsername = buyerTransaction.getBuyerUsername();
 		String sellerUsername = buyerTransaction.getSellerUsername();
 		
-		if (buyerUsername == sellerUsername)
+		if (buyerUsername == null || buyerUsername.equalsIgnoreCase(sellerUsername))
 			throw new TransactionException(PAYMENT_REFUSE);
 			
 		UserAccount buyerAccount = null;
@@ -104,54 +119,71 @@ public class TransactionService implements ITransaction {
 			throw new TransactionException(PAYMENT_REFUSE);
 		}
 		
-		//TODO jeton: fix!
-//		if (!transactionNumbersValid(buyerTransaction, buyerAccount.getTransactionNumber(), sellerTransaction, sellerAccount.getTransactionNumber()))
-//			throw new TransactionException(PAYMENT_REFUSE);
+		if (buyerAccount.getId() == sellerAccount.getId())
+			throw new TransactionException(PAYMENT_REFUSE);
 		
 		if (!transactionRequestsIdentic(buyerTransaction, sellerTransaction))
 			throw new TransactionException(PAYMENT_REFUSE);
 		
 		boolean signaturesNotValid;
 		try {
-			signaturesNotValid = !userRequestValid(buyerAccount, signedObjectPair.getFirst()) || !userRequestValid(sellerAccount, signedObjectPair.getSecond());
+			signaturesNotValid = !crypto.verify(buyerAccount, signedObjectPair.getFirst(), sellerAccount, signedObjectPair.getSecond());
 		} catch (Exception e) {
 			throw new TransactionException(INTERNAL_ERROR);
 		}
 		if (signaturesNotValid)
 			throw new TransactionException(PAYMENT_REFUSE);
 		
-		if ((buyerAccount.getBalance().subtract(buyerTransaction.getAmount())).compareTo(BigDecimal.ZERO) < 0)
-			throw new TransactionException(BALANCE);
+		//a retried request gets the response of the first one, the key is only cached after the numbers have been validated by TransactionDAO
+		String requestKey = getRequestKey(buyerAccount, sellerAccount, buyerTransaction);
+		SignedObject recentResponse = RECENT_RESPONSES.get(requestKey);
+		if (recentResponse != null)
+			return recentResponse;
 		
 		try {
-			DbTransaction dbTransaction = new DbTransaction(buyerTransaction);
-			TransactionDAO.createTransaction(dbTransaction, buyerAccount, sellerAccount);
+			DbTransaction dbTransaction = new DbTransaction(buyerTransaction, buyerAccount, sellerAccount);
+			TransactionDAO.createTransaction(dbTransaction);
+			
+			//check if user account balance limit has been exceeded (according to PayOutRules) in the background
+			BalanceLimitChecker.getInstance().schedule(sellerAccount.getId());
+		} catch (DuplicateTransactionException e) {
+			if (e.getExisting().getAmount().compareTo(buyerTransaction.getAmount()) != 0)
+				throw new TransactionException(PAYMENT_REFUSE);
+		} catch (InvalidTransactionNumberException e) {
+			throw new TransactionException(PAYMENT_REFUSE);
+		} catch (InsufficientBalanceException e) {
+			throw new TransactionException(BALANCE);
+		} catch (UserAccountNotFoundException e) {
+			throw new TransactionException(PAYMENT_REFUSE);
 		} catch (HibernateException e) {
 			throw new TransactionException(HIBERNATE_ERROR);
 		}
 		
-		//check if user account balance limit has been exceeded (according to PayOutRules)
-		try {
-			PayOutRuleService.getInstance().checkBalanceLimitRules(sellerAccount);
-		} catch (PayOutRuleNotFoundException | BitcoinException e) {
-			// do nothing as user requests actually a transaction and not a payout
-		}
-		
 		SignedObject signedTransaction = null;
 		try {
-			signedTransaction = KeyHandler.signTransaction(sellerTransaction, Constants.PRIVATEKEY);
+			signedTransaction = crypto.sign(sellerTransaction, ServerKeys.get().getPrivateKey());
 		} catch (Exception e) {
 			throw new TransactionException(INTERNAL_ERROR);
 		}
 		
+		RECENT_RESPONSES.put(requestKey, signedTransaction);
 		return signedTransaction;
 	}
 	
-	private boolean transactionNumbersValid(Transaction buyerTx, long buyerTxNr, Transaction sellerTx, long sellerTxNr) {
-		return ((buyerTx.getTransactionNrBuyer() == buyerTxNr)
-				&& (sellerTx.getTransactionNrBuyer() == buyerTxNr))
-				&& (buyerTx.getTransactionNrSeller() == sellerTxNr)
-				&& (sellerTx.getTransactionNrSeller() == sellerTxNr);
+	/**
+	 * Returns the key identifying a payment request, which is unique for
+	 * every {@link DbTransaction} since the transaction numbers are issued by
+	 * the server and used by one payment only.
+	 */
+	private static String getRequestKey(UserAccount buyerAccount, UserAccount sellerAccount, Transaction transaction) {
+		return buyerAccount.getId() + ":" + sellerAccount.getId() + ":" + transaction.getTransactionNrBuyer() + ":" + transaction.getTransactionNrSeller() + ":" + transaction.getAmount().stripTrailingZeros().toPlainString();
+	}
+	
+	/**
+	 * Returns statistics about the cache of recent responses for logging.
+	 */
+	public static String getRecentResponseStatistics() {
+		return RECENT_RESPONSES.toString();
 	}
 	
 	private boolean transactionRequestsIdentic(Transaction buyerTransaction, Transaction sellerTransaction) {
@@ -162,10 +194,4 @@ public class TransactionService implements ITransaction {
 				&& (buyerTransaction.getAmount().equals(sellerTransaction.getAmount())));
 	}
 	
-	private boolean userRequestValid(UserAccount userAccount, SignedObject signedObject) throws Exception {
-		//TODO jeton: fix!
-//		return KeyHandler.verifyObject(signedObject, userAccount.getPublicKey());
-		return false;
-	}
-	
 }
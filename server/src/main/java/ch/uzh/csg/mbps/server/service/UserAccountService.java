@@ -15,6 +15,7 @@ import ch.uzh.csg.mbps.server.util.BitcoindController;
 import ch.uzh.csg.mbps.server.util.Config;
 import ch.uzh.csg.mbps.server.util.CustomPasswordEncoder;
 import ch.uzh.csg.mbps.server.util.Emailer;
+import ch.uzh.csg.mbps.server.util.HibernateUtil;
 import ch.uzh.csg.mbps.server.util.PasswordMatcher;
 import ch.uzh.csg.mbps.server.util.exceptions.BalanceNotZeroException;
 import ch.uzh.csg.mbps.server.util.exceptions.EmailAlreadyExistsException;
@@ -156,6 +157,7 @@ public class UserAccountService implements IUserAccount {
 	}
 	
 	private String getNewPaymentAddress() throws BitcoinException {
+		HibernateUtil.releaseRequestSession();
 		return BitcoindController.getNewAddress();
 	}
 	
@@ -163,19 +165,33 @@ public class UserAccountService implements IUserAccount {
 		Emailer.sendEmailConfirmationLink(token, email);
 	}
 	
+	/**
+	 * Sends the verification link to the email address of the given
+	 * UserAccount again, at most as often as the
+	 * {@link VerificationEmailThrottle} allows.
+	 * 
+	 * @param userAccount
+	 */
 	public void resendVerificationEmail(UserAccount userAccount) {
-		String token;
-		try {
-			token = UserAccountDAO.getVerificationTokenByUserId(userAccount.getId());
-			Emailer.sendEmailConfirmationLink(token, userAccount.getEmail());
-		} catch (VerificationTokenNotFoundException e) {
-			token = java.util.UUID.randomUUID().toString();
+		VerificationEmailThrottle throttle = VerificationEmailThrottle.getInstance();
+		if (!throttle.tryAcquire(userAccount.getId()))
+			return;
+		
+		String token = throttle.getVerificationToken(userAccount.getId());
+		if (token == null) {
 			try {
-				UserAccountDAO.createEmailVerificationToken(userAccount.getId(), token);
-				Emailer.sendEmailConfirmationLink(token, userAccount.getEmail());
-			} catch (HibernateException e1) { 
+				token = UserAccountDAO.getVerificationTokenByUserId(userAccount.getId());
+			} catch (VerificationTokenNotFoundException e) {
+				token = java.util.UUID.randomUUID().toString();
+				try {
+					UserAccountDAO.createEmailVerificationToken(userAccount.getId(), token);
+				} catch (HibernateException e1) {
+					return;
+				}
 			}
+			throttle.setVerificationToken(userAccount.getId(), token);
 		}
+		Emailer.sendEmailConfirmationLink(token, userAccount.getEmail());
 	}
 
 	@Override
@@ -206,8 +222,17 @@ public class UserAccountService implements IUserAccount {
 		if (updatedAccount.getPassword() != null && !updatedAccount.getPassword().isEmpty())
 			userAccount.setPassword(CustomPasswordEncoder.getEncodedPassword(updatedAccount.getPassword()));
 
+		//the key version is incremented by the DAO if the key has changed
+		boolean keyChanged = false;
+		if (updatedAccount.getPublicKey() != null && !updatedAccount.getPublicKey().equals(userAccount.getPublicKey())) {
+			userAccount.setPublicKey(updatedAccount.getPublicKey());
+			keyChanged = true;
+		}
+
 		try {
 			UserAccountDAO.updateAccount(userAccount);
+			if (keyChanged)
+				PublicKeyCache.getInstance().invalidate(userAccount.getId());
 			return true;
 		} catch (HibernateException e) {
 			return false;
@@ -0,0 +1,136 @@
+package ch.uzh.csg.mbps.server.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.uzh.csg.mbps.server.domain.EmailVerification;
+import ch.uzh.csg.mbps.server.util.Config;
+import ch.uzh.csg.mbps.server.util.ExpiringLruCache;
+
+/**
+ * Limits the verification emails resent to unverified UserAccounts, which
+ * happens on every login attempt. Every UserAccount has a token bucket which
+ * allows Config.VERIFICATION_EMAILS_PER_WINDOW emails per
+ * Config.VERIFICATION_EMAIL_WINDOW, further attempts neither access the
+ * database nor send an email. The verification token of the last email is
+ * kept with the bucket, so the {@link EmailVerification} is only read once per
+ * window.
+ *
+ * The buckets are kept in a bounded cache and expire one window after the
+ * last email, when they would be full again anyway.
+ *
+ */
+public class VerificationEmailThrottle {
+	private static VerificationEmailThrottle verificationEmailThrottle;
+
+	private final int capacity;
+	private final long window;
+	private final ExpiringLruCache<Long, Bucket> buckets;
+
+	private final AtomicLong allowed = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            max number of emails per window
+	 * @param window
+	 *            time in ms after which the bucket is full again
+	 * @param maxSize
+	 *            max number of UserAccounts kept
+	 */
+	public VerificationEmailThrottle(int capacity, long window, int maxSize) {
+		this.capacity = capacity;
+		this.window = window;
+		this.buckets = new ExpiringLruCache<Long, Bucket>(maxSize, window);
+	}
+
+	/**
+	 * Returns new or existing instance of {@link VerificationEmailThrottle}.
+	 *
+	 * @return instance of VerificationEmailThrottle
+	 */
+	public static synchronized VerificationEmailThrottle getInstance() {
+		if (verificationEmailThrottle == null)
+			verificationEmailThrottle = new VerificationEmailThrottle(Config.VERIFICATION_EMAILS_PER_WINDOW, Config.VERIFICATION_EMAIL_WINDOW, Config.VERIFICATION_EMAIL_THROTTLE_SIZE);
+
+		return verificationEmailThrottle;
+	}
+
+	/**
+	 * Takes a token from the bucket of the UserAccount with the given id.
+	 *
+	 * @param userId
+	 * @return true if a verification email may be sent
+	 */
+	public boolean tryAcquire(long userId) {
+		Bucket bucket = getBucket(userId);
+		synchronized (bucket) {
+			long now = System.currentTimeMillis();
+			bucket.tokens = Math.min(capacity, bucket.tokens + (double) (now - bucket.refilled) * capacity / window);
+			bucket.refilled = now;
+
+			if (bucket.tokens < 1) {
+				throttled.incrementAndGet();
+				return false;
+			}
+			bucket.tokens--;
+		}
+		//restarts the expiration, the bucket is not full before one window has passed
+		buckets.put(userId, bucket);
+		allowed.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the verification token last sent to the UserAccount with the
+	 * given id, or null if it is not known.
+	 */
+	public String getVerificationToken(long userId) {
+		Bucket bucket = buckets.get(userId);
+		if (bucket == null)
+			return null;
+
+		synchronized (bucket) {
+			return bucket.verificationToken;
+		}
+	}
+
+	/**
+	 * Remembers the verification token sent to the UserAccount with the given
+	 * id.
+	 */
+	public void setVerificationToken(long userId, String verificationToken) {
+		Bucket bucket = getBucket(userId);
+		synchronized (bucket) {
+			bucket.verificationToken = verificationToken;
+		}
+	}
+
+	/**
+	 * Returns the number of allowed and throttled emails and the size of the
+	 * cache for logging.
+	 */
+	public String getStatistics() {
+		return "allowed: " + allowed.get() + ", throttled: " + throttled.get() + ", accounts: " + buckets.size() + "/" + buckets.getMaxSize();
+	}
+
+	private synchronized Bucket getBucket(long userId) {
+		Bucket bucket = buckets.get(userId);
+		if (bucket == null) {
+			bucket = new Bucket(capacity, System.currentTimeMillis());
+			buckets.put(userId, bucket);
+		}
+		return bucket;
+	}
+
+	private static class Bucket {
+		private double tokens;
+		private long refilled;
+		private String verificationToken;
+
+		private Bucket(double tokens, long refilled) {
+			this.tokens = tokens;
+			this.refilled = refilled;
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.util.ArrayList;
+
+import ch.uzh.csg.mbps.model.HistoryPayInTransaction;
+import ch.uzh.csg.mbps.model.HistoryPayOutTransaction;
+import ch.uzh.csg.mbps.model.HistoryTransaction;
+import ch.uzh.csg.mbps.server.domain.UserAccount;
+
+/**
+ * The histories, the history sizes and the {@link UserAccount} which are shown
+ * on the main screen of the client. A history which has not been requested is
+ * null, its size is 0. The cursors are only set when the history is read with
+ * {@link HistoryCursor}s and there are more entries.
+ */
+public class AccountHistory {
+	private UserAccount userAccount;
+
+	private ArrayList<HistoryTransaction> transactions;
+	private ArrayList<HistoryPayInTransaction> payInTransactions;
+	private ArrayList<HistoryPayOutTransaction> payOutTransactions;
+
+	private long nofTransactions;
+	private long nofPayInTransactions;
+	private long nofPayOutTransactions;
+
+	private HistoryCursor nextTransactionCursor;
+	private HistoryCursor nextPayInCursor;
+	private HistoryCursor nextPayOutCursor;
+
+	public UserAccount getUserAccount() {
+		return userAccount;
+	}
+
+	public void setUserAccount(UserAccount userAccount) {
+		this.userAccount = userAccount;
+	}
+
+	public ArrayList<HistoryTransaction> getTransactions() {
+		return transactions;
+	}
+
+	public void setTransactions(ArrayList<HistoryTransaction> transactions) {
+		this.transactions = transactions;
+	}
+
+	public ArrayList<HistoryPayInTransaction> getPayInTransactions() {
+		return payInTransactions;
+	}
+
+	public void setPayInTransactions(ArrayList<HistoryPayInTransaction> payInTransactions) {
+		this.payInTransactions = payInTransactions;
+	}
+
+	public ArrayList<HistoryPayOutTransaction> getPayOutTransactions() {
+		return payOutTransactions;
+	}
+
+	public void setPayOutTransactions(ArrayList<HistoryPayOutTransaction> payOutTransactions) {
+		this.payOutTransactions = payOutTransactions;
+	}
+
+	public long getNofTransactions() {
+		return nofTransactions;
+	}
+
+	public void setNofTransactions(long nofTransactions) {
+		this.nofTransactions = nofTransactions;
+	}
+
+	public long getNofPayInTransactions() {
+		return nofPayInTransactions;
+	}
+
+	public void setNofPayInTransactions(long nofPayInTransactions) {
+		this.nofPayInTransactions = nofPayInTransactions;
+	}
+
+	public long getNofPayOutTransactions() {
+		return nofPayOutTransactions;
+	}
+
+	public void setNofPayOutTransactions(long nofPayOutTransactions) {
+		this.nofPayOutTransactions = nofPayOutTransactions;
+	}
+
+	public HistoryCursor getNextTransactionCursor() {
+		return nextTransactionCursor;
+	}
+
+	public void setNextTransactionCursor(HistoryCursor nextTransactionCursor) {
+		this.nextTransactionCursor = nextTransactionCursor;
+	}
+
+	public HistoryCursor getNextPayInCursor() {
+		return nextPayInCursor;
+	}
+
+	public void setNextPayInCursor(HistoryCursor nextPayInCursor) {
+		this.nextPayInCursor = nextPayInCursor;
+	}
+
+	public HistoryCursor getNextPayOutCursor() {
+		return nextPayOutCursor;
+	}
+
+	public void setNextPayOutCursor(HistoryCursor nextPayOutCursor) {
+		this.nextPayOutCursor = nextPayOutCursor;
+	}
+
+}
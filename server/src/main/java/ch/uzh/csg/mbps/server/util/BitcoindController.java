@@ -1,19 +1,23 @@
 package ch.uzh.csg.mbps.server.util;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import ch.uzh.csg.mbps.server.service.PayInTransactionService;
 import ch.uzh.csg.mbps.server.service.PayOutTransactionService;
+import ch.uzh.csg.mbps.server.util.exceptions.BitcoinSendUncertainException;
 import ch.uzh.csg.mbps.server.util.exceptions.UserAccountNotFoundException;
 
 import com.azazar.bitcoin.jsonrpcclient.Bitcoin;
-import com.azazar.bitcoin.jsonrpcclient.BitcoinAcceptor;
 import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
 import com.azazar.bitcoin.jsonrpcclient.BitcoinJSONRPCClient;
-import com.azazar.bitcoin.jsonrpcclient.ConfirmedPaymentListener;
+import com.azazar.bitcoin.jsonrpcclient.BitcoinRPCException;
 
 /**
  * Class for controlling Bitcoind-Client. 
@@ -23,6 +27,7 @@ public class BitcoindController {
 	private static Logger LOGGER = Logger.getLogger(BitcoindController.class);
 	private static final Bitcoin BITCOIN = new BitcoinJSONRPCClient();
 	private static int keyPoolCounter = 0;
+	private static BlockchainWatcher watcher;
 	
 	public BitcoindController() {
 	}
@@ -33,19 +38,59 @@ public class BitcoindController {
 	 * @param address
 	 * @param amount
 	 * @return String with transaction-id.
+	 * @throws BitcoinSendUncertainException
+	 *             if bitcoind did not answer, the Bitcoins may have been sent
 	 * @throws BitcoinException
+	 *             if bitcoind refused to send the Bitcoins
 	 */
 	public static String sendCoins(String address, BigDecimal amount)throws BitcoinException {
+		unlockWallet();
+		keyPoolCheck();
 		try {
-			BITCOIN.unlockWallet(Config.ENCRYPTION_PASSWORD, 2);
-		} catch (Exception e) {
-			if(e.getMessage().equals("{\"result\":null,\"error\":{\"code\":-17,\"message\":\"Error: Wallet is already unlocked.\"},\"id\":\"1\"}")){
-				//do nothing --> wallet is already unlocked
-			} else
-				throw e;
+			return BITCOIN.sendFrom(Config.ACCOUNT, address, amount.doubleValue());
+		} catch (BitcoinException e) {
+			throw checkRefused(e);
 		}
+	}
+	
+	/**
+	 * Sends the defined amounts to the defined addresses with one Bitcoin
+	 * transaction.
+	 * 
+	 * @param amounts
+	 *            amount by address, every address may only occur once
+	 * @return String with transaction-id.
+	 * @throws BitcoinSendUncertainException
+	 *             if bitcoind did not answer, the Bitcoins may have been sent
+	 * @throws BitcoinException
+	 *             if bitcoind refused to send the Bitcoins
+	 */
+	public static String sendMany(Map<String, BigDecimal> amounts) throws BitcoinException {
+		unlockWallet();
 		keyPoolCheck();
-		return BITCOIN.sendFrom(Config.ACCOUNT, address, amount.doubleValue());
+		Map<String, Double> doubleAmounts = new LinkedHashMap<String, Double>();
+		for (Map.Entry<String, BigDecimal> entry : amounts.entrySet()) {
+			doubleAmounts.put(entry.getKey(), entry.getValue().doubleValue());
+		}
+		try {
+			return BITCOIN.sendMany(Config.ACCOUNT, doubleAmounts);
+		} catch (BitcoinException e) {
+			throw checkRefused(e);
+		}
+	}
+	
+	/**
+	 * Returns the given exception if bitcoind has answered the request with a
+	 * JSON-RPC error (as result or with an http error status), so nothing has
+	 * been sent. Otherwise (timeout, lost connection, unreadable answer) a
+	 * {@link BitcoinSendUncertainException} is returned.
+	 */
+	private static BitcoinException checkRefused(BitcoinException e) {
+		if (!(e instanceof BitcoinRPCException))
+			return e;
+		if (e.getCause() == null && e.getMessage() != null && e.getMessage().contains("response header: "))
+			return e;
+		return new BitcoinSendUncertainException(e);
 	}
 	
 	/**
@@ -59,6 +104,22 @@ public class BitcoindController {
 	}
 	
 
+	/**
+	 * Checks with one request to bitcoind which of the given BitcoinAddresses
+	 * are valid.
+	 * 
+	 * @param addresses
+	 * @return the validity of the addresses in the order of the addresses
+	 * @throws BitcoinException
+	 */
+	public static List<Boolean> validateAddresses(List<String> addresses) throws BitcoinException {
+		List<Boolean> valid = new ArrayList<Boolean>(addresses.size());
+		for (Bitcoin.AddressValidationResult result : BITCOIN.validateAddresses(addresses)) {
+			valid.add(result.isValid());
+		}
+		return valid;
+	}
+
 	/**
 	 * Creates and returns new Bitcoinaddress for assigned account.
 	 * @return bitcoinaddress
@@ -71,93 +132,89 @@ public class BitcoindController {
 	}
 	
 	/**
-	 * Starts task which continually listens for new incoming
-	 * Bitcoin-transactions which are smaller than defined threshold and have
-	 * minconfirmations.
-	 * 
-	 * @throws BitcoinException
+	 * Starts the {@link BlockchainWatcher} which continually listens for new
+	 * incoming Bitcoin-transactions and outgoing Bitcoin-transactions with the
+	 * defined minconfirmations. Incoming transactions smaller than the defined
+	 * threshold need less confirmations than bigger ones.
 	 */
-	public static void listenIncomingTransactions() throws BitcoinException {
-		listenIncomingBigTransactions();
+	public static synchronized void startBlockchainWatcher() {
+		if (watcher != null)
+			return;
 		
-		ConfirmedPaymentListener smallTx = new ConfirmedPaymentListener(Config.MIN_CONFIRMATIONS_SMALL_TRANSACTIONS) {
-
-            @Override
-            public void confirmed(Bitcoin.Transaction transaction) {
-            	try {
-					if(transaction.category().equals("receive") && transaction.amount() <= Config.SMALL_TRANSACTION_LIMIT){
-						LOGGER.info("Incoming small transaction: amount: " + transaction.amount() + ", account: " + transaction.account() + ", address: " +  transaction.address());
-						PayInTransactionService.create(transaction);
-					}
-				} catch (UserAccountNotFoundException e) {
-					LOGGER.error("Couldn't allocate incoming transaction. Useraccount not found. Transaction: " + transaction.toString());
-				}
-            }
-
-        };
-        
-        BitcoinAcceptor ba = new BitcoinAcceptor(BITCOIN, smallTx, false);
-        
-        Thread t = new Thread(ba);
-        t.start();
-    }
-	
-	/**
-	 * Starts task which continually listens for new incoming
-	 * Bitcoin-transactions which are bigger than defined threshold and have
-	 * minconfirmations.
-	 * 
-	 * @throws BitcoinException
-	 */
-	public static void listenIncomingBigTransactions() throws BitcoinException {
-		ConfirmedPaymentListener bigTxListener = new ConfirmedPaymentListener(Config.MIN_CONFIRMATIONS_BIG_TRANSACTIONS) {
-
-            @Override
-            public void confirmed(Bitcoin.Transaction transaction) {
-            	try {
-					if(transaction.category().equals("receive")){
-						if(transaction.amount() > Config.SMALL_TRANSACTION_LIMIT){
-							LOGGER.info("Incoming big transaction: amount: " + transaction.amount() + ", account: " + transaction.account() + ", address: " +  transaction.address());
-							PayInTransactionService.create(transaction);
-						}
-					}
-				} catch (UserAccountNotFoundException e) {
-					LOGGER.error("Couldn't allocate incoming transaction. Useraccount not found. Transaction: " + transaction.toString());
-				}
-            }
-
-        };
-        
-        BitcoinAcceptor ba = new BitcoinAcceptor(BITCOIN, bigTxListener, false);
-        
-        Thread t = new Thread(ba);
-        t.start();
-    }
+		watcher = new BlockchainWatcher(BITCOIN);
+		watcher.addListener(new BlockchainWatcher.Listener() {
+			@Override
+			public int getMinConfirmations() {
+				return Config.MIN_CONFIRMATIONS_SMALL_TRANSACTIONS;
+			}
+
+			@Override
+			public boolean accepts(Bitcoin.Transaction transaction) {
+				return transaction.category().equals("receive") && transaction.amount() <= Config.SMALL_TRANSACTION_LIMIT;
+			}
+
+			@Override
+			public void confirmed(Bitcoin.Transaction transaction) {
+				LOGGER.info("Incoming small transaction: amount: " + transaction.amount() + ", account: " + transaction.account() + ", address: " +  transaction.address());
+				createPayIn(transaction);
+			}
+		});
+		watcher.addListener(new BlockchainWatcher.Listener() {
+			@Override
+			public int getMinConfirmations() {
+				return Config.MIN_CONFIRMATIONS_BIG_TRANSACTIONS;
+			}
+
+			@Override
+			public boolean accepts(Bitcoin.Transaction transaction) {
+				return transaction.category().equals("receive") && transaction.amount() > Config.SMALL_TRANSACTION_LIMIT;
+			}
+
+			@Override
+			public void confirmed(Bitcoin.Transaction transaction) {
+				LOGGER.info("Incoming big transaction: amount: " + transaction.amount() + ", account: " + transaction.account() + ", address: " +  transaction.address());
+				createPayIn(transaction);
+			}
+		});
+		watcher.addListener(new BlockchainWatcher.Listener() {
+			@Override
+			public int getMinConfirmations() {
+				return Config.MIN_CONFIRMATIONS_SMALL_TRANSACTIONS;
+			}
+
+			@Override
+			public boolean accepts(Bitcoin.Transaction transaction) {
+				return transaction.category().equals("send");
+			}
+
+			@Override
+			public void confirmed(Bitcoin.Transaction transaction) {
+				LOGGER.info("Outoging transaction: amount: " + transaction.amount() + ", account: " + transaction.account() + ", address: " +  transaction.address());
+				PayOutTransactionService.check(transaction);
+			}
+		});
+		watcher.start();
+	}
 	
 	/**
-	 * Starts task which continually listens for outgoing Bitcoin-transactions
-	 * with more than the defined confirmations.
-	 * 
-	 * @throws BitcoinException
+	 * Stops the {@link BlockchainWatcher}, a running check of the wallet is
+	 * finished first.
 	 */
-	public static void listenOutgoingTransactions() throws BitcoinException {
-		ConfirmedPaymentListener outgoingTxListener = new ConfirmedPaymentListener(Config.MIN_CONFIRMATIONS_SMALL_TRANSACTIONS) {
-
-            @Override
-            public void confirmed(Bitcoin.Transaction transaction) {
-				 if (transaction.category().equals("send")){
-						LOGGER.info("Outoging transaction: amount: " + transaction.amount() + ", account: " + transaction.account() + ", address: " +  transaction.address());
-						PayOutTransactionService.check(transaction);
-					}
-            }
-
-        };
-		
-        BitcoinAcceptor ba = new BitcoinAcceptor(BITCOIN, outgoingTxListener, true);
-   
-        Thread t = new Thread(ba);
-        t.start();
-    }
+	public static synchronized void stopBlockchainWatcher() {
+		if (watcher != null) {
+			watcher.stop();
+			watcher = null;
+		}
+	}
+
+	private static void createPayIn(Bitcoin.Transaction transaction) {
+		try {
+			PayInTransactionService.create(transaction);
+		} catch (UserAccountNotFoundException e) {
+			//marked as processed anyway, the address does not belong to any UserAccount
+			LOGGER.error("Couldn't allocate incoming transaction. Useraccount not found. Transaction: " + transaction.toString());
+		}
+	}
 
 	/**
 	 * Backup Bitcoin Wallet to destination defined in config file.
@@ -172,17 +229,22 @@ public class BitcoindController {
 		}
 	}
 	
+	private static void unlockWallet() throws BitcoinException {
+		try {
+			BITCOIN.unlockWallet(Config.ENCRYPTION_PASSWORD, 2);
+		} catch (BitcoinException e) {
+			//the error contains the request id, which changes with every request
+			if(e.getMessage() != null && e.getMessage().contains("\"code\":-17")){
+				//do nothing --> wallet is already unlocked
+			} else
+				throw e;
+		}
+	}
+	
 	private static void keyPoolCheck() throws BitcoinException{
 		keyPoolCounter++;
 		if (keyPoolCounter % 90 == 0){
-			try {
-				BITCOIN.unlockWallet(Config.ENCRYPTION_PASSWORD, 2);
-			} catch (Exception e) {
-				if(e.getMessage().equals("{\"result\":null,\"error\":{\"code\":-17,\"message\":\"Error: Wallet is already unlocked.\"},\"id\":\"1\"}")){
-					//do nothing --> wallet is already unlocked
-				} else
-					throw e;
-			}
+			unlockWallet();
 			BITCOIN.keyPoolRefill();
 			backupWallet();
 		}
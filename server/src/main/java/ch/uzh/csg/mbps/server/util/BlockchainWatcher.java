@@ -0,0 +1,195 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+
+import ch.uzh.csg.mbps.server.dao.BlockchainWatcherDAO;
+
+import com.azazar.bitcoin.jsonrpcclient.Bitcoin;
+import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
+
+/**
+ * Watches the wallet of bitcoind for incoming and outgoing transactions. The
+ * wallet is queried once per tick with listsinceblock, the transactions are
+ * handed to all {@link Listener}s whose number of confirmations is reached.
+ * The last block and the processed transactions are stored in the database,
+ * so the watcher resumes where it stopped after a restart. The stored block
+ * never moves past the block of a transaction a listener failed to handle,
+ * so it keeps being listed and is handed over again until it succeeds.
+ */
+public class BlockchainWatcher implements Runnable {
+	private static Logger LOGGER = Logger.getLogger(BlockchainWatcher.class);
+
+	/**
+	 * Handles Bitcoin transactions once they have enough confirmations.
+	 */
+	public static interface Listener {
+		/**
+		 * Returns the number of confirmations a transaction needs before it is
+		 * handed to this listener.
+		 */
+		public int getMinConfirmations();
+
+		/**
+		 * Returns true if this listener handles the given transaction.
+		 */
+		public boolean accepts(Bitcoin.Transaction transaction);
+
+		/**
+		 * Handles a transaction with enough confirmations. Every transaction
+		 * is handed to a listener only once.
+		 *
+		 * @throws Exception
+		 *             if the transaction could not be handled, it is handed
+		 *             over again with the next tick
+		 */
+		public void confirmed(Bitcoin.Transaction transaction) throws Exception;
+	}
+
+	private final Bitcoin bitcoin;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private ScheduledExecutorService executor;
+
+	public BlockchainWatcher(Bitcoin bitcoin) {
+		this.bitcoin = bitcoin;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Checks the wallet every Config.BLOCKCHAIN_WATCHER_INTERVAL seconds.
+	 */
+	public synchronized void start() {
+		if (executor != null)
+			return;
+
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(this, 0, Config.BLOCKCHAIN_WATCHER_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops checking the wallet, a running check is finished first.
+	 */
+	public void stop() {
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = this.executor;
+			this.executor = null;
+		}
+		if (executor != null)
+			ThreadPools.shutdown(executor, "BlockchainWatcher");
+	}
+
+	@Override
+	public void run() {
+		try {
+			checkTransactions();
+		} catch (BitcoinException | HibernateException e) {
+			LOGGER.error("Problem checking Bitcoin transactions. ErrorMessage: " + e.getMessage());
+		} catch (RuntimeException e) {
+			LOGGER.error("Problem checking Bitcoin transactions.", e);
+		}
+	}
+
+	/**
+	 * Fetches all transactions which might have reached the number of
+	 * confirmations of a listener since the last tick and hands the ones not
+	 * processed yet to the listeners.
+	 *
+	 * @throws BitcoinException
+	 */
+	public synchronized void checkTransactions() throws BitcoinException {
+		String lastBlock = BlockchainWatcherDAO.getLastBlock();
+		String sinceBlock = getSinceBlock(lastBlock);
+		Bitcoin.TransactionsSinceBlock t = (sinceBlock == null) ? bitcoin.listSinceBlock() : bitcoin.listSinceBlock(sinceBlock);
+
+		//collect the candidates, so the processed ones are read with one query
+		Map<String, Bitcoin.Transaction> candidates = new LinkedHashMap<String, Bitcoin.Transaction>();
+		for (Bitcoin.Transaction transaction : t.transactions()) {
+			for (Listener listener : listeners) {
+				if (transaction.confirmations() >= listener.getMinConfirmations() && listener.accepts(transaction)) {
+					candidates.put(getKey(transaction), transaction);
+					break;
+				}
+			}
+		}
+
+		Set<String> processed = BlockchainWatcherDAO.getProcessed(candidates.keySet());
+		Bitcoin.Transaction oldestFailed = null;
+		for (Map.Entry<String, Bitcoin.Transaction> entry : candidates.entrySet()) {
+			if (processed.contains(entry.getKey()))
+				continue;
+
+			Bitcoin.Transaction transaction = entry.getValue();
+			if (dispatch(transaction))
+				BlockchainWatcherDAO.markProcessed(entry.getKey());
+			else if (oldestFailed == null || transaction.confirmations() > oldestFailed.confirmations())
+				oldestFailed = transaction;
+		}
+
+		//listsinceblock only goes back maxConfirmations blocks from the stored block, which must therefore stay at the oldest failed transaction
+		String newLastBlock = (oldestFailed == null) ? t.lastBlock() : oldestFailed.blockHash();
+		if (newLastBlock != null && !newLastBlock.equals(lastBlock)) {
+			BlockchainWatcherDAO.setLastBlock(newLastBlock);
+			if (oldestFailed == null)
+				LOGGER.info("BlockchainWatcher processed block " + newLastBlock);
+			else
+				LOGGER.warn("BlockchainWatcher stays at block " + newLastBlock + " until transaction " + oldestFailed.txId() + " has been handled");
+		}
+	}
+
+	/**
+	 * Returns the block below which no transaction can reach the number of
+	 * confirmations of any listener anymore, or null if all transactions have
+	 * to be read.
+	 */
+	private String getSinceBlock(String lastBlock) throws BitcoinException {
+		if (lastBlock == null)
+			return null;
+
+		int maxConfirmations = 0;
+		for (Listener listener : listeners) {
+			maxConfirmations = Math.max(maxConfirmations, listener.getMinConfirmations());
+		}
+
+		Bitcoin.Block block = bitcoin.getBlock(lastBlock);
+		int height = (block == null) ? -1 : block.height() - maxConfirmations;
+		return (height < 0) ? null : bitcoin.getBlockHash(height);
+	}
+
+	private boolean dispatch(Bitcoin.Transaction transaction) {
+		boolean handled = true;
+		for (Listener listener : listeners) {
+			if (transaction.confirmations() < listener.getMinConfirmations() || !listener.accepts(transaction))
+				continue;
+
+			try {
+				listener.confirmed(transaction);
+			} catch (Exception e) {
+				LOGGER.error("Problem handling Bitcoin transaction " + transaction.txId() + ". ErrorMessage: " + e.getMessage());
+				handled = false;
+			}
+		}
+		return handled;
+	}
+
+	/**
+	 * One Bitcoin transaction can pay several addresses, so the address and
+	 * category belong to the key.
+	 */
+	private static String getKey(Bitcoin.Transaction transaction) {
+		return transaction.txId() + ":" + transaction.category() + ":" + transaction.address();
+	}
+
+}
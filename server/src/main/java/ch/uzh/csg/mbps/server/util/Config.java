@@ -11,11 +11,20 @@ public class Config {
 	//default Transaction Fee Setting 
 	public static final BigDecimal TRANSACTION_FEE = new BigDecimal("0.0001");
 	
+	public static final long SHUTDOWN_TIMEOUT = 10 * 1000; //max time in ms a thread pool may take to finish its tasks when the server is stopped
+	
 	//Email Configuration
 	protected static final String FROM = "****";
 	protected static final String EMAIL_USER = "****";
 	protected static final String EMAIL_PASSWORD = "****";
 	protected static final String BASE_URL = "****";
+	protected static final String SMTP_HOST = "mail.nope.ch";
+	protected static final int SMTP_PORT = 587;
+	public static final int EMAIL_QUEUE_CAPACITY = 1000; //max number of emails waiting to be sent, further emails are dropped
+	public static final int EMAIL_WORKERS = 2; //number of threads sending emails
+	public static final int EMAIL_BATCH_SIZE = 20; //max number of emails sent over one smtp connection
+	public static final int EMAIL_MAX_ATTEMPTS = 4; //number of attempts to send an email before it is given up
+	public static final long EMAIL_RETRY_BACKOFF = 30 * 1000; //delay before the first retry in ms, doubled with every further attempt
 
 	//Bitcoin Controller Configuration
 	
@@ -36,10 +45,41 @@ public class Config {
 	public static final int MIN_CONFIRMATIONS_SMALL_TRANSACTIONS = 6; // recommended: 6
 	public static final int MIN_CONFIRMATIONS_BIG_TRANSACTIONS = 12; //recommended: 12
 	protected static final double SMALL_TRANSACTION_LIMIT = 0.5;
+	public static final int BLOCKCHAIN_WATCHER_INTERVAL = 30; //time between two checks of the wallet in s
+	public static final int PAYOUT_BATCH_SIZE = 100; //max number of PayOuts sent with one Bitcoin transaction by the hourly PayOutRule check
+	public static final int BALANCE_LIMIT_CHECK_THREADS = 2; //number of threads checking balance limit PayOutRules after transactions
+	public static final int BALANCE_LIMIT_CHECK_QUEUE_SIZE = 1000; //max number of sellers waiting for a balance limit check, further checks are skipped
 	
 	public static final int TRANSACTIONS_MAX_RESULTS = 50;
 	public static final int PAY_INS_MAX_RESULTS = 50;
 	public static final int PAY_OUTS_MAX_RESULTS = 50;
+	public static final int HISTORY_COUNTER_REBUILD_HOUR = 3; //hour of the day (0-23) at which the history counters are recounted
+	public static final int HISTORY_COUNTER_REBUILD_BATCH_SIZE = 500; //number of UserAccount ids read at once while recounting the history counters, every counter is recounted in its own db transaction
+	public static final int HISTORY_EXPORT_FETCH_SIZE = 500; //rows fetched per round trip when exporting a history as csv
+	
+	//UserAccount Cache Settings
+	public static final int USER_ACCOUNT_CACHE_SIZE = 10000; //max number of cached accounts
+	public static final long USER_ACCOUNT_CACHE_TTL = 60 * 1000; //time a cached account is valid in ms (1 minute)
+	
+	//Transaction Settings
+	public static final int TRANSACTION_RESPONSE_CACHE_SIZE = 10000; //max number of signed responses kept for retried payment requests
+	public static final long TRANSACTION_RESPONSE_CACHE_TTL = 10 * 60 * 1000; //time a signed response is returned for a retried request in ms (10 minutes)
+	public static final boolean TRANSACTION_GROUP_COMMIT = false; //commit concurrent payments together in one database transaction
+	public static final long TRANSACTION_GROUP_COMMIT_WINDOW = 5; //time in ms payments are collected for one group commit
+	public static final int TRANSACTION_GROUP_COMMIT_SIZE = 50; //max number of payments committed together, should not exceed hibernate.jdbc.batch_size
+	public static final int CRYPTO_THREADS = Runtime.getRuntime().availableProcessors(); //threads verifying the signatures of payment requests
+	public static final int CRYPTO_QUEUE_SIZE = 1000; //max number of waiting verifications, further ones run on the request thread
+	public static final int PUBLIC_KEY_CACHE_SIZE = 10000; //max number of decoded public keys kept
+	public static final long PUBLIC_KEY_CACHE_TTL = 60 * 60 * 1000; //time a decoded public key is kept in ms (1 hour)
+	
+	//Id Generator Settings
+	public static final int ID_ALLOCATION_SIZE = 50; //number of ids allocated with one call of nextval, should not exceed hibernate.jdbc.batch_size, changing it needs a migration of the sequence increments
+	public static final boolean ID_OPTIMIZER_POOLED_LO = false; //true: sequence value is the lowest id of an allocation (pooled-lo), false: the highest (pooled)
+	
+	//Read Replica Settings
+	public static final String REPLICA_URL = null; //jdbc url of a read replica for history and export queries (e.g. "jdbc:postgresql://localhost:5434/mbps"), null to read everything from the primary
+	public static final long REPLICA_MAX_STALENESS = 5 * 1000; //max replication lag in ms, if the replica is further behind the primary is used
+	public static final long REPLICA_LAG_CHECK_INTERVAL = 1000; //time in ms the measured replication lag is reused
 	
 	
 	//Reset Password Settings
@@ -49,6 +89,16 @@ public class Config {
 	//Limit for Session Timeout
 	public static final int SESSION_TIMEOUT = 10*60; //10 minutes
 	
+	//Authentication Settings
+	public static final int AUTH_THREADS = Runtime.getRuntime().availableProcessors(); //threads checking login passwords with BCrypt
+	public static final int AUTH_QUEUE_SIZE = 100; //max number of logins waiting for a password check, further logins are rejected
+	public static final long AUTH_TIMEOUT = 5 * 1000; //max time in ms a login waits for its password check
+	public static final int AUTH_CACHE_SIZE = 10000; //max number of remembered successful logins
+	public static final long AUTH_CACHE_TTL = 15 * 60 * 1000; //time in ms a successful login skips BCrypt (15 minutes)
+	public static final int VERIFICATION_EMAILS_PER_WINDOW = 1; //max number of verification emails resent to an unverified account per window
+	public static final long VERIFICATION_EMAIL_WINDOW = 15 * 60 * 1000; //time in ms for which the verification emails are limited (15 minutes)
+	public static final int VERIFICATION_EMAIL_THROTTLE_SIZE = 10000; //max number of unverified accounts whose resent emails are tracked
+	
 	
 	//Valid Username/Password Settings
 	public static final String USERNAME_REGEX = "^[A-Za-z0-9_-]{4,25}$";
@@ -59,8 +109,9 @@ public class Config {
 	//Exchange Rate Provicer Settings
 	// 1 for MtGox, 2 for Bitstamp
 	public static final int EXCHANGE_RATE_PROVIDER = 2;
-	public static final int EXCHANGE_RATE_CACHE_TIME = 10000; //time for which exchange rate is cached in ms
 	public static final int EXCHANGE_RATE_UPDATE_TIME = 5; //update time in s
+	public static final long EXCHANGE_RATE_MAX_AGE = 5 * 60 * 1000; //age in ms after which an exchange rate is not returned anymore (5 minutes)
+	public static final int EXCHANGE_RATE_HISTORY_SIZE = 720; //number of exchange rates kept for charting (1 hour at the update time of 5s)
 	
 	//Multiplier for Bitstamp Trading. Define lower/upper limits for exchange of BTC/USD
 	public static final BigDecimal BITSTAMP_SELL_EXCHANGE_RATE_LIMIT = new BigDecimal("0.95");
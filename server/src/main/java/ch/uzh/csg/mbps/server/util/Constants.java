@@ -1,16 +1,10 @@
 package ch.uzh.csg.mbps.server.util;
 
-import java.security.PrivateKey;
-import java.security.PublicKey;
-
 /**
  * Class for saving static constants of MBPS.
  *
  */
 public class Constants {
 	public static final String INTERNAL_SERVER_ERROR = "Internal error occured. Please try again later.";
-	
-	public static PrivateKey PRIVATEKEY;
-	public static PublicKey PUBLICKEY;
 
 }
@@ -1,9 +1,19 @@
 package ch.uzh.csg.mbps.server.util;
 
-import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
@@ -21,140 +31,334 @@ import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
 
 /**
- * Email Service for sending emails from MBPS to users.
+ * Email Service for sending emails from MBPS to users. Emails are put into a
+ * bounded queue and sent by a fixed number of worker threads, which send all
+ * queued emails (up to {@link Config#EMAIL_BATCH_SIZE}) over one smtp
+ * connection. Emails which could not be sent are retried with exponential
+ * backoff. If the queue is full, further emails are dropped.
  *
  */
 public class Emailer {
 	private static Logger LOGGER = Logger.getLogger(Emailer.class);
-	private static String messageText;
-	private static String subject;
-	
+
+	private static final BlockingQueue<EmailMessage> QUEUE = new ArrayBlockingQueue<EmailMessage>(Config.EMAIL_QUEUE_CAPACITY);
+	private static ScheduledExecutorService retryExecutor;
+	private static final List<Thread> WORKERS = new ArrayList<Thread>();
+	private static Session session;
+
+	private static final AtomicLong SENT = new AtomicLong();
+	private static final AtomicLong RETRIED = new AtomicLong();
+	private static final AtomicLong FAILED = new AtomicLong();
+	private static final AtomicLong DROPPED = new AtomicLong();
+	private static final AtomicLong TOTAL_LATENCY = new AtomicLong();
+	private static final AtomicLong MAX_LATENCY = new AtomicLong();
+
 	/**
 	 * Sends initial Email Configuration Link to User via defined MailService
-	 * 
+	 *
 	 * @param confirmationID
 	 * @param toEmail
 	 * @return Status if email has been sent to the user.
 	 */
 	public static void sendEmailConfirmationLink(String confirmationID, String toEmail){
-		messageText = "Please verify your account by clicking on the following link: " + Config.BASE_URL + "/user/verify/" + confirmationID;
-		subject = "MBPS Account Verification";
-		sendEmail(toEmail, null);
+		String messageText = "Please verify your account by clicking on the following link: " + Config.BASE_URL + "/user/verify/" + confirmationID;
+		sendEmail(new EmailMessage(toEmail, "MBPS Account Verification", messageText, null));
 	}
-	
+
 	/**
 	 * Sends email with link to reset Password to emailAddress from UserAccount
-	 * 
+	 *
 	 * @param user
 	 * @param resetPWToken
 	 */
 	public static void sendResetPasswordLink(UserAccount user, String resetPWToken) {
-		messageText = "Dear " + user.getUsername() + ",<br><br>Please reset your account password by clicking on the following link: " + Config.BASE_URL + "/user/resetPassword/" + resetPWToken;
-		subject = "MBPS Account Password Reset";
-		sendEmail(user.getEmail(), null);
+		String messageText = "Dear " + user.getUsername() + ",<br><br>Please reset your account password by clicking on the following link: " + Config.BASE_URL + "/user/resetPassword/" + resetPWToken;
+		sendEmail(new EmailMessage(user.getEmail(), "MBPS Account Password Reset", messageText, null));
 	}
-	
+
 	/**
-	 * Sends file with history of all transactions to Users email address.
+	 * Sends the history of all transactions to Users email address. The
+	 * attachment is read from the given DataSource while the email is sent.
 	 * @param userName
 	 * @param email
-	 * @param file
+	 * @param attachment
 	 */
-	public static void sendHistoryCSV(String userName, String email, File file) {
-		messageText = "Dear " + userName + ",<br><br>Attached you can find the requested history list.";
-		subject = "MBPS history list";
-		sendEmail(email, file);
+	public static void sendHistoryCSV(String userName, String email, DataSource attachment) {
+		String messageText = "Dear " + userName + ",<br><br>Attached you can find the requested history list.";
+		sendEmail(new EmailMessage(email, "MBPS history list", messageText, attachment));
 	}
-	
+
+	/**
+	 * Sends an email message with defined message, subject to receiver email
+	 * address.
+	 *
+	 * @param toEmail
+	 * @param subj
+	 * @param message
+	 */
+	public static void send(String toEmail, String subj, String message) {
+		sendEmail(new EmailMessage(toEmail, subj, message, null));
+	}
+
+	public static void sendPayInAddressAsEmail(String username,String email, String payInAddress){
+		String messageText ="Dear " + username +",<br><br>Your pay in address is " + payInAddress +".";
+		sendEmail(new EmailMessage(email, "MBPS Pay In Address", messageText, null));
+	}
+
+	/**
+	 * Returns the number of emails waiting to be sent.
+	 */
+	public static int getQueueSize() {
+		return QUEUE.size();
+	}
+
+	/**
+	 * Returns the queue size and the number of sent, retried, failed and
+	 * dropped emails as well as the average and maximum time in ms from
+	 * queueing to sending an email.
+	 */
+	public static String getStatistics() {
+		long sent = SENT.get();
+		long avgLatency = (sent == 0) ? 0 : TOTAL_LATENCY.get() / sent;
+		return "queued: " + QUEUE.size() + " sent: " + sent + " retried: " + RETRIED.get() + " failed: " + FAILED.get() + " dropped: " + DROPPED.get() + " avg latency: " + avgLatency + "ms max latency: " + MAX_LATENCY.get() + "ms";
+	}
+
 	/**
 	 * Non-blocking call to send the email, otherwise the client runs into a
 	 * timeout exception.
-	 * 
-	 * @param toEmail
 	 */
-	private static void sendEmail(String toEmail, File attachment) {
-		if(!UserAccountService.isTestingMode()){
-			EmailSenderTask task = new EmailSenderTask(toEmail, attachment);
-			new Thread(task).start();
+	private static void sendEmail(EmailMessage message) {
+		if (UserAccountService.isTestingMode())
+			return;
+
+		startWorkers();
+		enqueue(message);
+	}
+
+	private static void enqueue(EmailMessage message) {
+		if (!QUEUE.offer(message)) {
+			DROPPED.incrementAndGet();
+			LOGGER.error("Email queue is full, dropped email \"" + message.getSubject() + "\" to " + message.getToEmail());
 		}
 	}
 
-	private static class EmailSenderTask implements Runnable {
-		private String toEmail;
-		private File attachment;
-		
-		protected EmailSenderTask(String toEmail, File attachment) {
+	private static synchronized void startWorkers() {
+		if (session != null)
+			return;
+
+		Properties props = new Properties();
+		props.put("mail.smtp.auth", "true");
+		props.put("mail.smtp.starttls.enable", "true");
+		props.put("mail.smtp.host", Config.SMTP_HOST);
+		props.put("mail.smtp.port", String.valueOf(Config.SMTP_PORT));
+		props.put("mail.smtp.ssl.trust", Config.SMTP_HOST);
+
+		session = Session.getInstance(props, new javax.mail.Authenticator() {
+			protected PasswordAuthentication getPasswordAuthentication() {
+				return new PasswordAuthentication(Config.EMAIL_USER, Config.EMAIL_PASSWORD);
+			}
+		});
+
+		ThreadFactory threadFactory = new EmailerThreadFactory();
+		retryExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		for (int i = 0; i < Config.EMAIL_WORKERS; i++) {
+			Thread worker = threadFactory.newThread(new EmailSenderTask(session));
+			WORKERS.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Stops the worker threads, if they have been started. A batch which is
+	 * being sent is finished, queued emails and pending retries are dropped.
+	 */
+	public static synchronized void shutdown() {
+		if (session == null)
+			return;
+
+		for (Thread worker : WORKERS) {
+			ThreadPools.stop(worker);
+		}
+		WORKERS.clear();
+		retryExecutor.shutdownNow();
+		session = null;
+
+		if (!QUEUE.isEmpty())
+			LOGGER.warn("Dropped " + QUEUE.size() + " queued emails on shutdown.");
+		QUEUE.clear();
+	}
+
+	/**
+	 * Queues the message again after a delay which doubles with every attempt,
+	 * or gives up after {@link Config#EMAIL_MAX_ATTEMPTS} attempts.
+	 */
+	private static void retry(final EmailMessage message, Exception reason) {
+		if (message.getAttempts() + 1 >= Config.EMAIL_MAX_ATTEMPTS) {
+			FAILED.incrementAndGet();
+			LOGGER.error("Couldn't send email \"" + message.getSubject() + "\" to " + message.getToEmail() + ". Reason: " + reason.getMessage());
+			return;
+		}
+
+		RETRIED.incrementAndGet();
+		long delay = Config.EMAIL_RETRY_BACKOFF << message.getAttempts();
+		LOGGER.warn("Couldn't send email \"" + message.getSubject() + "\" to " + message.getToEmail() + ", retrying in " + delay + "ms. Reason: " + reason.getMessage());
+		retryExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				enqueue(message.nextAttempt());
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private static void recordLatency(EmailMessage message) {
+		long latency = System.currentTimeMillis() - message.getCreated();
+		SENT.incrementAndGet();
+		TOTAL_LATENCY.addAndGet(latency);
+		long max;
+		while (latency > (max = MAX_LATENCY.get()) && !MAX_LATENCY.compareAndSet(max, latency)) {
+		}
+	}
+
+	/**
+	 * Immutable email waiting to be sent.
+	 */
+	private static final class EmailMessage {
+		private final String toEmail;
+		private final String subject;
+		private final String messageText;
+		private final DataSource attachment;
+		private final long created;
+		private final int attempts;
+
+		private EmailMessage(String toEmail, String subject, String messageText, DataSource attachment) {
+			this(toEmail, subject, messageText, attachment, System.currentTimeMillis(), 0);
+		}
+
+		private EmailMessage(String toEmail, String subject, String messageText, DataSource attachment, long created, int attempts) {
 			this.toEmail = toEmail;
+			this.subject = subject;
+			this.messageText = messageText;
 			this.attachment = attachment;
+			this.created = created;
+			this.attempts = attempts;
+		}
+
+		private EmailMessage nextAttempt() {
+			return new EmailMessage(toEmail, subject, messageText, attachment, created, attempts + 1);
+		}
+
+		private String getToEmail() {
+			return toEmail;
+		}
+
+		private String getSubject() {
+			return subject;
+		}
+
+		private long getCreated() {
+			return created;
+		}
+
+		private int getAttempts() {
+			return attempts;
+		}
+
+		private Message toMimeMessage(Session session) throws MessagingException {
+			Message message = new MimeMessage(session);
+			message.setFrom(new InternetAddress(Config.FROM));
+			message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(toEmail));
+			message.setSubject(subject);
+
+			Multipart mp = new MimeMultipart();
+
+			MimeBodyPart htmlPart = new MimeBodyPart();
+			htmlPart.setContent(messageText, "text/html; charset=ISO-8859-1");
+			mp.addBodyPart(htmlPart);
+
+			if (attachment != null) {
+				MimeBodyPart mbp = new MimeBodyPart();
+				mbp.setDataHandler(new DataHandler(attachment));
+				mbp.setFileName(attachment.getName());
+				//otherwise the content is read once more to choose the encoding
+				mbp.setHeader("Content-Transfer-Encoding", "base64");
+				mp.addBodyPart(mbp);
+			}
+
+			message.setContent(mp);
+			message.saveChanges();
+			return message;
+		}
+	}
+
+	/**
+	 * Takes the next batch of emails from the queue and sends them over one
+	 * smtp connection.
+	 */
+	private static class EmailSenderTask implements Runnable {
+		private final Session session;
+
+		protected EmailSenderTask(Session session) {
+			this.session = session;
 		}
 
 		@Override
 		public void run() {
-			Properties props = new Properties();
-			props.put("mail.smtp.auth", "true");
-			props.put("mail.smtp.starttls.enable", "true");
-			props.put("mail.smtp.host", "mail.nope.ch");
-			props.put("mail.smtp.port", "587");
-			props.put("mail.smtp.ssl.trust", "mail.nope.ch" );
-	 
-			Session session = Session.getInstance(props, new javax.mail.Authenticator() {
-				protected PasswordAuthentication getPasswordAuthentication() {
-					return new PasswordAuthentication(Config.EMAIL_USER, Config.EMAIL_PASSWORD);
+			List<EmailMessage> batch = new ArrayList<EmailMessage>(Config.EMAIL_BATCH_SIZE);
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					batch.add(QUEUE.take());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
 				}
-			});
-	 
+				QUEUE.drainTo(batch, Config.EMAIL_BATCH_SIZE - 1);
+
+				sendBatch(batch);
+				batch.clear();
+			}
+		}
+
+		private void sendBatch(List<EmailMessage> batch) {
+			Transport transport = null;
+			try {
+				transport = session.getTransport("smtp");
+				transport.connect(Config.EMAIL_USER, Config.EMAIL_PASSWORD);
+			} catch (MessagingException e) {
+				for (EmailMessage message : batch) {
+					retry(message, e);
+				}
+				return;
+			}
+
 			try {
-				Message message = new MimeMessage(session);
-				message.setFrom(new InternetAddress(Config.FROM));
-				message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(toEmail));
-				message.setSubject(subject);
-	 
-				Multipart mp = new MimeMultipart();
-				
-				MimeBodyPart htmlPart = new MimeBodyPart();
-				htmlPart.setContent(messageText, "text/html; charset=ISO-8859-1");
-				mp.addBodyPart(htmlPart);
-				
-				if (attachment != null) {
-			        MimeBodyPart mbp = new MimeBodyPart();
-			        mbp.attachFile(attachment);
-			        mbp.setHeader("Content-Type", "text/comma-separated-values; name=\""+attachment.getName()+"\"");
-
-			        mp.addBodyPart(mbp);
+				for (EmailMessage message : batch) {
+					try {
+						Message mimeMessage = message.toMimeMessage(session);
+						transport.sendMessage(mimeMessage, mimeMessage.getAllRecipients());
+						recordLatency(message);
+					} catch (MessagingException | RuntimeException e) {
+						retry(message, e);
+					}
 				}
-				
-				message.setContent(mp);
-				
-				Transport.send(message);
-				
-				//delete the file on the servers hd
-				if(attachment != null){
-					attachment.delete();					
+			} finally {
+				try {
+					transport.close();
+				} catch (MessagingException e) {
+					LOGGER.warn("Couldn't close smtp connection. Reason: " + e.getMessage());
 				}
-			} catch (MessagingException | IOException e) {
-				LOGGER.error("Couldn't send email. Reason: " + e.getMessage());
 			}
 		}
 	}
 
-	/**
-	 * Sends an email message with defined message, subject to receiver email
-	 * address.
-	 * 
-	 * @param toEmail
-	 * @param subj
-	 * @param message
-	 */
-	public static void send(String toEmail, String subj, String message) {
-		messageText = message;
-		subject = subj;
-		sendEmail(toEmail, null);
-	}
-	
-	public static void sendPayInAddressAsEmail(String username,String email, String payInAddress){
-		messageText ="Dear " + username +",<br><br>Your pay in address is " + payInAddress +".";
-		subject = "MBPS Pay In Address";
-		sendEmail(email,null);
+	private static class EmailerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Emailer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
-	
+
 }
@@ -1,223 +1,154 @@
 package ch.uzh.csg.mbps.server.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.math.BigDecimal;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Date;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.minidev.json.JSONObject;
-import net.minidev.json.parser.JSONParser;
 import net.minidev.json.parser.ParseException;
 
+import org.apache.log4j.Logger;
+
+import ch.uzh.csg.mbps.server.util.exceptions.ExchangeRateUnavailableException;
+import ch.uzh.csg.mbps.server.util.exchangerates.BitstampRateProvider;
+import ch.uzh.csg.mbps.server.util.exchangerates.ExchangeRateProvider;
+import ch.uzh.csg.mbps.server.util.exchangerates.JsonHttpClient;
+import ch.uzh.csg.mbps.server.util.exchangerates.MtGoxRateProvider;
+import ch.uzh.csg.mbps.server.util.exchangerates.RateSnapshot;
+
 /**
- * Class for returning exchange rates from Bitcoin exchange platforms.
+ * Class for returning exchange rates from Bitcoin exchange platforms. The
+ * exchange rate is fetched periodically by {@link #update()} and published as
+ * immutable {@link RateSnapshot}. Reading the exchange rate never blocks and
+ * never contacts an exchange platform.
  *
  */
 public class ExchangeRates {
-	private final static String USER_AGENT = "Mozilla/5.0";
-	private final static String MTGOX_URL = "http://data.mtgox.com/api/2/BTCCHF/money/ticker_fast";
-	private final static String BITSTAMP_URL = "https://www.bitstamp.net/api/ticker/";
+	private static Logger LOGGER = Logger.getLogger(ExchangeRates.class);
 	private final static String USD_CHF_URL = "http://query.yahooapis.com/v1/public/yql?q=select%20*%20from%20yahoo.finance.xchange%20where%20pair%20in%20%28%22USDCHF%22%29&format=json&diagnostics=true&env=store%3A%2F%2Fdatatables.org%2Falltableswithkeys&";
-	private static BigDecimal exchangeRate;
-	private static Date exchangeRateTimestamp;
-	private static BigDecimal exchangeRateUsdChf;
-	
+
+	private static final AtomicReference<RateSnapshot> SNAPSHOT = new AtomicReference<RateSnapshot>();
+	private static final AtomicReference<BigDecimal> USD_CHF = new AtomicReference<BigDecimal>(new BigDecimal("0.9"));
+	private static final Deque<RateSnapshot> HISTORY = new ArrayDeque<RateSnapshot>(Config.EXCHANGE_RATE_HISTORY_SIZE);
+
+	private static final ExchangeRateProvider MTGOX = new MtGoxRateProvider();
+	private static final ExchangeRateProvider BITSTAMP = new BitstampRateProvider();
+
+	private ExchangeRates() {
+	}
+
 	/**
-	 * Constructor for exchangerates. Initializes exchangeRate, exchangeRateUsdChf and exchangerateTimestamp.
+	 * Returns the latest exchange rate for BTC/CHF. The exchange rate is
+	 * updated every Config.EXCHANGE_RATE_UPDATE_TIME seconds in the
+	 * background.
+	 *
+	 * @return exchangeRate
+	 * @throws ExchangeRateUnavailableException
+	 *             if no exchange rate has been fetched yet, or the latest
+	 *             exchange rate is older than Config.EXCHANGE_RATE_MAX_AGE
 	 */
-	public ExchangeRates() {
-		exchangeRateTimestamp = new Date();
-		exchangeRate = BigDecimal.ZERO;
-		exchangeRateUsdChf = new BigDecimal("0.9");
+	public static BigDecimal getExchangeRate() throws ExchangeRateUnavailableException {
+		RateSnapshot snapshot = SNAPSHOT.get();
+		if (snapshot == null)
+			throw new ExchangeRateUnavailableException("No exchange rate has been fetched yet.");
+		if (snapshot.isStale(Config.EXCHANGE_RATE_MAX_AGE))
+			throw new ExchangeRateUnavailableException("Exchange rate is outdated: " + snapshot);
+
+		return snapshot.getRate();
 	}
-	
+
 	/**
-	 * Returns the exchange rate for BTC/CHF based on
-	 * Config.EXCHANGE_RATE_PROVIDER. Exchange rates are cached for 5seconds
-	 * (can be defined in Config.java). If exchange rate is not available from
-	 * one provider (e.g. MtGox.com) it automatically tries to get the exchange rate from the other one (e.g. Bitstamp.net). If both
-	 * requests fail, the method throws an exception.
-	 * 
-	 * @return exchangeRate
-	 * @throws ParseException
-	 * @throws IOException
+	 * Returns the latest {@link RateSnapshot} regardless of its age, or null
+	 * if no exchange rate has been fetched yet.
 	 */
-	public static BigDecimal getExchangeRate() throws ParseException, IOException{
-		Date currentDate = new Date();
-		long currentDateTimeCacheLimit = currentDate.getTime()- Config.EXCHANGE_RATE_CACHE_TIME;
-		long exchangeRateTimestampTime = exchangeRateTimestamp.getTime();
-		
-		if (exchangeRate.equals(BigDecimal.ZERO)){
-			exchangeRate =  getCurrentExchangeRate();
-			exchangeRateTimestamp = currentDate;
-			return exchangeRate;
-		}
-		
-		if (exchangeRateTimestampTime >= currentDateTimeCacheLimit) {
-			return exchangeRate;
-		} else {
-			exchangeRate =  getCurrentExchangeRate();
-			exchangeRateTimestamp = currentDate;
-			return exchangeRate;
-		}
+	public static RateSnapshot getSnapshot() {
+		return SNAPSHOT.get();
 	}
-	
+
 	/**
-	 * Updates the exchange rate for BTC/CHF based on
-	 * Config.EXCHANGE_RATE_PROVIDER. Exchange rates are updated every 5seconds
-	 * (can be defined in Config.java). If exchange rate is not available from
-	 * one provider (e.g. MtGox.com) it automatically tries to get the exchange rate from the other one (e.g. Bitstamp.net). 
-	 * @throws IOException 
-	 * @throws ParseException 
+	 * Returns the last Config.EXCHANGE_RATE_HISTORY_SIZE {@link RateSnapshot}s,
+	 * the oldest first.
 	 */
-	protected static void update() throws ParseException, IOException{
-		Date currentDate = new Date();
-		BigDecimal tempRate = getCurrentExchangeRate();
-		exchangeRate = tempRate;
-		exchangeRateTimestamp = currentDate;
+	public static List<RateSnapshot> getHistory() {
+		synchronized (HISTORY) {
+			return new ArrayList<RateSnapshot>(HISTORY);
+		}
 	}
-	
+
 	/**
-	 * Returns current exchange rate based on preferences defined in
-	 * Config.java. If exchange rate of prefered supplier is not available
-	 * method tries to get the exchange rate of the second exchange rate
-	 * provider. Returns exception if no exchange rate can be returned.
-	 * 
-	 * @return
-	 * @throws ParseException
+	 * Fetches the exchange rate for BTC/CHF based on
+	 * Config.EXCHANGE_RATE_PROVIDER and publishes it. If exchange rate is not
+	 * available from one provider (e.g. MtGox.com) it automatically tries to
+	 * get the exchange rate from the other one (e.g. Bitstamp.net). If both
+	 * requests fail, the previous exchange rate is kept until it gets stale.
+	 *
 	 * @throws IOException
+	 * @throws ParseException
 	 */
-	private static BigDecimal getCurrentExchangeRate() throws ParseException, IOException {
-		switch (Config.EXCHANGE_RATE_PROVIDER) {
-		case 1:
-			try {
-				return getExchangeRateMtGox();
-			} catch (ParseException | IOException e) {
-				return getExchangeRateBitstamp();
-			}
-		case 2:
+	protected static void update() throws ParseException, IOException {
+		ExchangeRateProvider[] providers = getProviders();
+		BigDecimal usdChf = USD_CHF.get();
+
+		for (int i = 0; i < providers.length; i++) {
 			try {
-				return getExchangeRateBitstamp();
-			} catch (ParseException | IOException e) {
-				return getExchangeRateMtGox();
+				BigDecimal rate = providers[i].fetchExchangeRate(usdChf);
+				publish(new RateSnapshot(rate, providers[i].getName(), System.currentTimeMillis()));
+				return;
+			} catch (ParseException | IOException | RuntimeException e) {
+				LOGGER.warn("Couldn't get exchange rate from " + providers[i].getName() + ". Reason: " + e.getMessage());
+				if (i == providers.length - 1)
+					throw e;
 			}
-		default:
-			return getExchangeRateMtGox();
 		}
 	}
-	
-	/**
-	 * Returns exchangeRate from Bitstamp.net in BTC/CHF
-	 * 
-	 * @return exchangeRate BTC/CHF
-	 * @throws ParseException
-	 * @throws IOException
-	 */
-	private static BigDecimal getExchangeRateBitstamp() throws ParseException, IOException {
-		StringBuffer response = doHttpRequest(BITSTAMP_URL);
 
-		// gets actual exchange rate out of Json Object and saves it to last.
-		//JSONParser.MODE_JSON_SIMPLE
-		@SuppressWarnings("deprecation")
-		JSONParser parser = new JSONParser();
-		BigDecimal exchangeRate = BigDecimal.ZERO;
-		JSONObject httpAnswerJson;
-		httpAnswerJson = (JSONObject) (parser.parse(response.toString()));
-		String last_String = (String) httpAnswerJson.get("last");
-		exchangeRate = new BigDecimal(last_String);
-
-		return convertBtcChf(exchangeRate);
+	private static ExchangeRateProvider[] getProviders() {
+		switch (Config.EXCHANGE_RATE_PROVIDER) {
+		case 1:
+			return new ExchangeRateProvider[] { MTGOX, BITSTAMP };
+		case 2:
+			return new ExchangeRateProvider[] { BITSTAMP, MTGOX };
+		default:
+			return new ExchangeRateProvider[] { MTGOX };
+		}
 	}
 
-	/**
-	 * Returns ExchangeRate (passed in USD Dollar) converted in Swiss Francs.
-	 * 
-	 * @param btcUsd
-	 * @return BigDecimal with bitcoin exchangerate converted from us dollars to
-	 *         swiss francs
-	 * @throws IOException
-	 * @throws ParseException
-	 */
-	private static BigDecimal convertBtcChf(BigDecimal btcUsd) throws IOException, ParseException{
-		return btcUsd.multiply(exchangeRateUsdChf);
+	private static void publish(RateSnapshot snapshot) {
+		SNAPSHOT.set(snapshot);
+		synchronized (HISTORY) {
+			if (HISTORY.size() == Config.EXCHANGE_RATE_HISTORY_SIZE)
+				HISTORY.removeFirst();
+			HISTORY.addLast(snapshot);
+		}
 	}
 
 	/**
-	 * Returns up to date exchangeRate from MtGox.com int BTC/CHF
-	 * 
-	 * @return double exchangeRate BTC/CHF
-	 * @throws ParseException 
-	 * @throws IOException 
+	 * Returns the USD/CHF exchange rate used to convert exchange rates of
+	 * providers trading in US Dollars.
 	 */
-	private static BigDecimal getExchangeRateMtGox() throws ParseException, IOException {
-		StringBuffer response = doHttpRequest(MTGOX_URL);
-		//JSONParser.MODE_JSON_SIMPLE
-		@SuppressWarnings("deprecation")
-		JSONParser parser = new JSONParser();
-		BigDecimal exchangeRate = BigDecimal.ZERO;
-		JSONObject httpAnswerJson;
-		httpAnswerJson = (JSONObject) (parser.parse(response.toString()));
-		JSONObject dataJson = (JSONObject) httpAnswerJson.get("data");
-		JSONObject lastJson = (JSONObject) dataJson.get("last");
-		String last_String = (String) lastJson.get("value");
-		exchangeRate = new BigDecimal(last_String);
-
-		return exchangeRate;
+	public static BigDecimal getExchangeRateUsdChf() {
+		return USD_CHF.get();
 	}
 
 	/**
 	 * Updates ExchangeRate USD/CHF
-	 * 
+	 *
 	 * @throws ParseException
 	 * @throws IOException
 	 */
 	public static void updateExchangeRateUsdChf() throws ParseException, IOException {
-		StringBuffer response = doHttpRequest(USD_CHF_URL);
 		// gets actual exchange rate out of Json Object and saves it to last.
-		//JSONParser.MODE_JSON_SIMPLE
-		@SuppressWarnings("deprecation")
-		JSONParser parser = new JSONParser();
-		BigDecimal exchangeRate = BigDecimal.ZERO;
-
-		JSONObject httpAnswerJson;
-		httpAnswerJson = (JSONObject) (parser.parse(response.toString()));
+		JSONObject httpAnswerJson = JsonHttpClient.get(USD_CHF_URL);
 		JSONObject query = (JSONObject) httpAnswerJson.get("query");
 		JSONObject results = (JSONObject) query.get("results");
 		JSONObject rate = (JSONObject) results.get("rate");
 		String rateString = (String) rate.get("Rate");
-		exchangeRate = new BigDecimal(rateString);
-		
-		exchangeRateUsdChf = exchangeRate;
-	}
-	
-	/**
-	 * Executes JSON HTTP Request and returns result.
-	 * 
-	 * @param url
-	 * @return response of defined by url request
-	 * @throws IOException
-	 */
-	private static StringBuffer doHttpRequest(String url) throws IOException{
-		URL obj = new URL(url);
-		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-		
-		// optional default is GET
-		con.setRequestMethod("GET");
-		
-		// add request header
-		con.setRequestProperty("User-Agent", USER_AGENT);
-		
-		BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-		String inputLine;
-		StringBuffer response = new StringBuffer();
-		
-		while ((inputLine = in.readLine()) != null) {
-			response.append(inputLine);
-		}
-		in.close();
-		return response;
+
+		USD_CHF.set(new BigDecimal(rateString));
 	}
+
 }
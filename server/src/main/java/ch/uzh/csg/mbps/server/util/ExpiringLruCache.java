@@ -0,0 +1,116 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe, size bounded cache which evicts the least recently used entry
+ * when full and treats entries older than the given time to live as absent.
+ * Hits and misses are counted to be able to size the cache.
+ *
+ * @param <K>
+ *            type of the keys
+ * @param <V>
+ *            type of the cached values
+ */
+public class ExpiringLruCache<K, V> {
+	private final int maxSize;
+	private final long timeToLive;
+	private final LinkedHashMap<K, Entry<V>> map;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            maximum number of entries kept in the cache
+	 * @param timeToLive
+	 *            time in ms after which an entry expires
+	 */
+	public ExpiringLruCache(final int maxSize, long timeToLive) {
+		this.maxSize = maxSize;
+		this.timeToLive = timeToLive;
+		this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = -5049620931420286547L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value for the given key or null if there is no
+	 * (unexpired) entry.
+	 */
+	public V get(K key) {
+		synchronized (map) {
+			Entry<V> entry = map.get(key);
+			if (entry != null && entry.expires > System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return entry.value;
+			}
+			if (entry != null)
+				map.remove(key);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(K key, V value) {
+		synchronized (map) {
+			map.put(key, new Entry<V>(value, System.currentTimeMillis() + timeToLive));
+		}
+	}
+
+	public void remove(K key) {
+		synchronized (map) {
+			map.remove(key);
+		}
+	}
+
+	public void clear() {
+		synchronized (map) {
+			map.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		long h = getHits();
+		long m = getMisses();
+		long ratio = (h + m) == 0 ? 0 : (h * 100) / (h + m);
+		return "size: " + size() + "/" + maxSize + ", hits: " + h + ", misses: " + m + ", hit ratio: " + ratio + "%";
+	}
+
+	private static class Entry<V> {
+		private final V value;
+		private final long expires;
+
+		private Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+}
@@ -1,11 +1,23 @@
 package ch.uzh.csg.mbps.server.util;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.log4j.Logger;
+import org.hibernate.FlushMode;
 import org.hibernate.HibernateException;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.cache.internal.NoCachingRegionFactory;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.jdbc.Work;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.service.ServiceRegistryBuilder;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
 
 /**
  * Class providing Hibernate SessionFactory.
@@ -17,19 +29,82 @@ public class HibernateUtil {
 	private static SessionFactory sessionFactory;
 	private static ServiceRegistry serviceRegistry;
 	
+	private static SessionFactory replicaSessionFactory;
+	private static final Object REPLICA_LOCK = new Object();
+	private static volatile long replicaCheckedAt;
+	private static volatile boolean replicaUsable;
+	private static final AtomicLong REPLICA_READS = new AtomicLong();
+	private static final AtomicLong PRIMARY_FALLBACKS = new AtomicLong();
+	
+	/*
+	 * Replication lag in ms, 0 if the replica has replayed everything it has
+	 * received or if it is not a standby at all.
+	 */
+	private static final String REPLICA_LAG_QUERY =
+			"SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_xlog_receive_location() = pg_last_xlog_replay_location() THEN 0 " +
+			"ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+	
+	/*
+	 * TRUE while a request is handled by the RequestSessionFilter, the read
+	 * session of the request is opened with the first read.
+	 */
+	private static final ThreadLocal<Boolean> REQUEST_SCOPE = new ThreadLocal<Boolean>();
+	private static final ThreadLocal<Session> REQUEST_SESSION = new ThreadLocal<Session>();
+	
+	/*
+	 * Not a native query, Hibernate would evict the second-level cache after
+	 * executing it.
+	 */
+	private static final Work READ_ONLY = new Work() {
+		@Override
+		public void execute(Connection connection) throws SQLException {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("SET TRANSACTION READ ONLY");
+			}
+		}
+	};
+	
 	static {
 		try {
 			Configuration config = new Configuration();
 			config.configure();
+			config.setProperty("hibernate.id.optimizer.pooled.prefer_lo", String.valueOf(Config.ID_OPTIMIZER_POOLED_LO));
+			SchemaMigrator.migrate(config.getProperties());
 			
 			serviceRegistry = new ServiceRegistryBuilder().applySettings(config.getProperties()).buildServiceRegistry();
 			sessionFactory = config.buildSessionFactory(serviceRegistry);
+			
+			if (Config.REPLICA_URL != null)
+				replicaSessionFactory = buildReplicaSessionFactory(config);
 		} catch (HibernateException e) {
 			LOGGER.fatal("Error creating hibernate session: "+e);
 			throw new ExceptionInInitializerError(e);
 		}
 	}
 	
+	/*
+	 * The replica is only read, its schema is migrated by replication. The
+	 * second-level cache is not used, stale entities must not get into the
+	 * regions shared with the primary.
+	 */
+	private static SessionFactory buildReplicaSessionFactory(Configuration config) {
+		config.setProperty(Environment.URL, Config.REPLICA_URL);
+		config.getProperties().remove(Environment.HBM2DDL_AUTO);
+		config.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "false");
+		config.setProperty(Environment.USE_QUERY_CACHE, "false");
+		config.setProperty(Environment.CACHE_REGION_FACTORY, NoCachingRegionFactory.class.getName());
+		
+		try {
+			ServiceRegistry replicaServiceRegistry = new ServiceRegistryBuilder().applySettings(config.getProperties()).buildServiceRegistry();
+			SessionFactory factory = config.buildSessionFactory(replicaServiceRegistry);
+			LOGGER.info("Reading histories from replica " + Config.REPLICA_URL);
+			return factory;
+		} catch (HibernateException e) {
+			LOGGER.error("Problem connecting to replica " + Config.REPLICA_URL + ", reading everything from the primary. ErrorMessage: " + e.getMessage());
+			return null;
+		}
+	}
+	
 	/**
 	 * Returns hibernate SessionFactory.
 	 * 
@@ -38,4 +113,241 @@ public class HibernateUtil {
     public static SessionFactory getSessionFactory() {
         return sessionFactory;
     }
+    
+    /**
+     * Returns a session with a read-only transaction for queries. Within a
+     * request (see {@link #beginRequest()}) all reads share one session and
+     * therefore one connection, otherwise a new session is opened. The
+     * session is in FlushMode.MANUAL and loads entities read-only, so
+     * Hibernate neither flushes nor dirty checks them. Writes have to use
+     * their own session (see {@link #openWriteSession()}).
+     * 
+     * Has to be released with {@link #closeReadSession(Session)}.
+     * 
+     * @return session with an active read-only transaction
+     * @throws HibernateException
+     */
+    public static Session openReadSession() throws HibernateException {
+        if (!Boolean.TRUE.equals(REQUEST_SCOPE.get()))
+            return beginReadOnly(sessionFactory.openSession());
+        
+        Session session = REQUEST_SESSION.get();
+        if (session == null) {
+            session = beginReadOnly(sessionFactory.openSession());
+            REQUEST_SESSION.set(session);
+        } else if (!session.getTransaction().isActive()) {
+            //the transaction has been rolled back after an error
+            try {
+                beginReadOnly(session);
+            } catch (HibernateException e) {
+                REQUEST_SESSION.remove();
+                throw e;
+            }
+        }
+        return session;
+    }
+    
+    /**
+     * Returns a new session for writes. The read session of the current
+     * request is closed first, so a request never holds two connections of
+     * the pool at the same time (requests waiting for a second connection
+     * while holding the first one could exhaust the pool). Reads after the
+     * write open a new read session.
+     * 
+     * @return new session
+     * @throws HibernateException
+     */
+    public static Session openWriteSession() throws HibernateException {
+        releaseRequestSession();
+        return sessionFactory.openSession();
+    }
+    
+    /**
+     * Closes the read session of the current request and returns its
+     * connection to the pool, if one has been opened. Has to be called before
+     * calls which may block for a long time (e.g. to bitcoind), the request
+     * scope stays open.
+     */
+    public static void releaseRequestSession() {
+        Session session = REQUEST_SESSION.get();
+        if (session == null)
+            return;
+        
+        REQUEST_SESSION.remove();
+        closeReadSession(session);
+    }
+    
+    /**
+     * Returns a read-only session on the read replica for queries which may
+     * return slightly outdated data (histories, history sizes and exports).
+     * Falls back to {@link #openReadSession()} if no replica is configured,
+     * if it is not reachable or if it is more than
+     * Config.REPLICA_MAX_STALENESS behind the primary. Data read from the
+     * replica must not be written or cached.
+     * 
+     * Has to be released with {@link #closeReadSession(Session)}.
+     * 
+     * @return session with an active read-only transaction
+     * @throws HibernateException
+     */
+    public static Session openReplicaReadSession() throws HibernateException {
+        if (!isReplicaUsable())
+            return openReadSession();
+        
+        try {
+            Session session = beginReadOnly(replicaSessionFactory.openSession());
+            REPLICA_READS.incrementAndGet();
+            return session;
+        } catch (HibernateException e) {
+            LOGGER.warn("Problem opening session on replica, reading from the primary. ErrorMessage: " + e.getMessage());
+            replicaUsable = false;
+            return openReadSession();
+        }
+    }
+    
+    /**
+     * Returns the SessionFactory of the read replica, or of the primary under
+     * the conditions described in {@link #openReplicaReadSession()}.
+     * 
+     * @return sessionFactory
+     */
+    public static SessionFactory getReplicaSessionFactory() {
+        if (!isReplicaUsable())
+            return sessionFactory;
+        
+        REPLICA_READS.incrementAndGet();
+        return replicaSessionFactory;
+    }
+    
+    /**
+     * Returns the number of reads served by the replica and the number of
+     * reads which fell back to the primary.
+     * 
+     * @return statistics
+     */
+    public static String getReplicaStatistics() {
+        if (replicaSessionFactory == null)
+            return "no replica";
+        
+        return "replica reads: " + REPLICA_READS.get() + " primary fallbacks: " + PRIMARY_FALLBACKS.get() + " usable: " + replicaUsable;
+    }
+    
+    private static boolean isReplicaUsable() {
+        if (replicaSessionFactory == null)
+            return false;
+        
+        if (System.currentTimeMillis() - replicaCheckedAt >= Config.REPLICA_LAG_CHECK_INTERVAL) {
+            synchronized (REPLICA_LOCK) {
+                if (System.currentTimeMillis() - replicaCheckedAt >= Config.REPLICA_LAG_CHECK_INTERVAL) {
+                    replicaUsable = checkReplicaLag();
+                    replicaCheckedAt = System.currentTimeMillis();
+                }
+            }
+        }
+        
+        if (!replicaUsable)
+            PRIMARY_FALLBACKS.incrementAndGet();
+        return replicaUsable;
+    }
+    
+    private static boolean checkReplicaLag() {
+        Session session = null;
+        try {
+            session = replicaSessionFactory.openSession();
+            Number lag = (Number) session.createSQLQuery(REPLICA_LAG_QUERY).uniqueResult();
+            if (lag.longValue() <= Config.REPLICA_MAX_STALENESS)
+                return true;
+            
+            LOGGER.warn("Replica is " + lag.longValue() + "ms behind, reading from the primary.");
+            return false;
+        } catch (HibernateException e) {
+            LOGGER.warn("Problem checking replication lag, reading from the primary. ErrorMessage: " + e.getMessage());
+            return false;
+        } finally {
+            if (session != null)
+                session.close();
+        }
+    }
+    
+    /**
+     * Releases a session returned by {@link #openReadSession()} or
+     * {@link #openReplicaReadSession()}. The session of a request stays open
+     * until the request ends, but its entities are evicted, so callers get
+     * detached entities as from a closed session and later reads see the
+     * changes written in the meantime.
+     * 
+     * @param session
+     */
+    public static void closeReadSession(Session session) {
+        //the session of the request may have been released in the meantime
+        if (!session.isOpen())
+            return;
+        
+        if (session == REQUEST_SESSION.get()) {
+            session.clear();
+            return;
+        }
+        
+        try {
+            if (session.getTransaction().isActive())
+                session.getTransaction().rollback();
+        } finally {
+            session.close();
+        }
+    }
+    
+    /**
+     * Starts the request scope of the current thread, see
+     * {@link #openReadSession()}.
+     */
+    public static void beginRequest() {
+        REQUEST_SCOPE.set(Boolean.TRUE);
+    }
+    
+    /**
+     * Ends the request scope of the current thread and closes the read session
+     * of the request if one has been opened.
+     */
+    public static void endRequest() {
+        releaseRequestSession();
+        REQUEST_SCOPE.remove();
+    }
+    
+    private static Session beginReadOnly(Session session) {
+        session.setFlushMode(FlushMode.MANUAL);
+        session.setDefaultReadOnly(true);
+        try {
+            session.beginTransaction();
+            session.doWork(READ_ONLY);
+        } catch (HibernateException e) {
+            session.close();
+            throw e;
+        }
+        return session;
+    }
+    
+    /**
+     * Returns the hit and miss counts of the second-level cache regions, the
+     * natural id cache and the query cache for logging.
+     * 
+     * @return statistics
+     */
+    public static String getCacheStatistics() {
+        Statistics statistics = sessionFactory.getStatistics();
+        StringBuilder sb = new StringBuilder();
+        for (String region : statistics.getSecondLevelCacheRegionNames()) {
+            SecondLevelCacheStatistics regionStatistics = statistics.getSecondLevelCacheStatistics(region);
+            sb.append(region);
+            sb.append(" [hits: ").append(regionStatistics.getHitCount());
+            sb.append(" misses: ").append(regionStatistics.getMissCount());
+            sb.append(" puts: ").append(regionStatistics.getPutCount());
+            sb.append(" size: ").append(regionStatistics.getElementCountInMemory());
+            sb.append("], ");
+        }
+        sb.append("natural ids [hits: ").append(statistics.getNaturalIdCacheHitCount());
+        sb.append(" misses: ").append(statistics.getNaturalIdCacheMissCount()).append("], ");
+        sb.append("queries [hits: ").append(statistics.getQueryCacheHitCount());
+        sb.append(" misses: ").append(statistics.getQueryCacheMissCount()).append("]");
+        return sb.toString();
+    }
 }
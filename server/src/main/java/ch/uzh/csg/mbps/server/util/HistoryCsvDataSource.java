@@ -0,0 +1,61 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+import ch.uzh.csg.mbps.server.dao.HistoryExportDAO;
+
+/**
+ * {@link DataSource} of a gzip compressed csv history, used as email
+ * attachment. Every call of {@link #getInputStream()} streams the history from
+ * the database again, nothing is stored on the servers hd.
+ */
+public class HistoryCsvDataSource implements DataSource {
+	private final long userId;
+	private final int type;
+	private final String name;
+
+	/**
+	 * @param userId
+	 *            the id of the UserAccount whose history is exported
+	 * @param type
+	 *            0 for common transactions, 1 for pay in transactions, 2 for
+	 *            pay out transactions
+	 * @param name
+	 *            the file name of the attachment
+	 * @throws IllegalArgumentException
+	 *             if the type is not valid
+	 */
+	public HistoryCsvDataSource(long userId, int type, String name) throws IllegalArgumentException {
+		if (!HistoryExportDAO.isValidType(type))
+			throw new IllegalArgumentException("Unknown history type: " + type);
+
+		this.userId = userId;
+		this.type = type;
+		this.name = name;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return HistoryExportDAO.openGzipCsv(userId, type);
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("HistoryCsvDataSource is read only");
+	}
+
+	@Override
+	public String getContentType() {
+		return "application/gzip";
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+}
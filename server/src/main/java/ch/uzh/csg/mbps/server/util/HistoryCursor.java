@@ -0,0 +1,70 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.util.Date;
+
+/**
+ * Continuation token for reading a history page by page. Points to the last
+ * entry (timestamp and id) of the previous page. The next page contains the
+ * entries which are ordered after this entry (timestamp descending, id
+ * descending). In contrast to a page number, the database does not have to
+ * skip all entries of the previous pages.
+ */
+public class HistoryCursor {
+	private static final String SEPARATOR = "-";
+
+	private final long timestamp;
+	private final long id;
+
+	public HistoryCursor(Date timestamp, long id) {
+		this.timestamp = timestamp.getTime();
+		this.id = id;
+	}
+
+	public Date getTimestamp() {
+		return new Date(timestamp);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the cursor as String which can be passed to a client.
+	 */
+	public String encode() {
+		return timestamp + SEPARATOR + id;
+	}
+
+	/**
+	 * Decodes a cursor created by {@link #encode()}.
+	 *
+	 * @param cursor
+	 *            the encoded cursor
+	 * @return HistoryCursor or null if the given String is null or empty,
+	 *         which stands for the first page
+	 * @throws IllegalArgumentException
+	 *             if the given String is not a valid cursor
+	 */
+	public static HistoryCursor decode(String cursor) throws IllegalArgumentException {
+		if (cursor == null || cursor.isEmpty())
+			return null;
+
+		int index = cursor.indexOf(SEPARATOR);
+		if (index <= 0 || index == cursor.length() - 1)
+			throw new IllegalArgumentException("Invalid history cursor: " + cursor);
+
+		try {
+			long timestamp = Long.parseLong(cursor.substring(0, index));
+			long id = Long.parseLong(cursor.substring(index + 1));
+			return new HistoryCursor(new Date(timestamp), id);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid history cursor: " + cursor);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return encode();
+	}
+
+}
@@ -0,0 +1,36 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.util.ArrayList;
+
+/**
+ * One page of a history read with a {@link HistoryCursor}.
+ *
+ * @param <T>
+ *            type of the history entries
+ */
+public class HistoryPage<T> {
+	private final ArrayList<T> items;
+	private final HistoryCursor nextCursor;
+
+	public HistoryPage(ArrayList<T> items, HistoryCursor nextCursor) {
+		this.items = items;
+		this.nextCursor = nextCursor;
+	}
+
+	public ArrayList<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * Returns the cursor pointing to the next page or null if this is the last
+	 * page.
+	 */
+	public HistoryCursor getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean hasMore() {
+		return nextCursor != null;
+	}
+
+}
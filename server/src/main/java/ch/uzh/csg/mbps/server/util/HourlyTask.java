@@ -1,13 +1,24 @@
 package ch.uzh.csg.mbps.server.util;
 
 import java.io.IOException;
+import java.util.Calendar;
 
 import net.minidev.json.parser.ParseException;
 
 import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
 
+import ch.uzh.csg.mbps.server.auth.PasswordVerifier;
+import ch.uzh.csg.mbps.server.dao.HistoryCounterDAO;
+import ch.uzh.csg.mbps.server.dao.PayOutRuleDAO;
+import ch.uzh.csg.mbps.server.dao.TransactionDAO;
+import ch.uzh.csg.mbps.server.dao.UserAccountDAO;
 import ch.uzh.csg.mbps.server.domain.PayOutRule;
+import ch.uzh.csg.mbps.server.service.BalanceLimitChecker;
 import ch.uzh.csg.mbps.server.service.PayOutRuleService;
+import ch.uzh.csg.mbps.server.service.TransactionCrypto;
+import ch.uzh.csg.mbps.server.service.TransactionService;
+import ch.uzh.csg.mbps.server.service.VerificationEmailThrottle;
 
 /**
  * Task executed by cron job for checking all {@link PayOutRule}s.
@@ -20,12 +31,54 @@ public class HourlyTask {
 	 * Update is executed every 60minutes.
 	 */
 	public void update() {
-		//check payout rules
+		//refresh the PayOutRule index and check payout rules
+		preloadPayOutRules();
 		PayOutRuleService.getInstance().checkAllRules();
 		LOGGER.info("Cronjob is executing PayOutRules-Task.");
 		
 		// update USD/CHF-ExchangeRate
 		updateUsdChf();
+		
+		// recount history counters once a day
+		if (Calendar.getInstance().get(Calendar.HOUR_OF_DAY) == Config.HISTORY_COUNTER_REBUILD_HOUR)
+			rebuildHistoryCounters();
+		
+		LOGGER.info("UserAccount cache: " + UserAccountDAO.getCacheStatistics());
+		LOGGER.info("Hibernate cache: " + HibernateUtil.getCacheStatistics());
+		LOGGER.info("Read replica: " + HibernateUtil.getReplicaStatistics());
+		LOGGER.info("Emailer: " + Emailer.getStatistics());
+		LOGGER.info("PayOutRule index: " + PayOutRuleDAO.getIndexStatistics());
+		LOGGER.info("BalanceLimitChecker: " + BalanceLimitChecker.getInstance().getStatistics());
+		LOGGER.info("Transaction responses: " + TransactionService.getRecentResponseStatistics());
+		LOGGER.info("Transaction crypto: " + TransactionCrypto.getInstance().getStatistics());
+		LOGGER.info("PasswordVerifier: " + PasswordVerifier.getInstance().getStatistics());
+		LOGGER.info("Verification emails: " + VerificationEmailThrottle.getInstance().getStatistics());
+		if (Config.TRANSACTION_GROUP_COMMIT)
+			LOGGER.info("Transaction group commit: " + TransactionDAO.getGroupCommitStatistics());
+	}
+
+	/**
+	 * Reloads all PayOutRules into the index with one query, in case an
+	 * invalidation got lost.
+	 */
+	private void preloadPayOutRules() {
+		try {
+			PayOutRuleDAO.preload();
+		} catch (HibernateException e) {
+			LOGGER.error("Problem indexing PayOutRules " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Recounts the history counters from the history tables, in case they got
+	 * out of sync.
+	 */
+	private void rebuildHistoryCounters() {
+		try {
+			HistoryCounterDAO.rebuild();
+		} catch (HibernateException e) {
+			LOGGER.error("Problem rebuilding history counters " + e.getMessage());
+		}
 	}
 
 	/**
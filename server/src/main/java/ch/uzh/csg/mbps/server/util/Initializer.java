@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyPair;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -15,64 +16,73 @@ import java.util.concurrent.TimeUnit;
 import net.minidev.json.parser.ParseException;
 
 import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
+import ch.uzh.csg.mbps.server.auth.PasswordVerifier;
+import ch.uzh.csg.mbps.server.dao.PayOutRuleDAO;
+import ch.uzh.csg.mbps.server.dao.PayOutTransactionDAO;
+import ch.uzh.csg.mbps.server.dao.TransactionDAO;
+import ch.uzh.csg.mbps.server.domain.PayOutTransaction;
+import ch.uzh.csg.mbps.server.service.BalanceLimitChecker;
+import ch.uzh.csg.mbps.server.service.ServerKeys;
+import ch.uzh.csg.mbps.server.service.TransactionCrypto;
 import ch.uzh.csg.mbps.util.KeyHandler;
 
-import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
-
 /**
  * {@link Initializer} is taking care of starting necessary tasks after successfully starting up Tomcat server application.
+ * When the application is stopped or undeployed, it stops these tasks and all threads started by the server.
  *
  */
-public class Initializer implements InitializingBean{
+public class Initializer implements InitializingBean, DisposableBean{
 	private static Logger LOGGER = Logger.getLogger(Initializer.class);
+	
+	private static ClassPathXmlApplicationContext hourlyQuartz;
+	private static ScheduledExecutorService exchangeRateExecutor;
 
-	@SuppressWarnings("resource")
 	public void afterPropertiesSet(){
-		try {
-			BitcoindController.backupWallet();
-			//activates receivePayIn/Out Listener
-			BitcoindController.listenIncomingTransactions();
-			BitcoindController.listenOutgoingTransactions();
-			//activates Task for checking PayOutRules
-			new ClassPathXmlApplicationContext("HourlyQuartz.xml");
-			
-			//if ServerKeys.txt == null create new Private/Public Key pair
-			String keyFilePath = "ServerKeys.txt";
+		BitcoindController.backupWallet();
+		//activates receivePayIn/Out Listener
+		BitcoindController.startBlockchainWatcher();
+		//indexes all PayOutRules, so payments don't load them from the database
+		preloadPayOutRules();
+		//PayOuts left reserved by a crash or an unanswered send have to be reconciled by hand
+		reportPendingPayOuts();
+		//activates Task for checking PayOutRules
+		hourlyQuartz = new ClassPathXmlApplicationContext("HourlyQuartz.xml");
+		
+		//if ServerKeys.txt == null create new Private/Public Key pair
+		String keyFilePath = "ServerKeys.txt";
 
-			File serverKeys = null;
-			URI uri = null;
-			try {
-				uri = getClass().getResource("/" + keyFilePath).toURI();
-			} catch (URISyntaxException e) {
-				LOGGER.info("Couldnt create server keys", e);
-			}
+		File serverKeys = null;
+		URI uri = null;
+		try {
+			uri = getClass().getResource("/" + keyFilePath).toURI();
+		} catch (URISyntaxException e) {
+			LOGGER.info("Couldnt create server keys", e);
+		}
 
-			serverKeys = new File(uri);
-			try {
-				BufferedReader serverKeysFile = new BufferedReader(new FileReader(serverKeys));
-				String line = serverKeysFile.readLine();
-				if(line == null){
-					createServerKeys(serverKeys);
-				} else{
-					String privateKeyEncoded = line;
-					String publicKeyEncoded = serverKeysFile.readLine();
-					serverKeysFile.close();
-					Constants.PRIVATEKEY = KeyHandler.decodePrivateKey(privateKeyEncoded);
-					Constants.PUBLICKEY = KeyHandler.decodePublicKey(publicKeyEncoded);						
-				}
-			} catch (Exception e) {
-				LOGGER.error("Problem reading Serverkeys from Input File", e);
+		serverKeys = new File(uri);
+		try {
+			BufferedReader serverKeysFile = new BufferedReader(new FileReader(serverKeys));
+			String line = serverKeysFile.readLine();
+			if(line == null){
+				createServerKeys(serverKeys);
+			} else{
+				String privateKeyEncoded = line;
+				String publicKeyEncoded = serverKeysFile.readLine();
+				serverKeysFile.close();
+				ServerKeys.set(new KeyPair(KeyHandler.decodePublicKey(publicKeyEncoded), KeyHandler.decodePrivateKey(privateKeyEncoded)));
 			}
-		} catch (BitcoinException e) {
-			LOGGER.error("Bitcoind Exception: Couldn't initialize receivment of Bitcoin PayIN Transactions");
+		} catch (Exception e) {
+			LOGGER.error("Problem reading Serverkeys from Input File", e);
 		}
 
 		try {
 			ExchangeRates.updateExchangeRateUsdChf();
-		} catch (ParseException | IOException e) {
+		} catch (ParseException | IOException | RuntimeException e) {
 			LOGGER.error("Problem updating USD/CHF exchange rate.");
 		}
 
@@ -88,18 +98,69 @@ public class Initializer implements InitializingBean{
 			fileWriter.write(KeyHandler.encodePublicKey(keypair.getPublic()));
 			fileWriter.close();
 
-			Constants.PRIVATEKEY = keypair.getPrivate();
-			Constants.PUBLICKEY = keypair.getPublic();
+			ServerKeys.set(keypair);
 		} catch (Exception e) {
 			LOGGER.error("Problem creating Serverkeys.");
 		}
 	}
 	
+	private static void preloadPayOutRules() {
+		try {
+			int count = PayOutRuleDAO.preload();
+			LOGGER.info("Indexed " + count + " PayOutRules.");
+		} catch (HibernateException e) {
+			LOGGER.error("Problem indexing PayOutRules. " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Stops the scheduled tasks first, so they do not hand over new work to
+	 * the thread pools stopped afterwards.
+	 */
+	public void destroy() {
+		if (hourlyQuartz != null) {
+			hourlyQuartz.close();
+			hourlyQuartz = null;
+		}
+		if (exchangeRateExecutor != null) {
+			ThreadPools.shutdown(exchangeRateExecutor, "ExchangeRate update");
+			exchangeRateExecutor = null;
+		}
+		BitcoindController.stopBlockchainWatcher();
+		
+		BalanceLimitChecker.shutdown();
+		TransactionDAO.stopGroupCommit();
+		TransactionCrypto.shutdown();
+		PasswordVerifier.shutdown();
+		Emailer.shutdown();
+		LOGGER.info("Stopped all tasks and threads.");
+	}
+	
+	private static void reportPendingPayOuts() {
+		try {
+			List<PayOutTransaction> pending = PayOutTransactionDAO.getPending();
+			for (PayOutTransaction pot : pending) {
+				LOGGER.fatal("PayOut reserved without TransactionID, check the wallet and set the TransactionID or refund it: " + pot);
+			}
+			if (!pending.isEmpty())
+				LOGGER.fatal(pending.size() + " PayOuts have to be reconciled.");
+		} catch (HibernateException e) {
+			LOGGER.error("Problem reading pending PayOuts. " + e.getMessage());
+		}
+	}
+	
 	private static void updateExchangeRateTask(){
+		//fetch the first ExchangeRate at startup, requests never fetch it themselves
+		try {
+			ExchangeRates.update();
+		} catch (ParseException | IOException | RuntimeException e) {
+			LOGGER.error("Problem updating exchangerate. " + e.getMessage());
+		}
+		
 		try {
 			//update ExchangeRate every 5 seconds
-			ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
-			exec.scheduleAtFixedRate(new Runnable() {
+			exchangeRateExecutor = Executors.newSingleThreadScheduledExecutor();
+			exchangeRateExecutor.scheduleAtFixedRate(new Runnable() {
 			  @Override
 			  public void run() {
 			   	try {
@@ -108,7 +169,7 @@ public class Initializer implements InitializingBean{
 					LOGGER.error("Problem updating exchangerate. " + t.getMessage());
 				}
 			  }
-			}, 30, Config.EXCHANGE_RATE_UPDATE_TIME, TimeUnit.SECONDS);
+			}, Config.EXCHANGE_RATE_UPDATE_TIME, Config.EXCHANGE_RATE_UPDATE_TIME, TimeUnit.SECONDS);
 		} catch (Exception e) {
 			LOGGER.error("Problem updating exchangerate. " + e.getMessage());
 		}
@@ -0,0 +1,41 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Opens the request scope of {@link HibernateUtil}, so all DAO reads of one
+ * request (including the authentication) share one read-only session and one
+ * connection. The session is opened with the first read and closed when the
+ * request has been handled or before a write (see
+ * {@link HibernateUtil#openWriteSession()}), so a request never holds two
+ * connections. Has to be the first filter in web.xml.
+ *
+ */
+public class RequestSessionFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		HibernateUtil.beginRequest();
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			HibernateUtil.endRequest();
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+}
@@ -0,0 +1,225 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+
+/**
+ * Applies the versioned migration scripts in src/main/resources/db/migration
+ * to the database before the SessionFactory is built. Hibernate only
+ * validates the mapping against the migrated schema.
+ *
+ * The applied versions are recorded in the table schema_version. Every script
+ * is applied in its own database transaction, while the table schema_version
+ * is locked, so several servers can be started concurrently. A database which
+ * has been created by hbm2ddl (user_account exists, schema_version does not)
+ * is baselined at version 1, which is the schema hbm2ddl has created. Tables
+ * and constraints mapped since then are added by the later scripts.
+ *
+ * New scripts have to be appended to {@link #MIGRATIONS}, applied scripts must
+ * never be changed. Statements are separated by semicolons at the end of a
+ * line, lines starting with -- are comments.
+ */
+public class SchemaMigrator {
+	private static Logger LOGGER = Logger.getLogger(SchemaMigrator.class);
+
+	private static final String LOCATION = "/db/migration/";
+
+	/*
+	 * version, script
+	 */
+	private static final String[][] MIGRATIONS = {
+		{ "1", "V1__baseline.sql" },
+		{ "2", "V2__query_indexes.sql" },
+		{ "3", "V3__user_public_key.sql" },
+		{ "4", "V4__user_public_key_version.sql" },
+		{ "5", "V5__user_transaction_number.sql" },
+		{ "6", "V6__history_counter.sql" },
+		{ "7", "V7__blockchain_watcher.sql" },
+		{ "8", "V8__transaction_request_key.sql" },
+		{ "9", "V9__pooled_sequences.sql" } };
+
+	/*
+	 * If set to true, the public schema is dropped before the migrations are
+	 * applied (used by the tests, which expect an empty database).
+	 */
+	private static final String CLEAN_PROPERTY = "mbps.schema.clean";
+
+	private SchemaMigrator() {
+	}
+
+	/**
+	 * Applies all migrations which have not been applied yet.
+	 *
+	 * @param properties
+	 *            Hibernate properties with the connection settings
+	 * @throws HibernateException
+	 *             if a migration fails, the failed migration is rolled back
+	 */
+	public static void migrate(Properties properties) throws HibernateException {
+		Connection connection = null;
+		try {
+			String driver = properties.getProperty(Environment.DRIVER);
+			if (driver != null)
+				Class.forName(driver);
+
+			connection = DriverManager.getConnection(properties.getProperty(Environment.URL), properties.getProperty(Environment.USER), properties.getProperty(Environment.PASS));
+			connection.setAutoCommit(false);
+
+			if (Boolean.getBoolean(CLEAN_PROPERTY))
+				clean(connection);
+
+			createVersionTable(connection);
+			for (String[] migration : MIGRATIONS) {
+				apply(connection, Integer.parseInt(migration[0]), migration[1]);
+			}
+		} catch (ClassNotFoundException | SQLException | IOException e) {
+			LOGGER.fatal("Problem migrating the database schema. ErrorMessage: " + e.getMessage());
+			rollback(connection);
+			throw new HibernateException("Problem migrating the database schema.", e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	private static void clean(Connection connection) throws SQLException {
+		LOGGER.warn("Dropping the database schema.");
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("DROP SCHEMA public CASCADE");
+			statement.execute("CREATE SCHEMA public");
+		}
+		connection.commit();
+	}
+
+	private static void createVersionTable(Connection connection) throws SQLException {
+		if (tableExists(connection, "schema_version"))
+			return;
+
+		boolean baseline = tableExists(connection, "user_account");
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE schema_version (" +
+					"version int4 NOT NULL, " +
+					"script varchar(255) NOT NULL, " +
+					"installed_on timestamp NOT NULL DEFAULT now(), " +
+					"PRIMARY KEY (version))");
+		}
+		if (baseline) {
+			insertVersion(connection, 1, "<< baseline of schema created by hbm2ddl >>");
+			LOGGER.info("Baselined existing database schema at version 1.");
+		}
+		connection.commit();
+	}
+
+	private static void apply(Connection connection, int version, String script) throws SQLException, IOException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("LOCK TABLE schema_version IN EXCLUSIVE MODE");
+		}
+
+		if (isApplied(connection, version)) {
+			connection.commit();
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		try (Statement statement = connection.createStatement()) {
+			for (String sql : readStatements(script)) {
+				statement.execute(sql);
+			}
+		}
+		insertVersion(connection, version, script);
+		connection.commit();
+		LOGGER.info("Applied migration " + script + " in " + (System.currentTimeMillis() - start) + "ms.");
+	}
+
+	private static boolean tableExists(Connection connection, String table) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM information_schema.tables WHERE table_schema = current_schema() AND table_name = ?")) {
+			statement.setString(1, table);
+			try (ResultSet rs = statement.executeQuery()) {
+				rs.next();
+				return rs.getLong(1) > 0;
+			}
+		}
+	}
+
+	private static boolean isApplied(Connection connection, int version) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM schema_version WHERE version = ?")) {
+			statement.setInt(1, version);
+			try (ResultSet rs = statement.executeQuery()) {
+				rs.next();
+				return rs.getLong(1) > 0;
+			}
+		}
+	}
+
+	private static void insertVersion(Connection connection, int version, String script) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("INSERT INTO schema_version (version, script) VALUES (?, ?)")) {
+			statement.setInt(1, version);
+			statement.setString(2, script);
+			statement.executeUpdate();
+		}
+	}
+
+	private static List<String> readStatements(String script) throws IOException {
+		InputStream in = SchemaMigrator.class.getResourceAsStream(LOCATION + script);
+		if (in == null)
+			throw new IOException("Migration " + script + " not found.");
+
+		List<String> statements = new ArrayList<String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")))) {
+			StringBuilder sb = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String trimmed = line.trim();
+				if (trimmed.isEmpty() || trimmed.startsWith("--"))
+					continue;
+
+				if (trimmed.endsWith(";")) {
+					sb.append(trimmed.substring(0, trimmed.length() - 1));
+					statements.add(sb.toString());
+					sb.setLength(0);
+				} else {
+					sb.append(trimmed).append(' ');
+				}
+			}
+			if (sb.length() > 0)
+				statements.add(sb.toString());
+		}
+		return statements;
+	}
+
+	private static void rollback(Connection connection) {
+		if (connection == null)
+			return;
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			LOGGER.error("Problem rolling back migration. ErrorMessage: " + e.getMessage());
+		}
+	}
+
+	private static void close(Connection connection) {
+		if (connection == null)
+			return;
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			LOGGER.error("Problem closing migration connection. ErrorMessage: " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package ch.uzh.csg.mbps.server.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stops the thread pools of the server when the application is undeployed
+ * (see {@link Initializer#destroy()}), so no threads of an old deployment are
+ * left running.
+ */
+public class ThreadPools {
+	private static Logger LOGGER = Logger.getLogger(ThreadPools.class);
+
+	private ThreadPools() {
+	}
+
+	/**
+	 * Stops accepting new tasks and waits up to Config.SHUTDOWN_TIMEOUT for
+	 * the running and queued tasks. Tasks still running after that are
+	 * interrupted.
+	 *
+	 * @param executor
+	 * @param name
+	 *            name of the pool for logging
+	 */
+	public static void shutdown(ExecutorService executor, String name) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(Config.SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				LOGGER.warn(name + " did not finish within " + Config.SHUTDOWN_TIMEOUT + "ms, interrupting " + executor.shutdownNow().size() + " queued and the running tasks.");
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Interrupts the given thread and waits up to Config.SHUTDOWN_TIMEOUT
+	 * until it has terminated.
+	 *
+	 * @param thread
+	 */
+	public static void stop(Thread thread) {
+		thread.interrupt();
+		try {
+			thread.join(Config.SHUTDOWN_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive())
+			LOGGER.warn(thread.getName() + " did not terminate within " + Config.SHUTDOWN_TIMEOUT + "ms.");
+	}
+
+}
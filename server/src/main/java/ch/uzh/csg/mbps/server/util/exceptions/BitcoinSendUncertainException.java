@@ -0,0 +1,17 @@
+package ch.uzh.csg.mbps.server.util.exceptions;
+
+import com.azazar.bitcoin.jsonrpcclient.BitcoinException;
+
+/**
+ * Thrown if a request to send Bitcoins failed without an answer from bitcoind
+ * (e.g. timeout or lost connection), so the Bitcoins may have been sent
+ * anyway.
+ */
+public class BitcoinSendUncertainException extends BitcoinException {
+	private static final long serialVersionUID = -1953285021542372869L;
+
+	public BitcoinSendUncertainException(BitcoinException cause) {
+		super("It is unknown whether bitcoind has sent the Bitcoins: " + cause.getMessage(), cause);
+	}
+
+}
@@ -0,0 +1,23 @@
+package ch.uzh.csg.mbps.server.util.exceptions;
+
+import ch.uzh.csg.mbps.server.domain.DbTransaction;
+
+public class DuplicateTransactionException extends Exception {
+	private static final long serialVersionUID = 4121693725826530213L;
+	
+	private final DbTransaction existing;
+
+	public DuplicateTransactionException(DbTransaction existing) {
+		super("The transaction has already been created: " + existing);
+		this.existing = existing;
+	}
+
+	/**
+	 * Returns the {@link DbTransaction} which has been created by the first
+	 * request.
+	 */
+	public DbTransaction getExisting() {
+		return existing;
+	}
+
+}
@@ -0,0 +1,10 @@
+package ch.uzh.csg.mbps.server.util.exceptions;
+
+public class ExchangeRateUnavailableException extends Exception {
+	private static final long serialVersionUID = 6120846236183905747L;
+
+	public ExchangeRateUnavailableException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,10 @@
+package ch.uzh.csg.mbps.server.util.exceptions;
+
+public class InsufficientBalanceException extends Exception {
+	private static final long serialVersionUID = -2190412318723309413L;
+
+	public InsufficientBalanceException(long userId) {
+		super("The balance of the account with id " + userId + " is too low.");
+	}
+
+}
@@ -0,0 +1,12 @@
+package ch.uzh.csg.mbps.server.util.exceptions;
+
+import ch.uzh.csg.mbps.server.domain.DbTransaction;
+
+public class InvalidTransactionNumberException extends Exception {
+	private static final long serialVersionUID = -6305178853924174321L;
+
+	public InvalidTransactionNumberException(DbTransaction tx) {
+		super("The transaction numbers have not been issued by the server: " + tx);
+	}
+
+}
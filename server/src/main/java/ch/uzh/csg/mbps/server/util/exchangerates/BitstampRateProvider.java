@@ -0,0 +1,30 @@
+package ch.uzh.csg.mbps.server.util.exchangerates;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * Returns the exchange rate of Bitstamp.net. Bitstamp only trades BTC/USD, so
+ * the rate is converted to Swiss Francs.
+ *
+ */
+public class BitstampRateProvider implements ExchangeRateProvider {
+	private final static String BITSTAMP_URL = "https://www.bitstamp.net/api/ticker/";
+
+	@Override
+	public String getName() {
+		return "Bitstamp";
+	}
+
+	@Override
+	public BigDecimal fetchExchangeRate(BigDecimal usdChf) throws ParseException, IOException {
+		// gets actual exchange rate out of Json Object and saves it to last.
+		JSONObject httpAnswerJson = JsonHttpClient.get(BITSTAMP_URL);
+		String last_String = (String) httpAnswerJson.get("last");
+		return new BigDecimal(last_String).multiply(usdChf);
+	}
+
+}
@@ -0,0 +1,33 @@
+package ch.uzh.csg.mbps.server.util.exchangerates;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import net.minidev.json.parser.ParseException;
+
+/**
+ * Source of the BTC/CHF exchange rate, e.g. a Bitcoin exchange platform.
+ *
+ */
+public interface ExchangeRateProvider {
+
+	/**
+	 * Returns the name of this provider, which is stored as source of the
+	 * {@link RateSnapshot}s.
+	 */
+	public String getName();
+
+	/**
+	 * Fetches the current BTC/CHF exchange rate from this provider. This call
+	 * blocks until the provider has answered.
+	 *
+	 * @param usdChf
+	 *            the current USD/CHF exchange rate, for providers which only
+	 *            offer BTC/USD
+	 * @return exchangeRate BTC/CHF
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	public BigDecimal fetchExchangeRate(BigDecimal usdChf) throws ParseException, IOException;
+
+}
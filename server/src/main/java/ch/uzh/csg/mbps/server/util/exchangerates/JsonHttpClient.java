@@ -0,0 +1,61 @@
+package ch.uzh.csg.mbps.server.util.exchangerates;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.JSONParser;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * Executes HTTP GET requests to JSON APIs of exchange rate providers.
+ *
+ */
+public class JsonHttpClient {
+	private final static String USER_AGENT = "Mozilla/5.0";
+	private final static int TIMEOUT = 10 * 1000;
+
+	private JsonHttpClient() {
+	}
+
+	/**
+	 * Executes JSON HTTP Request and returns the parsed result.
+	 *
+	 * @param url
+	 * @return response of defined by url request
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	public static JSONObject get(String url) throws ParseException, IOException {
+		URL obj = new URL(url);
+		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
+
+		// optional default is GET
+		con.setRequestMethod("GET");
+		con.setConnectTimeout(TIMEOUT);
+		con.setReadTimeout(TIMEOUT);
+
+		// add request header
+		con.setRequestProperty("User-Agent", USER_AGENT);
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+		String inputLine;
+		StringBuilder response = new StringBuilder();
+		try {
+			while ((inputLine = in.readLine()) != null) {
+				response.append(inputLine);
+			}
+		} finally {
+			in.close();
+		}
+
+		//JSONParser.MODE_JSON_SIMPLE
+		@SuppressWarnings("deprecation")
+		JSONParser parser = new JSONParser();
+		return (JSONObject) parser.parse(response.toString());
+	}
+
+}
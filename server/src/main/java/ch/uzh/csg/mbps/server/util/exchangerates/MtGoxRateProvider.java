@@ -0,0 +1,30 @@
+package ch.uzh.csg.mbps.server.util.exchangerates;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import net.minidev.json.JSONObject;
+import net.minidev.json.parser.ParseException;
+
+/**
+ * Returns the BTC/CHF exchange rate of MtGox.com.
+ *
+ */
+public class MtGoxRateProvider implements ExchangeRateProvider {
+	private final static String MTGOX_URL = "http://data.mtgox.com/api/2/BTCCHF/money/ticker_fast";
+
+	@Override
+	public String getName() {
+		return "MtGox";
+	}
+
+	@Override
+	public BigDecimal fetchExchangeRate(BigDecimal usdChf) throws ParseException, IOException {
+		JSONObject httpAnswerJson = JsonHttpClient.get(MTGOX_URL);
+		JSONObject dataJson = (JSONObject) httpAnswerJson.get("data");
+		JSONObject lastJson = (JSONObject) dataJson.get("last");
+		String last_String = (String) lastJson.get("value");
+		return new BigDecimal(last_String);
+	}
+
+}
@@ -0,0 +1,56 @@
+package ch.uzh.csg.mbps.server.util.exchangerates;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Immutable BTC/CHF exchange rate together with the provider it has been
+ * fetched from and the time it has been fetched.
+ *
+ */
+public final class RateSnapshot {
+	private final BigDecimal rate;
+	private final String source;
+	private final long fetchTime;
+
+	public RateSnapshot(BigDecimal rate, String source, long fetchTime) {
+		this.rate = rate;
+		this.source = source;
+		this.fetchTime = fetchTime;
+	}
+
+	public BigDecimal getRate() {
+		return rate;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public long getFetchTime() {
+		return fetchTime;
+	}
+
+	/**
+	 * Returns true if this snapshot has been fetched more than maxAge ms ago.
+	 *
+	 * @param maxAge
+	 *            in ms
+	 */
+	public boolean isStale(long maxAge) {
+		return System.currentTimeMillis() - fetchTime > maxAge;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("rate: ");
+		sb.append(rate);
+		sb.append(" source: ");
+		sb.append(source);
+		sb.append(" fetched: ");
+		sb.append(new Date(fetchTime));
+		return sb.toString();
+	}
+
+}
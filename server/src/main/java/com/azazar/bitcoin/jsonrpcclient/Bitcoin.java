@@ -163,7 +163,15 @@ public interface Bitcoin {
 
 	 public int getBlockCount() throws BitcoinException;
 
-	 //getblockhash
+	 /**
+	  * Returns the hash of the block at the given height of the best block
+	  * chain.
+	  * 
+	  * @param height
+	  * @return block hash
+	  * @throws BitcoinException
+	  */
+	 public String getBlockHash(int height) throws BitcoinException;
 
 	 //getblocknumber - deprecated
 
@@ -374,7 +382,15 @@ public interface Bitcoin {
 	  */
 	 public String sendFrom(String fromAccount, String toBitcoinAddress, double amount, int minConf, String comment, String commentTo) throws BitcoinException;
 
-	 //sendmany
+	 /**
+	  * Sends the given amounts to the given addresses with one Bitcoin
+	  * transaction.
+	  * @param fromAccount
+	  * @param amounts amount by address, every address may only occur once
+	  * @return transaction id
+	  * @throws BitcoinException
+	  */
+	 public String sendMany(String fromAccount, Map<String, Double> amounts) throws BitcoinException;
 
 	 public String sendRawTransaction(String hex) throws BitcoinException;
 
@@ -416,6 +432,14 @@ public interface Bitcoin {
 
 	 public AddressValidationResult validateAddress(String address) throws BitcoinException;
 
+	 /**
+	  * Validates all addresses with one batch request.
+	  * @param addresses
+	  * @return the results in the order of the addresses
+	  * @throws BitcoinException
+	  */
+	 public List<AddressValidationResult> validateAddresses(List<String> addresses) throws BitcoinException;
+
 	 //verifymessage
 
 	 //walletlock
@@ -91,12 +91,19 @@ public class BitcoinAcceptor implements Runnable {
 
     private HashSet<String> seen = new HashSet<String>();
 
+    /**
+     * Sets monitorBlock to the block monitorDepth blocks below lastBlock. The
+     * block is looked up by its height, which takes two queries instead of
+     * walking back monitorDepth blocks one by one.
+     */
     private void updateMonitorBlock() throws BitcoinException {
-        monitorBlock = lastBlock;
-        for(int i = 0; i < monitorDepth && monitorBlock != null; i++) {
-            Bitcoin.Block b = bitcoin.getBlock(monitorBlock);
-            monitorBlock = b == null ? null : b.previousHash();
+        if (lastBlock == null) {
+            monitorBlock = null;
+            return;
         }
+        Bitcoin.Block b = bitcoin.getBlock(lastBlock);
+        int monitorHeight = b == null ? -1 : b.height() - monitorDepth;
+        monitorBlock = monitorHeight < 0 ? null : bitcoin.getBlockHash(monitorHeight);
     }
 
     public synchronized void checkPayments() throws BitcoinException {
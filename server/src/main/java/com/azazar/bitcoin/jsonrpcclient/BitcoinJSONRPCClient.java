@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -38,10 +39,12 @@ import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -157,19 +160,67 @@ public class BitcoinJSONRPCClient implements Bitcoin {
 
     public static final Charset QUERY_CHARSET = Charset.forName("ISO8859-1");
 
-    public byte[] prepareRequest(final String method, final Object... params) {
-        return JSON.stringify(new LinkedHashMap() {
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * A single call of a batch request, see {@link #queryBatch(List)}.
+     */
+    public static class Call {
+        private final String method;
+        private final Object[] params;
+
+        public Call(String method, Object... params) {
+            this.method = method;
+            this.params = params;
+        }
+
+        public String method() {
+            return method;
+        }
+
+        public Object[] params() {
+            return params;
+        }
+
+        @Override
+        public String toString() {
+            return method + Arrays.deepToString(params);
+        }
+    }
+
+    private String nextId() {
+        return String.valueOf(nextId.incrementAndGet());
+    }
+
+    private static Map requestMap(final String id, final String method, final Object... params) {
+        return new LinkedHashMap() {
             {
                 put("method", method);
                 put("params", params);
-                put("id", "1");
+                put("id", id);
             }
-        }).getBytes(QUERY_CHARSET);
+        };
     }
 
-    private static byte[] loadStream(InputStream in, boolean close) throws IOException {
-        ByteArrayOutputStream o = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
+    public byte[] prepareRequest(final String method, final Object... params) {
+        return prepareRequest(nextId(), method, params);
+    }
+
+    private byte[] prepareRequest(String id, String method, Object... params) {
+        return JSON.stringify(requestMap(id, method, params)).getBytes(QUERY_CHARSET);
+    }
+
+    /**
+     * Reads the stream to its end. The buffer is sized by the content length
+     * if it is known, so large responses (e.g. listsinceblock) are not copied
+     * over and over again while growing.
+     */
+    private static String loadStream(InputStream in, int contentLength) throws IOException {
+        ByteArrayOutputStream o = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 8192);
+        byte[] buffer = new byte[8192];
         for(;;) {
             int nr = in.read(buffer);
 
@@ -180,23 +231,25 @@ public class BitcoinJSONRPCClient implements Bitcoin {
 
             o.write(buffer, 0, nr);
         }
-        return o.toByteArray();
+        return o.toString(QUERY_CHARSET.name());
+    }
+
+    private static Object resultOf(Map response, Object expectedID) throws BitcoinException {
+        if (!expectedID.equals(response.get("id")))
+            throw new BitcoinRPCException("Wrong response ID (expected: "+String.valueOf(expectedID) + ", response: "+response.get("id")+")");
+
+        if (response.get("error") != null)
+            throw new BitcoinException(JSON.stringify(response.get("error")));
+
+        return response.get("result");
     }
 
     public Object loadResponse(InputStream in, Object expectedID, boolean close) throws IOException, BitcoinException {
         try {
-            String r = new String(loadStream(in, close), QUERY_CHARSET);
+            String r = loadStream(in, -1);
             logger.log(Level.FINE, "Bitcoin JSON-RPC response:\n{0}", r);
             try {
-                Map response = (Map) JSON.parse(r);
-                
-                if (!expectedID.equals(response.get("id")))
-                    throw new BitcoinRPCException("Wrong response ID (expected: "+String.valueOf(expectedID) + ", response: "+response.get("id")+")");
-
-                if (response.get("error") != null)
-                    throw new BitcoinException(JSON.stringify(response.get("error")));
-
-                return response.get("result");
+                return resultOf((Map) JSON.parse(r), expectedID);
             } catch (ClassCastException ex) {
                 throw new BitcoinRPCException("Invalid server response format (data: \"" + r + "\")");
             }
@@ -206,35 +259,128 @@ public class BitcoinJSONRPCClient implements Bitcoin {
         }
     }
 
+    /**
+     * Posts the request and returns the response body. The response is always
+     * read completely and closed, which allows the JDK to return the
+     * connection to its keep-alive cache and reuse it for the next query
+     * instead of opening a new connection to bitcoind.
+     */
+    private String post(byte[] request, String description) throws IOException, BitcoinRPCException {
+        HttpURLConnection conn = (HttpURLConnection) noAuthURL.openConnection();
+
+        conn.setDoOutput(true);
+        conn.setDoInput(true);
+        conn.setUseCaches(false);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setFixedLengthStreamingMode(request.length);
+
+        if (conn instanceof HttpsURLConnection) {
+            if (hostnameVerifier != null)
+                ((HttpsURLConnection)conn).setHostnameVerifier(hostnameVerifier);
+            if (sslSocketFactory != null)
+                ((HttpsURLConnection)conn).setSSLSocketFactory(sslSocketFactory);
+        }
+
+        conn.setRequestProperty("Authorization", "Basic " + authStr);
+        conn.setRequestProperty("Connection", "keep-alive");
+        conn.setRequestProperty("Content-Type", "application/json");
+        logger.log(Level.FINE, "Bitcoin JSON-RPC request:\n{0}", new String(request, QUERY_CHARSET));
+
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(request);
+        } finally {
+            out.close();
+        }
+
+        int responseCode = conn.getResponseCode();
+        if (responseCode != 200) {
+            InputStream err = conn.getErrorStream();
+            String body = "";
+            if (err != null) {
+                try {
+                    body = loadStream(err, conn.getContentLength());
+                } finally {
+                    err.close();
+                }
+            }
+            throw new BitcoinRPCException("RPC Query Failed (" + description + ", response header: "+ responseCode + " " + conn.getResponseMessage() + ", response: " + body);
+        }
+
+        InputStream in = conn.getInputStream();
+        try {
+            String r = loadStream(in, conn.getContentLength());
+            logger.log(Level.FINE, "Bitcoin JSON-RPC response:\n{0}", r);
+            return r;
+        } finally {
+            in.close();
+        }
+    }
+
     public Object query(String method, Object... o) throws BitcoinException {
-        HttpURLConnection conn;
+        String description = "method: "+ method +", params: " + Arrays.deepToString(o);
+        String id = nextId();
+        String r;
         try {
-            conn = (HttpURLConnection) noAuthURL.openConnection();
+            r = post(prepareRequest(id, method, o), description);
+        } catch (IOException ex) {
+            throw new BitcoinRPCException("RPC Query Failed (" + description + ")", ex);
+        }
+        try {
+            return resultOf((Map) JSON.parse(r), id);
+        } catch (ClassCastException ex) {
+            throw new BitcoinRPCException("Invalid server response format (data: \"" + r + "\")");
+        }
+    }
 
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
+    /**
+     * Sends all calls in one batch request and returns their results in the
+     * order of the calls. Every call gets its own id, the responses are
+     * matched by id since bitcoind does not have to answer in order.
+     * 
+     * @param calls
+     * @return results of the calls
+     * @throws BitcoinException
+     *             if the request fails or any of the calls returns an error
+     */
+    public List<Object> queryBatch(List<Call> calls) throws BitcoinException {
+        if (calls.isEmpty())
+            return new ArrayList<Object>();
+
+        List<Map> requests = new ArrayList<Map>(calls.size());
+        List<String> ids = new ArrayList<String>(calls.size());
+        for (Call call : calls) {
+            String id = nextId();
+            ids.add(id);
+            requests.add(requestMap(id, call.method(), call.params()));
+        }
+
+        String description = "batch: " + calls;
+        String r;
+        try {
+            r = post(JSON.stringify(requests).getBytes(QUERY_CHARSET), description);
+        } catch (IOException ex) {
+            throw new BitcoinRPCException("RPC Query Failed (" + description + ")", ex);
+        }
 
-            if (conn instanceof HttpsURLConnection) {
-                if (hostnameVerifier != null)
-                    ((HttpsURLConnection)conn).setHostnameVerifier(hostnameVerifier);
-                if (sslSocketFactory != null)
-                    ((HttpsURLConnection)conn).setSSLSocketFactory(sslSocketFactory);
+        Map<Object, Map> responses = new HashMap<Object, Map>();
+        try {
+            for (Object response : (List) JSON.parse(r)) {
+                responses.put(((Map) response).get("id"), (Map) response);
             }
+        } catch (ClassCastException ex) {
+            throw new BitcoinRPCException("Invalid server response format (data: \"" + r + "\")");
+        }
 
-//            conn.connect();
-
-            ((HttpURLConnection)conn).setRequestProperty("Authorization", "Basic " + authStr);
-            byte[] r = prepareRequest(method, o);
-            logger.log(Level.FINE, "Bitcoin JSON-RPC request:\n{0}", new String(r, QUERY_CHARSET));
-            conn.getOutputStream().write(r);
-            conn.getOutputStream().close();
-            int responseCode = conn.getResponseCode();
-            if (responseCode != 200)
-                throw new BitcoinRPCException("RPC Query Failed (method: "+ method +", params: " + Arrays.deepToString(o) + ", response header: "+ responseCode + " " + conn.getResponseMessage() + ", response: " + new String(loadStream(conn.getErrorStream(), true)));
-            return loadResponse(conn.getInputStream(), "1", true);
-        } catch (IOException ex) {
-            throw new BitcoinRPCException("RPC Query Failed (method: "+ method +", params: " + Arrays.deepToString(o) + ")", ex);
+        List<Object> results = new ArrayList<Object>(calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            Map response = responses.get(ids.get(i));
+            if (response == null)
+                throw new BitcoinRPCException("Missing response (call: " + calls.get(i) + ", id: " + ids.get(i) + ")");
+            results.add(resultOf(response, ids.get(i)));
         }
+        return results;
     }
 
     public String createRawTransaction(List<TxInput> inputs, List<TxOutput> outputs) throws BitcoinException {
@@ -364,6 +510,10 @@ public class BitcoinJSONRPCClient implements Bitcoin {
         return ((Number) query("getblockcount")).intValue();
     }
 
+    public String getBlockHash(int height) throws BitcoinException {
+        return (String) query("getblockhash", height);
+    }
+
     public String getNewAddress() throws BitcoinException {
         return (String) query("getnewaddress");
     }
@@ -835,6 +985,10 @@ public class BitcoinJSONRPCClient implements Bitcoin {
         return (String) query("sendfrom", fromAccount, toBitcoinAddress, amount, minConf, comment, commentTo);
     }
 
+    public String sendMany(String fromAccount, Map<String, Double> amounts) throws BitcoinException {
+        return (String) query("sendmany", fromAccount, amounts);
+    }
+
     public String sendRawTransaction(String hex) throws BitcoinException {
         return (String) query("sendrawtransaction", hex);
     }
@@ -874,7 +1028,21 @@ public class BitcoinJSONRPCClient implements Bitcoin {
     }
     
     public AddressValidationResult validateAddress(String address) throws BitcoinException {
-        final Map validationResult = (Map) query("validateaddress", address);
+        return toAddressValidationResult((Map) query("validateaddress", address));
+    }
+
+    public List<AddressValidationResult> validateAddresses(List<String> addresses) throws BitcoinException {
+        List<Call> calls = new ArrayList<Call>(addresses.size());
+        for (String address : addresses)
+            calls.add(new Call("validateaddress", address));
+
+        List<AddressValidationResult> results = new ArrayList<AddressValidationResult>(addresses.size());
+        for (Object result : queryBatch(calls))
+            results.add(toAddressValidationResult((Map) result));
+        return results;
+    }
+
+    private static AddressValidationResult toAddressValidationResult(final Map validationResult) {
         return new AddressValidationResult() {
 
             public boolean isValid() {
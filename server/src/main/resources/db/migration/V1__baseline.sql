@@ -0,0 +1,95 @@
+-- Schema as created by hbm2ddl before the schema was managed by migrations.
+-- Tables, constraints and sequences added since then are created by the
+-- later scripts. Databases created by hbm2ddl are baselined at this
+-- version without running the script (see SchemaMigrator).
+
+CREATE TABLE user_account (
+	id int8 NOT NULL,
+	creationdate timestamp NOT NULL,
+	username varchar(255) NOT NULL,
+	email varchar(255) NOT NULL,
+	password varchar(255) NOT NULL,
+	deleted bool NOT NULL,
+	balance numeric(25, 8) NOT NULL,
+	email_verified bool NOT NULL,
+	payment_address varchar(255),
+	rolres int2 NOT NULL,
+	PRIMARY KEY (id),
+	UNIQUE (username),
+	UNIQUE (email)
+);
+
+CREATE TABLE db_transaction (
+	id int8 NOT NULL,
+	timestamp timestamp,
+	transaction_nr_buyer int8 NOT NULL,
+	transaction_nr_seller int8 NOT NULL,
+	buyer_id int8 NOT NULL,
+	seller_id int8 NOT NULL,
+	amount numeric(25, 8),
+	input_currency varchar(255),
+	input_currency_amount numeric(25, 2),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE pay_in_transaction (
+	id int8 NOT NULL,
+	user_id int8 NOT NULL,
+	timestamp timestamp,
+	amount numeric(25, 8),
+	tx_id varchar(255),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE pay_out_transaction (
+	id int8 NOT NULL,
+	user_id int8 NOT NULL,
+	timestamp timestamp,
+	amount numeric(25, 8),
+	btc_address varchar(255),
+	verified bool NOT NULL,
+	transaction_id varchar(255),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE payout_rules (
+	id int8 NOT NULL,
+	hour int4 NOT NULL,
+	day int4 NOT NULL,
+	user_id int8 NOT NULL,
+	balance_limit numeric(25, 8),
+	payout_address varchar(255),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE emailverification (
+	id int8 NOT NULL,
+	user_id int8 NOT NULL,
+	verification_token varchar(255),
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE resetpassword (
+	id int8 NOT NULL,
+	user_id int8 NOT NULL,
+	token varchar(255),
+	creationdate timestamp NOT NULL,
+	PRIMARY KEY (id)
+);
+
+-- indexes declared with @Index, USER_ID_INDEX was declared on several tables
+-- and has been created on one of them only
+CREATE INDEX username_index ON user_account (username);
+CREATE INDEX buyer_id_index ON db_transaction (buyer_id);
+CREATE INDEX seller_id_index ON db_transaction (seller_id);
+CREATE INDEX tx_id_index ON pay_in_transaction (tx_id);
+CREATE INDEX transaction_id_index ON pay_out_transaction (transaction_id);
+CREATE INDEX token_index ON resetpassword (token);
+
+CREATE SEQUENCE useracccount_id_seq START WITH 1 INCREMENT BY 1;
+CREATE SEQUENCE db_transaction_id_seq START WITH 1 INCREMENT BY 1;
+CREATE SEQUENCE pay_in_transaction_id_seq START WITH 1 INCREMENT BY 1;
+CREATE SEQUENCE pay_out_transaction_id_seq START WITH 1 INCREMENT BY 1;
+CREATE SEQUENCE payout_rules_id_seq START WITH 1 INCREMENT BY 1;
+CREATE SEQUENCE emailVerfication_id_seq START WITH 1 INCREMENT BY 1;
+CREATE SEQUENCE resetPassword_id_seq START WITH 1 INCREMENT BY 1;
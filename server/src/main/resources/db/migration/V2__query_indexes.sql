@@ -0,0 +1,52 @@
+-- Indexes for the queries of the DAOs. Lookups by primary key, by username
+-- and email (UserAccountDAO.getByUsername, getByEmail) and by request key
+-- (TransactionDAO.getByRequestKey) use the indexes of their primary key and
+-- unique constraints.
+
+-- Indexes declared with @Index on the entities while hbm2ddl created the
+-- schema. USER_ID_INDEX was declared on two tables and could only be created
+-- on one of them.
+DROP INDEX IF EXISTS username_index;
+DROP INDEX IF EXISTS buyer_id_index;
+DROP INDEX IF EXISTS seller_id_index;
+DROP INDEX IF EXISTS user_id_index;
+DROP INDEX IF EXISTS token_index;
+DROP INDEX IF EXISTS tx_id_index;
+DROP INDEX IF EXISTS transaction_id_index;
+DROP INDEX IF EXISTS buyer_history_index;
+DROP INDEX IF EXISTS seller_history_index;
+DROP INDEX IF EXISTS pay_in_history_index;
+DROP INDEX IF EXISTS pay_out_history_index;
+
+-- UserAccountDAO.getByUsernameIgnoreCaseAndDeletedFlag and
+-- getByEmailIgnoreCaseAndDeletedFlag compare lower(column)
+CREATE INDEX user_account_lower_username_idx ON user_account (lower(username));
+CREATE INDEX user_account_lower_email_idx ON user_account (lower(email));
+-- UserAccountDAO.getByBTCAddress, PayInTransaction
+CREATE INDEX user_account_payment_address_idx ON user_account (payment_address);
+
+-- TransactionDAO history pages (keyset on timestamp, id), history counts and export
+CREATE INDEX db_transaction_buyer_history_idx ON db_transaction (buyer_id, timestamp, id);
+CREATE INDEX db_transaction_seller_history_idx ON db_transaction (seller_id, timestamp, id);
+
+-- PayInTransactionDAO history pages, counts and export
+CREATE INDEX pay_in_transaction_history_idx ON pay_in_transaction (user_id, timestamp, id);
+-- PayInTransactionDAO.isNew
+CREATE INDEX pay_in_transaction_user_tx_idx ON pay_in_transaction (user_id, tx_id);
+
+-- PayOutTransactionDAO history pages, counts and export
+CREATE INDEX pay_out_transaction_history_idx ON pay_out_transaction (user_id, timestamp, id);
+-- PayOutTransactionDAO.verify
+CREATE INDEX pay_out_transaction_transaction_id_idx ON pay_out_transaction (transaction_id);
+
+-- PayOutRuleDAO.get(hour, day) and getDuePayOuts (joined with user_account by user_id)
+CREATE INDEX payout_rules_slot_idx ON payout_rules (day, hour, user_id);
+-- PayOutRuleDAO.getByUserId, hasBalanceLimitRule and deleteRules
+CREATE INDEX payout_rules_user_id_idx ON payout_rules (user_id);
+
+-- UserAccountDAO.verifyEmail and getVerificationTokenByUserId
+CREATE INDEX emailverification_token_idx ON emailverification (verification_token);
+CREATE INDEX emailverification_user_id_idx ON emailverification (user_id);
+
+-- UserAccountDAO.getResetPassword, getByResetPasswordToken and deleteResetPassword
+CREATE INDEX resetpassword_token_idx ON resetpassword (token);
@@ -0,0 +1,3 @@
+-- Encoded public key of a UserAccount, used to verify the signatures of its
+-- payment requests (see TransactionCrypto).
+ALTER TABLE user_account ADD COLUMN public_key varchar(1024);
@@ -0,0 +1,3 @@
+-- Version of the public key of a UserAccount, incremented whenever the key is
+-- changed. Decoded public keys are cached by UserAccount and key version.
+ALTER TABLE user_account ADD COLUMN public_key_version int4 NOT NULL DEFAULT 0;
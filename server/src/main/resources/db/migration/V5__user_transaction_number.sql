@@ -0,0 +1,3 @@
+-- Transaction number the next payment of a UserAccount has to carry, issued
+-- by the server and incremented with every payment (see TransactionDAO).
+ALTER TABLE user_account ADD COLUMN transaction_number int8 NOT NULL DEFAULT 0;
@@ -0,0 +1,16 @@
+-- Number of history entries per UserAccount (see HistoryCounterDAO). A
+-- payment to oneself is one entry of the history and counted once.
+CREATE TABLE history_counter (
+	user_id int8 NOT NULL,
+	transaction_count int8 NOT NULL,
+	pay_in_count int8 NOT NULL,
+	pay_out_count int8 NOT NULL,
+	PRIMARY KEY (user_id)
+);
+
+INSERT INTO history_counter (user_id, transaction_count, pay_in_count, pay_out_count)
+SELECT u.id,
+(SELECT COUNT(*) FROM db_transaction t WHERE t.buyer_id = u.id OR t.seller_id = u.id),
+(SELECT COUNT(*) FROM pay_in_transaction pit WHERE pit.user_id = u.id),
+(SELECT COUNT(*) FROM pay_out_transaction pot WHERE pot.user_id = u.id)
+FROM user_account u;
@@ -0,0 +1,14 @@
+-- Last block handled by the BlockchainWatcher and the Bitcoin transactions
+-- its listeners have processed.
+CREATE TABLE blockchain_cursor (
+	id int8 NOT NULL,
+	last_block varchar(255) NOT NULL,
+	updated timestamp NOT NULL,
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE processed_btc_transaction (
+	tx_key varchar(255) NOT NULL,
+	processed timestamp NOT NULL,
+	PRIMARY KEY (tx_key)
+);
@@ -0,0 +1,2 @@
+-- A payment request is stored at most once (see TransactionDAO.getByRequestKey).
+ALTER TABLE db_transaction ADD CONSTRAINT transaction_request_key UNIQUE (buyer_id, seller_id, transaction_nr_buyer, transaction_nr_seller);
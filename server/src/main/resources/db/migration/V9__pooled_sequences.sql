@@ -0,0 +1,20 @@
+-- The pooled id generators allocate Config.ID_ALLOCATION_SIZE (50) ids with
+-- one call of nextval, so the sequences are incremented by the same value.
+-- Every sequence is moved past the highest id of its table plus one
+-- allocation, so the ids allocated next (pooled or pooled-lo optimizer) do not
+-- overlap with the ids allocated one by one so far.
+ALTER SEQUENCE useracccount_id_seq INCREMENT BY 50;
+ALTER SEQUENCE db_transaction_id_seq INCREMENT BY 50;
+ALTER SEQUENCE pay_in_transaction_id_seq INCREMENT BY 50;
+ALTER SEQUENCE pay_out_transaction_id_seq INCREMENT BY 50;
+ALTER SEQUENCE payout_rules_id_seq INCREMENT BY 50;
+ALTER SEQUENCE emailVerfication_id_seq INCREMENT BY 50;
+ALTER SEQUENCE resetPassword_id_seq INCREMENT BY 50;
+
+SELECT setval('useracccount_id_seq', GREATEST((SELECT last_value FROM useracccount_id_seq), (SELECT COALESCE(MAX(id), 0) FROM user_account) + 50));
+SELECT setval('db_transaction_id_seq', GREATEST((SELECT last_value FROM db_transaction_id_seq), (SELECT COALESCE(MAX(id), 0) FROM db_transaction) + 50));
+SELECT setval('pay_in_transaction_id_seq', GREATEST((SELECT last_value FROM pay_in_transaction_id_seq), (SELECT COALESCE(MAX(id), 0) FROM pay_in_transaction) + 50));
+SELECT setval('pay_out_transaction_id_seq', GREATEST((SELECT last_value FROM pay_out_transaction_id_seq), (SELECT COALESCE(MAX(id), 0) FROM pay_out_transaction) + 50));
+SELECT setval('payout_rules_id_seq', GREATEST((SELECT last_value FROM payout_rules_id_seq), (SELECT COALESCE(MAX(id), 0) FROM payout_rules) + 50));
+SELECT setval('emailVerfication_id_seq', GREATEST((SELECT last_value FROM emailVerfication_id_seq), (SELECT COALESCE(MAX(id), 0) FROM emailverification) + 50));
+SELECT setval('resetPassword_id_seq', GREATEST((SELECT last_value FROM resetPassword_id_seq), (SELECT COALESCE(MAX(id), 0) FROM resetpassword) + 50));
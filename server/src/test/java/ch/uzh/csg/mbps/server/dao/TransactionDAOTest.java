@@ -0,0 +1,352 @@
+package ch.uzh.csg.mbps.server.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.hibernate.HibernateException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.server.domain.DbTransaction;
+import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.service.UserAccountService;
+import ch.uzh.csg.mbps.server.util.exceptions.DuplicateTransactionException;
+import ch.uzh.csg.mbps.server.util.exceptions.InsufficientBalanceException;
+import ch.uzh.csg.mbps.server.util.exceptions.InvalidTransactionNumberException;
+
+/**
+ * Tests the creation of {@link DbTransaction}s on DAO level, one by one and
+ * with the group commit of the {@link TransactionBatcher}. The test is in the
+ * package of the DAOs to reach the package private methods.
+ */
+public class TransactionDAOTest {
+	private static final BigDecimal TRANSACTION_AMOUNT = new BigDecimal("1.50000000");
+
+	@Before
+	public void setUp() throws Exception {
+		UserAccountService.enableTestingMode();
+	}
+
+	@After
+	public void tearDown() {
+		UserAccountService.disableTestingMode();
+	}
+
+	@Test
+	public void testCreateTransactionNow() throws Exception {
+		UserAccount buyer = createAccount("TDAO_1", new BigDecimal("3.00000000"));
+		UserAccount seller = createAccount("TDAO_2", BigDecimal.ZERO);
+
+		TransactionDAO.createTransactionNow(createTx(buyer, seller, TRANSACTION_AMOUNT));
+
+		buyer = reload(buyer);
+		seller = reload(seller);
+		assertBalance("1.5", buyer);
+		assertBalance("1.5", seller);
+		assertEquals(1, buyer.getTransactionNumber());
+		assertEquals(1, seller.getTransactionNumber());
+
+		//the next payment has to carry the new transaction numbers
+		TransactionDAO.createTransactionNow(createTx(seller, buyer, new BigDecimal("0.5")));
+
+		assertBalance("2", reload(buyer));
+		assertBalance("1", reload(seller));
+		assertEquals(2, reload(buyer).getTransactionNumber());
+		assertEquals(2, reload(seller).getTransactionNumber());
+	}
+
+	@Test
+	public void testCreateTransactionNow_Retry() throws Exception {
+		UserAccount buyer = createAccount("TDAO_3", new BigDecimal("3.00000000"));
+		UserAccount seller = createAccount("TDAO_4", BigDecimal.ZERO);
+
+		DbTransaction first = createTx(buyer, seller, TRANSACTION_AMOUNT);
+		TransactionDAO.createTransactionNow(first);
+
+		try {
+			TransactionDAO.createTransactionNow(createTx(buyer, seller, TRANSACTION_AMOUNT));
+			fail("DuplicateTransactionException expected");
+		} catch (DuplicateTransactionException e) {
+			assertEquals(first.getId(), e.getExisting().getId());
+		}
+
+		assertBalance("1.5", reload(buyer));
+		assertBalance("1.5", reload(seller));
+		assertEquals(1, reload(buyer).getTransactionNumber());
+		assertEquals(1, reload(seller).getTransactionNumber());
+	}
+
+	@Test
+	public void testCreateTransactionNow_FailNumbersNotIssued() throws Exception {
+		UserAccount buyer = createAccount("TDAO_5", new BigDecimal("3.00000000"));
+		UserAccount seller = createAccount("TDAO_6", BigDecimal.ZERO);
+
+		DbTransaction tx = createTx(buyer, seller, TRANSACTION_AMOUNT);
+		tx.setTransactionNrBuyer(5);
+		tx.setTransactionNrSeller(5);
+		try {
+			TransactionDAO.createTransactionNow(tx);
+			fail("InvalidTransactionNumberException expected");
+		} catch (InvalidTransactionNumberException e) {
+		}
+
+		assertBalance("3", reload(buyer));
+		assertBalance("0", reload(seller));
+		assertEquals(0, reload(buyer).getTransactionNumber());
+		assertNull(TransactionDAO.getByRequestKey(buyer.getId(), seller.getId(), 5, 5));
+	}
+
+	@Test
+	public void testCreateTransactionNow_FailInsufficientBalance() throws Exception {
+		UserAccount buyer = createAccount("TDAO_7", new BigDecimal("1.00000000"));
+		UserAccount seller = createAccount("TDAO_8", BigDecimal.ZERO);
+
+		try {
+			TransactionDAO.createTransactionNow(createTx(buyer, seller, TRANSACTION_AMOUNT));
+			fail("InsufficientBalanceException expected");
+		} catch (InsufficientBalanceException e) {
+		}
+
+		assertBalance("1", reload(buyer));
+		assertBalance("0", reload(seller));
+		assertEquals(0, reload(buyer).getTransactionNumber());
+		assertEquals(0, reload(seller).getTransactionNumber());
+	}
+
+	@Test
+	public void testCreateTransactionNow_ConcurrentOppositePayments() throws Exception {
+		final UserAccount a = createAccount("TDAO_9", new BigDecimal("3.00000000"));
+		final UserAccount b = createAccount("TDAO_10", new BigDecimal("3.00000000"));
+
+		//both payments carry the same transaction numbers, the rows are locked so exactly one of them is created
+		final DbTransaction aToB = createTx(a, b, TRANSACTION_AMOUNT);
+		final DbTransaction bToA = createTx(b, a, new BigDecimal("0.5"));
+		final Exception[] failures = new Exception[2];
+		final CountDownLatch start = new CountDownLatch(1);
+
+		Thread t1 = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				failures[0] = createNow(start, aToB);
+			}
+		});
+		Thread t2 = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				failures[1] = createNow(start, bToA);
+			}
+		});
+		t1.start();
+		t2.start();
+		start.countDown();
+		t1.join(10000);
+		t2.join(10000);
+		assertFalse(t1.isAlive() || t2.isAlive());
+
+		assertTrue((failures[0] == null) != (failures[1] == null));
+		Exception failure = (failures[0] == null) ? failures[1] : failures[0];
+		assertTrue(failure instanceof InvalidTransactionNumberException);
+
+		if (failures[0] == null) {
+			assertBalance("1.5", reload(a));
+			assertBalance("4.5", reload(b));
+		} else {
+			assertBalance("3.5", reload(a));
+			assertBalance("2.5", reload(b));
+		}
+		assertEquals(1, reload(a).getTransactionNumber());
+		assertEquals(1, reload(b).getTransactionNumber());
+	}
+
+	@Test
+	public void testCreateTransactions_MixedGroup() throws Exception {
+		UserAccount buyer = createAccount("TDAO_11", new BigDecimal("3.00000000"));
+		UserAccount seller = createAccount("TDAO_12", BigDecimal.ZERO);
+		UserAccount poorBuyer = createAccount("TDAO_13", new BigDecimal("1.00000000"));
+		UserAccount poorSeller = createAccount("TDAO_14", BigDecimal.ZERO);
+
+		DbTransaction first = createTx(buyer, seller, TRANSACTION_AMOUNT);
+		DbTransaction retry = createTx(buyer, seller, TRANSACTION_AMOUNT);
+		DbTransaction insufficient = createTx(poorBuyer, poorSeller, TRANSACTION_AMOUNT);
+		DbTransaction second = createTx(buyer, seller, new BigDecimal("1.00000000"));
+		//issued by the first payment of the group
+		second.setTransactionNrBuyer(1);
+		second.setTransactionNrSeller(1);
+
+		Exception[] failures = TransactionDAO.createTransactions(Arrays.asList(first, retry, insufficient, second));
+
+		assertEquals(4, failures.length);
+		assertNull(failures[0]);
+		assertTrue(failures[1] instanceof DuplicateTransactionException);
+		assertEquals(first.getId(), ((DuplicateTransactionException) failures[1]).getExisting().getId());
+		assertTrue(failures[2] instanceof InsufficientBalanceException);
+		assertNull(failures[3]);
+
+		assertBalance("0.5", reload(buyer));
+		assertBalance("2.5", reload(seller));
+		assertBalance("1", reload(poorBuyer));
+		assertBalance("0", reload(poorSeller));
+		assertEquals(2, reload(buyer).getTransactionNumber());
+		assertEquals(2, reload(seller).getTransactionNumber());
+		assertEquals(0, reload(poorBuyer).getTransactionNumber());
+		assertEquals(0, reload(poorSeller).getTransactionNumber());
+	}
+
+	@Test
+	public void testCreateTransactions_FailedGroupIsRolledBack() throws Exception {
+		UserAccount buyer = createAccount("TDAO_15", new BigDecimal("3.00000000"));
+		UserAccount seller = createAccount("TDAO_16", BigDecimal.ZERO);
+		UserAccount buyer2 = createAccount("TDAO_17", new BigDecimal("3.00000000"));
+		UserAccount seller2 = createAccount("TDAO_18", BigDecimal.ZERO);
+
+		DbTransaction good = createTx(buyer, seller, TRANSACTION_AMOUNT);
+		DbTransaction bad = createBrokenTx(buyer2, seller2);
+		try {
+			TransactionDAO.createTransactions(Arrays.asList(good, bad));
+			fail("HibernateException expected");
+		} catch (HibernateException e) {
+		}
+
+		assertBalance("3", reload(buyer));
+		assertBalance("0", reload(seller));
+		assertEquals(0, reload(buyer).getTransactionNumber());
+		assertNull(TransactionDAO.getByRequestKey(buyer.getId(), seller.getId(), 0, 0));
+
+		//the id assigned within the rolled back group is reset before the payment is created again (as the TransactionBatcher does)
+		assertTrue(good.getId() != 0);
+		good.setId(0);
+		TransactionDAO.createTransactionNow(good);
+
+		assertTrue(good.getId() != 0);
+		assertNotNull(TransactionDAO.getByRequestKey(buyer.getId(), seller.getId(), 0, 0));
+		assertBalance("1.5", reload(buyer));
+		assertBalance("1.5", reload(seller));
+	}
+
+	@Test
+	public void testTransactionBatcher_ResultPerCaller() throws Exception {
+		UserAccount buyer = createAccount("TDAO_19", new BigDecimal("3.00000000"));
+		UserAccount seller = createAccount("TDAO_20", BigDecimal.ZERO);
+		UserAccount poorBuyer = createAccount("TDAO_21", new BigDecimal("1.00000000"));
+		UserAccount poorSeller = createAccount("TDAO_22", BigDecimal.ZERO);
+		UserAccount brokenBuyer = createAccount("TDAO_23", new BigDecimal("3.00000000"));
+		UserAccount brokenSeller = createAccount("TDAO_24", BigDecimal.ZERO);
+		UserAccount invalidBuyer = createAccount("TDAO_25", new BigDecimal("3.00000000"));
+		UserAccount invalidSeller = createAccount("TDAO_26", BigDecimal.ZERO);
+
+		DbTransaction invalid = createTx(invalidBuyer, invalidSeller, TRANSACTION_AMOUNT);
+		invalid.setTransactionNrBuyer(7);
+		invalid.setTransactionNrSeller(7);
+
+		//the broken payment fails the common database transaction if the payments are grouped, the others have to be created anyway
+		final List<DbTransaction> txs = Arrays.asList(
+				createTx(buyer, seller, TRANSACTION_AMOUNT),
+				createTx(poorBuyer, poorSeller, TRANSACTION_AMOUNT),
+				createBrokenTx(brokenBuyer, brokenSeller),
+				invalid);
+		final Exception[] failures = new Exception[txs.size()];
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < txs.size(); i++) {
+			final int index = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						TransactionBatcher.create(txs.get(index));
+					} catch (Exception e) {
+						failures[index] = e;
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(10000);
+			assertFalse(thread.isAlive());
+		}
+
+		assertNull(failures[0]);
+		assertTrue(failures[1] instanceof InsufficientBalanceException);
+		assertTrue(failures[2] instanceof HibernateException);
+		assertTrue(failures[3] instanceof InvalidTransactionNumberException);
+
+		assertBalance("1.5", reload(buyer));
+		assertBalance("1.5", reload(seller));
+		assertBalance("1", reload(poorBuyer));
+		assertBalance("3", reload(brokenBuyer));
+		assertBalance("0", reload(brokenSeller));
+		assertBalance("3", reload(invalidBuyer));
+		assertEquals(0, reload(brokenBuyer).getTransactionNumber());
+		assertEquals(0, reload(invalidBuyer).getTransactionNumber());
+	}
+
+	private static Exception createNow(CountDownLatch start, DbTransaction tx) {
+		try {
+			start.await();
+			TransactionDAO.createTransactionNow(tx);
+			return null;
+		} catch (Exception e) {
+			return e;
+		}
+	}
+
+	private static UserAccount createAccount(String username, BigDecimal balance) throws Exception {
+		UserAccount userAccount = new UserAccount(username, username + "@bitcoin.csg.uzh.ch", "my-password");
+		assertTrue(UserAccountService.getInstance().createAccount(userAccount));
+		userAccount = UserAccountService.getInstance().getByUsername(username);
+		UserAccountDAO.setBalanceForTesting(userAccount.getId(), balance);
+		return reload(userAccount);
+	}
+
+	private static UserAccount reload(UserAccount userAccount) throws Exception {
+		return UserAccountDAO.getById(userAccount.getId());
+	}
+
+	/*
+	 * Payment with the current transaction numbers of buyer and seller.
+	 */
+	private static DbTransaction createTx(UserAccount buyer, UserAccount seller, BigDecimal amount) {
+		DbTransaction tx = new DbTransaction();
+		tx.setTimestamp(new Date());
+		tx.setBuyerId(buyer.getId());
+		tx.setSellerId(seller.getId());
+		tx.setTransactionNrBuyer(buyer.getTransactionNumber());
+		tx.setTransactionNrSeller(seller.getTransactionNumber());
+		tx.setAmount(amount);
+		return tx;
+	}
+
+	/*
+	 * Valid payment which cannot be inserted, the input currency does not fit
+	 * into its column.
+	 */
+	private static DbTransaction createBrokenTx(UserAccount buyer, UserAccount seller) {
+		DbTransaction tx = createTx(buyer, seller, new BigDecimal("0.10000000"));
+		char[] currency = new char[300];
+		Arrays.fill(currency, 'X');
+		tx.setInputCurrency(new String(currency));
+		return tx;
+	}
+
+	private static void assertBalance(String expected, UserAccount userAccount) {
+		assertEquals(0, new BigDecimal(expected).compareTo(userAccount.getBalance()));
+	}
+
+}
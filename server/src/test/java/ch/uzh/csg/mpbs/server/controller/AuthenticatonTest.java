@@ -137,6 +137,7 @@ public class AuthenticatonTest {
 		userAccount.setEmailVerified(true);
 		userAccount.setBalance(balance);
 		UserAccountDAO.updateAccount(userAccount);
+		UserAccountDAO.setBalanceForTesting(userAccount.getId(), userAccount.getBalance());
 	}
 
 	private HttpSession loginAndGetSession(String username, String plainTextPassword) throws Exception {
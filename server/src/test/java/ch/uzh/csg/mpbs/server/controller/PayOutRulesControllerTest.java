@@ -38,8 +38,8 @@ import ch.uzh.csg.mbps.responseobject.PayOutRulesTransferObject;
 import ch.uzh.csg.mbps.server.controller.PayOutRulesController;
 import ch.uzh.csg.mbps.server.dao.UserAccountDAO;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.service.ServerKeys;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
-import ch.uzh.csg.mbps.server.util.Constants;
 import ch.uzh.csg.mbps.server.util.exceptions.EmailAlreadyExistsException;
 import ch.uzh.csg.mbps.server.util.exceptions.InvalidEmailException;
 import ch.uzh.csg.mbps.server.util.exceptions.InvalidUsernameException;
@@ -81,8 +81,7 @@ public class PayOutRulesControllerTest {
 
 			KeyPair keypair = KeyHandler.generateKeys();
 
-			Constants.PRIVATEKEY = keypair.getPrivate();
-			Constants.PUBLICKEY = keypair.getPublic();
+			ServerKeys.set(keypair);
 
 			initialized = true;
 		}
@@ -99,6 +98,7 @@ public class PayOutRulesControllerTest {
 		userAccount.setEmailVerified(true);
 		userAccount.setBalance(balance);
 		UserAccountDAO.updateAccount(userAccount);
+		UserAccountDAO.setBalanceForTesting(userAccount.getId(), userAccount.getBalance());
 	}
 
 	@Test
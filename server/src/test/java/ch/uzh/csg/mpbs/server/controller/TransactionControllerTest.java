@@ -43,8 +43,8 @@ import ch.uzh.csg.mbps.responseobject.GetHistoryTransferObject;
 import ch.uzh.csg.mbps.server.dao.UserAccountDAO;
 import ch.uzh.csg.mbps.server.domain.PayOutTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.service.ServerKeys;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
-import ch.uzh.csg.mbps.server.util.Constants;
 import ch.uzh.csg.mbps.server.util.exceptions.EmailAlreadyExistsException;
 import ch.uzh.csg.mbps.server.util.exceptions.InvalidEmailException;
 import ch.uzh.csg.mbps.server.util.exceptions.InvalidUsernameException;
@@ -108,8 +108,7 @@ public class TransactionControllerTest {
 			
 			KeyPair keypair = KeyHandler.generateKeys();
 			
-			Constants.PRIVATEKEY = keypair.getPrivate();
-			Constants.PUBLICKEY = keypair.getPublic();
+			ServerKeys.set(keypair);
 				
 			initialized = true;
 		}
@@ -149,6 +148,7 @@ public class TransactionControllerTest {
 		test3.setEmailVerified(true);
 		test3.setBalance(TRANSACTION_AMOUNT);
 		UserAccountDAO.updateAccount(test3);
+		UserAccountDAO.setBalanceForTesting(test3.getId(), test3.getBalance());
 		
 		String plainTextPw = test4.getPassword();
 		assertTrue(UserAccountService.getInstance().createAccount(test4));
@@ -188,8 +188,8 @@ public class TransactionControllerTest {
 //		test3 = UserAccountService.getInstance().getById(test3.getId());
 //		test4 = UserAccountService.getInstance().getById(test4.getId());
 //		
-//		assertTrue(KeyHandler.verifyObject(sellerSignedObject, Constants.PUBLICKEY));
-//		assertTrue(KeyHandler.verifyObject(buyerSignedObject, Constants.PUBLICKEY));
+//		assertTrue(KeyHandler.verifyObject(sellerSignedObject, ServerKeys.get().getPublicKey()));
+//		assertTrue(KeyHandler.verifyObject(buyerSignedObject, ServerKeys.get().getPublicKey()));
 //		
 //		Transaction tx = KeyHandler.retrieveTransaction(sellerSignedObject);
 //		
@@ -277,8 +277,8 @@ public class TransactionControllerTest {
 //		test8 = UserAccountService.getInstance().getById(test8.getId());
 //		test9 = UserAccountService.getInstance().getById(test9.getId());
 //		
-//		assertTrue(KeyHandler.verifyObject(sellerSignedObject, Constants.PUBLICKEY));
-//		assertTrue(KeyHandler.verifyObject(buyerSignedObject, Constants.PUBLICKEY));
+//		assertTrue(KeyHandler.verifyObject(sellerSignedObject, ServerKeys.get().getPublicKey()));
+//		assertTrue(KeyHandler.verifyObject(buyerSignedObject, ServerKeys.get().getPublicKey()));
 //		
 //		Transaction tx = KeyHandler.retrieveTransaction(sellerSignedObject);
 //		
@@ -315,6 +315,7 @@ public class TransactionControllerTest {
 		test5.setEmailVerified(true);
 		test5.setBalance(TRANSACTION_AMOUNT.multiply(new BigDecimal(3)));
 		UserAccountDAO.updateAccount(test5);
+		UserAccountDAO.setBalanceForTesting(test5.getId(), test5.getBalance());
 		
 		mockMvc.perform(get("/transaction/history").secure(true)).andExpect(status().isUnauthorized());
 	}
@@ -396,6 +397,7 @@ public class TransactionControllerTest {
 		userAccount.setEmailVerified(true);
 		userAccount.setBalance(balance);
 		UserAccountDAO.updateAccount(userAccount);
+		UserAccountDAO.setBalanceForTesting(userAccount.getId(), userAccount.getBalance());
 	}
 	
 	@Test
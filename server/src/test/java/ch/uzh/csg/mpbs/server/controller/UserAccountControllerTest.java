@@ -339,6 +339,7 @@ public class UserAccountControllerTest {
 		userAccount.setEmailVerified(true);
 		userAccount.setBalance(balance);
 		UserAccountDAO.updateAccount(userAccount);
+		UserAccountDAO.setBalanceForTesting(userAccount.getId(), userAccount.getBalance());
 	}
 
 	private HttpSession loginAndGetSession(String username, String plainTextPassword) throws Exception {
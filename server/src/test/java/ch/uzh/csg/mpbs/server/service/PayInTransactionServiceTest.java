@@ -18,9 +18,11 @@ import ch.uzh.csg.mbps.server.dao.UserAccountDAO;
 import ch.uzh.csg.mbps.server.domain.PayInTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
 import ch.uzh.csg.mbps.server.service.PayInTransactionService;
+import ch.uzh.csg.mbps.server.service.ServerKeys;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
 import ch.uzh.csg.mbps.server.util.Config;
-import ch.uzh.csg.mbps.server.util.Constants;
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+import ch.uzh.csg.mbps.server.util.HistoryPage;
 import ch.uzh.csg.mbps.server.util.exceptions.EmailAlreadyExistsException;
 import ch.uzh.csg.mbps.server.util.exceptions.InvalidEmailException;
 import ch.uzh.csg.mbps.server.util.exceptions.InvalidUsernameException;
@@ -37,6 +39,7 @@ public class PayInTransactionServiceTest {
 	private static boolean initialized = false;
 	private static UserAccount test61;
 	private static UserAccount test62;
+	private static UserAccount test64;
 
 	@Before
 	public void setUp() throws Exception {
@@ -45,11 +48,11 @@ public class PayInTransactionServiceTest {
 
 			test61 = new UserAccount("test61", "test61@bitcoin.csg.uzh.chs", "asdf");
 			test62 = new UserAccount("test62", "test62@bitcoin.csg.uzh.ch", "asdf");
+			test64 = new UserAccount("test64", "test64@bitcoin.csg.uzh.ch", "asdf");
 
 			KeyPair keypair = KeyHandler.generateKeys();
 
-			Constants.PRIVATEKEY = keypair.getPrivate();
-			Constants.PUBLICKEY = keypair.getPublic();
+			ServerKeys.set(keypair);
 
 			initialized = true;
 		}
@@ -61,6 +64,7 @@ public class PayInTransactionServiceTest {
 		userAccount.setEmailVerified(true);
 		userAccount.setBalance(balance);
 		UserAccountDAO.updateAccount(userAccount);
+		UserAccountDAO.setBalanceForTesting(userAccount.getId(), userAccount.getBalance());
 	}
 
 	@Test
@@ -220,5 +224,38 @@ public class PayInTransactionServiceTest {
 		long historyCount = PayInTransactionService.getInstance().getHistoryCount(fromDB.getUsername());
 		assertEquals(Config.PAY_INS_MAX_RESULTS+additionalTx, historyCount);
 	}
+	
+	@Test
+	public void testGetHistoryWithCursor() throws Exception {
+		UserAccountService.enableTestingMode();
+		createAccountAndVerifyAndReload(test64, BigDecimal.ZERO);
+		
+		UserAccount fromDB = UserAccountService.getInstance().getByUsername(test64.getUsername());
+		
+		HistoryPage<HistoryPayInTransaction> page = PayInTransactionService.getInstance().getHistory(fromDB.getUsername(), (HistoryCursor) null);
+		assertEquals(0, page.getItems().size());
+		assertFalse(page.hasMore());
+		
+		//all pay ins have the same timestamp, the order is defined by the id
+		Date date = new Date();
+		int additionalTx = 2;
+		for (int i = 0; i < Config.PAY_INS_MAX_RESULTS + additionalTx; i++) {
+			PayInTransaction tx = new PayInTransaction();
+			tx.setTimestamp(date);
+			tx.setAmount(new BigDecimal("0.00001"));
+			tx.setUserID(fromDB.getId());
+			tx.setTransactionID("cursor-" + i);
+			PayInTransactionDAO.createPayInTransaction(tx);
+		}
+		
+		page = PayInTransactionService.getInstance().getHistory(fromDB.getUsername(), (HistoryCursor) null);
+		assertEquals(Config.PAY_INS_MAX_RESULTS, page.getItems().size());
+		assertTrue(page.hasMore());
+		
+		HistoryCursor cursor = HistoryCursor.decode(page.getNextCursor().encode());
+		page = PayInTransactionService.getInstance().getHistory(fromDB.getUsername(), cursor);
+		assertEquals(additionalTx, page.getItems().size());
+		assertFalse(page.hasMore());
+	}
 
-}
\ No newline at end of file
+}
@@ -28,10 +28,10 @@ import ch.uzh.csg.mbps.server.dao.TransactionDAO;
 import ch.uzh.csg.mbps.server.dao.UserAccountDAO;
 import ch.uzh.csg.mbps.server.domain.DbTransaction;
 import ch.uzh.csg.mbps.server.domain.UserAccount;
+import ch.uzh.csg.mbps.server.service.ServerKeys;
 import ch.uzh.csg.mbps.server.service.TransactionService;
 import ch.uzh.csg.mbps.server.service.UserAccountService;
 import ch.uzh.csg.mbps.server.util.Config;
-import ch.uzh.csg.mbps.server.util.Constants;
 import ch.uzh.csg.mbps.server.util.HibernateUtil;
 import ch.uzh.csg.mbps.server.util.exceptions.TransactionException;
 import ch.uzh.csg.mbps.util.KeyHandler;
@@ -49,8 +49,7 @@ public class TransactionServiceTest {
 			UserAccountService.enableTestingMode();
 			KeyPair keypair = KeyHandler.generateKeys();
 			
-			Constants.PRIVATEKEY = keypair.getPrivate();
-			Constants.PUBLICKEY = keypair.getPublic();
+			ServerKeys.set(keypair);
 			
 			initialized = true;
 		}
@@ -91,7 +90,7 @@ public class TransactionServiceTest {
 //		assertEquals(0, buyerBalanceBefore.subtract(TRANSACTION_AMOUNT).compareTo(buyerAccountUpdated.getBalance()));
 //		assertEquals(0, sellerBalanceBefore.add(TRANSACTION_AMOUNT).compareTo(sellerAccountUpdated.getBalance()));
 //		
-//		assertTrue(KeyHandler.verifyObject(txResponse, Constants.PUBLICKEY));
+//		assertTrue(KeyHandler.verifyObject(txResponse, ServerKeys.get().getPublicKey()));
 //		
 //		Transaction tx = KeyHandler.retrieveTransaction(txResponse);
 //		
@@ -165,7 +164,7 @@ public class TransactionServiceTest {
 //		assertEquals(0, buyerBalanceBefore.subtract(TRANSACTION_AMOUNT).compareTo(buyerAccountUpdated.getBalance()));
 //		assertEquals(0, sellerBalanceBefore.add(TRANSACTION_AMOUNT).compareTo(sellerAccountUpdated.getBalance()));
 //		
-//		assertTrue(KeyHandler.verifyObject(txResponse, Constants.PUBLICKEY));
+//		assertTrue(KeyHandler.verifyObject(txResponse, ServerKeys.get().getPublicKey()));
 //		
 //		Transaction tx = KeyHandler.retrieveTransaction(txResponse);
 //		
@@ -486,6 +485,7 @@ public class TransactionServiceTest {
 		buyerAccount.setEmailVerified(true);
 		buyerAccount.setBalance(bigDecimal);
 		UserAccountDAO.updateAccount(buyerAccount);
+		UserAccountDAO.setBalanceForTesting(buyerAccount.getId(), buyerAccount.getBalance());
 		return buyerAccount;
 	}
 
@@ -0,0 +1,50 @@
+package ch.uzh.csg.mpbs.server.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.server.service.VerificationEmailThrottle;
+
+public class VerificationEmailThrottleTest {
+
+	@Test
+	public void testThrottlesPerAccount() {
+		VerificationEmailThrottle throttle = new VerificationEmailThrottle(2, 60000, 10);
+
+		assertTrue(throttle.tryAcquire(1));
+		assertTrue(throttle.tryAcquire(1));
+		assertFalse(throttle.tryAcquire(1));
+		assertFalse(throttle.tryAcquire(1));
+
+		assertTrue(throttle.tryAcquire(2));
+	}
+
+	@Test
+	public void testRefillsAfterWindow() throws InterruptedException {
+		VerificationEmailThrottle throttle = new VerificationEmailThrottle(1, 50, 10);
+
+		assertTrue(throttle.tryAcquire(1));
+		assertFalse(throttle.tryAcquire(1));
+		Thread.sleep(100);
+
+		assertTrue(throttle.tryAcquire(1));
+		assertFalse(throttle.tryAcquire(1));
+	}
+
+	@Test
+	public void testReusesVerificationToken() {
+		VerificationEmailThrottle throttle = new VerificationEmailThrottle(1, 60000, 10);
+		assertNull(throttle.getVerificationToken(1));
+
+		throttle.tryAcquire(1);
+		throttle.setVerificationToken(1, "token");
+
+		assertEquals("token", throttle.getVerificationToken(1));
+		assertNull(throttle.getVerificationToken(2));
+	}
+
+}
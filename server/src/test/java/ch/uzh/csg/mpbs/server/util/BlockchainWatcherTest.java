@@ -0,0 +1,174 @@
+package ch.uzh.csg.mpbs.server.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.server.dao.BlockchainWatcherDAO;
+import ch.uzh.csg.mbps.server.util.BlockchainWatcher;
+
+import com.azazar.bitcoin.jsonrpcclient.Bitcoin;
+
+public class BlockchainWatcherTest {
+	private static final int MIN_CONFIRMATIONS = 12;
+	private static final int PAY_IN_HEIGHT = 90;
+
+	private FakeChain chain;
+	private BlockchainWatcher watcher;
+	private int calls;
+	private boolean failing;
+
+	@Before
+	public void setUp() throws Exception {
+		chain = new FakeChain();
+		chain.tip = 100;
+		chain.payInTxId = "watcher-test-" + System.nanoTime();
+		BlockchainWatcherDAO.setLastBlock(FakeChain.hash(chain.tip));
+
+		calls = 0;
+		failing = true;
+		watcher = new BlockchainWatcher(chain.bitcoin());
+		watcher.addListener(new BlockchainWatcher.Listener() {
+			@Override
+			public int getMinConfirmations() {
+				return MIN_CONFIRMATIONS;
+			}
+
+			@Override
+			public boolean accepts(Bitcoin.Transaction transaction) {
+				return transaction.category().equals("receive");
+			}
+
+			@Override
+			public void confirmed(Bitcoin.Transaction transaction) throws Exception {
+				calls++;
+				if (failing)
+					throw new Exception("database not reachable");
+			}
+		});
+	}
+
+	@Test
+	public void testFailedTransactionIsRetriedAfterNewBlocks() throws Exception {
+		//the pay in reaches the confirmations with block 101, the listener fails
+		chain.tip = 101;
+		watcher.checkTransactions();
+		assertEquals(1, calls);
+		assertEquals(FakeChain.hash(PAY_IN_HEIGHT), BlockchainWatcherDAO.getLastBlock());
+
+		//it keeps failing while new blocks arrive
+		chain.tip = 102;
+		watcher.checkTransactions();
+		assertEquals(2, calls);
+		assertEquals(FakeChain.hash(PAY_IN_HEIGHT), BlockchainWatcherDAO.getLastBlock());
+
+		//far more blocks than the confirmations later, the pay in is still listed and handled
+		failing = false;
+		chain.tip = 130;
+		watcher.checkTransactions();
+		assertEquals(3, calls);
+		assertEquals(FakeChain.hash(130), BlockchainWatcherDAO.getLastBlock());
+
+		//handled only once
+		chain.tip = 131;
+		watcher.checkTransactions();
+		assertEquals(3, calls);
+		assertEquals(FakeChain.hash(131), BlockchainWatcherDAO.getLastBlock());
+	}
+
+	@Test
+	public void testHandledTransactionMovesTheBlock() throws Exception {
+		failing = false;
+		chain.tip = 101;
+		watcher.checkTransactions();
+		assertEquals(1, calls);
+		assertEquals(FakeChain.hash(101), BlockchainWatcherDAO.getLastBlock());
+	}
+
+	/**
+	 * Block chain with one incoming transaction in block PAY_IN_HEIGHT. Block
+	 * hashes are "block-" + height.
+	 */
+	private static class FakeChain {
+		private int tip;
+		private String payInTxId;
+
+		private static String hash(int height) {
+			return "block-" + height;
+		}
+
+		private static int height(String hash) {
+			return Integer.parseInt(hash.substring("block-".length()));
+		}
+
+		private Bitcoin bitcoin() {
+			return proxy(Bitcoin.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if (method.getName().equals("listSinceBlock"))
+						return listSinceBlock((args == null) ? -1 : height((String) args[0]));
+					if (method.getName().equals("getBlock"))
+						return block(height((String) args[0]));
+					if (method.getName().equals("getBlockHash"))
+						return hash((Integer) args[0]);
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		}
+
+		/*
+		 * Like bitcoind, returns the transactions in blocks above the given
+		 * height.
+		 */
+		private Bitcoin.TransactionsSinceBlock listSinceBlock(int sinceHeight) {
+			Map<String, Object> transaction = new HashMap<String, Object>();
+			transaction.put("txId", payInTxId);
+			transaction.put("category", "receive");
+			transaction.put("address", "watcher-test-address");
+			transaction.put("amount", 0.5);
+			transaction.put("confirmations", tip - PAY_IN_HEIGHT + 1);
+			transaction.put("blockHash", hash(PAY_IN_HEIGHT));
+
+			List<Bitcoin.Transaction> transactions = new ArrayList<Bitcoin.Transaction>();
+			if (PAY_IN_HEIGHT > sinceHeight)
+				transactions.add(proxy(Bitcoin.Transaction.class, transaction));
+
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("transactions", transactions);
+			result.put("lastBlock", hash(tip));
+			return proxy(Bitcoin.TransactionsSinceBlock.class, result);
+		}
+
+		private Bitcoin.Block block(int height) {
+			Map<String, Object> block = new HashMap<String, Object>();
+			block.put("hash", hash(height));
+			block.put("height", height);
+			return proxy(Bitcoin.Block.class, block);
+		}
+	}
+
+	private static <T> T proxy(Class<T> type, final Map<String, Object> values) {
+		return proxy(type, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (!values.containsKey(method.getName()))
+					throw new UnsupportedOperationException(method.getName());
+				return values.get(method.getName());
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(BlockchainWatcherTest.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+}
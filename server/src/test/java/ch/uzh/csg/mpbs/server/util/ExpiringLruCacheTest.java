@@ -0,0 +1,51 @@
+package ch.uzh.csg.mpbs.server.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.server.util.ExpiringLruCache;
+
+public class ExpiringLruCacheTest {
+
+	@Test
+	public void testGetAndRemove() {
+		ExpiringLruCache<String, Long> cache = new ExpiringLruCache<String, Long>(10, 60000);
+		cache.put("jeton", 1L);
+
+		assertEquals(Long.valueOf(1), cache.get("jeton"));
+		assertNull(cache.get("simon"));
+
+		cache.remove("jeton");
+		assertNull(cache.get("jeton"));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		ExpiringLruCache<String, Long> cache = new ExpiringLruCache<String, Long>(2, 60000);
+		cache.put("a", 1L);
+		cache.put("b", 2L);
+		cache.get("a");
+		cache.put("c", 3L);
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get("b"));
+		assertEquals(Long.valueOf(1), cache.get("a"));
+		assertEquals(Long.valueOf(3), cache.get("c"));
+	}
+
+	@Test
+	public void testExpiration() throws InterruptedException {
+		ExpiringLruCache<String, Long> cache = new ExpiringLruCache<String, Long>(10, 50);
+		cache.put("jeton", 1L);
+		Thread.sleep(100);
+
+		assertNull(cache.get("jeton"));
+		assertEquals(0, cache.size());
+	}
+
+}
@@ -0,0 +1,40 @@
+package ch.uzh.csg.mpbs.server.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import ch.uzh.csg.mbps.server.util.HistoryCursor;
+
+public class HistoryCursorTest {
+
+	@Test
+	public void testEncodeDecode() {
+		Date date = new Date();
+		HistoryCursor cursor = new HistoryCursor(date, 42);
+
+		HistoryCursor decoded = HistoryCursor.decode(cursor.encode());
+		assertEquals(date, decoded.getTimestamp());
+		assertEquals(42, decoded.getId());
+	}
+
+	@Test
+	public void testDecodeFirstPage() {
+		assertNull(HistoryCursor.decode(null));
+		assertNull(HistoryCursor.decode(""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeInvalid() {
+		HistoryCursor.decode("abc-1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecodeMissingId() {
+		HistoryCursor.decode("1390000000000-");
+	}
+
+}